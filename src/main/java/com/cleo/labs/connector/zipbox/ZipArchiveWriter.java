@@ -0,0 +1,383 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipWriter;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Writes a Zip archive to an {@link OutputStream}.  New content is deflated
+ * with a {@link Deflater} borrowed from a {@link ZipCodecPool}, while
+ * existing entries are transferred as raw compressed bytes, without any
+ * inflation or deflation at all.
+ * <p/>
+ * Entry names are written in UTF-8, and Zip64 extensions are used only when
+ * sizes, offsets or the entry count require them.  The records written are
+ * available from {@link #records()} once the writer is closed.
+ */
+public class ZipArchiveWriter implements Closeable {
+
+    static final int EXTSIG = 0x08074b50;
+    static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final int FLAG_UTF8 = 0x0800;
+    static final int VERSION = 20;
+    static final int VERSION_ZIP64 = 45;
+
+    private final CountingOutputStream out;
+    private final long start;
+    private final ZipCodecPool pool;
+    private final int level;
+    private final List<Record> records;
+    private String comment = null;
+    private boolean closed = false;
+
+    /**
+     * Creates a new writer.
+     * @param out the {@link OutputStream} to write the archive to
+     * @param pool the {@link ZipCodecPool} to borrow {@link Deflater}s from
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1) for new content
+     */
+    public ZipArchiveWriter(OutputStream out, ZipCodecPool pool, int level) {
+        this(out, pool, level, 0L, Collections.emptyList());
+    }
+
+    /**
+     * Creates a new writer continuing an archive whose first {@code start}
+     * bytes, holding the entries {@code kept}, are already in place, so that
+     * {@code out} receives only the new entries and the central directory.
+     * @param out the {@link OutputStream} positioned at {@code start}
+     * @param pool the {@link ZipCodecPool} to borrow {@link Deflater}s from
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1) for new content
+     * @param start the offset of the first byte written to {@code out}
+     * @param kept the entries before {@code start}, in archive order
+     */
+    public ZipArchiveWriter(OutputStream out, ZipCodecPool pool, int level, long start, List<Record> kept) {
+        this.out = new CountingOutputStream(out);
+        this.start = start;
+        this.pool = pool;
+        this.level = level;
+        this.records = new ArrayList<>(kept);
+    }
+
+    /**
+     * Sets the archive comment written in the end of central directory record.
+     * @param comment the comment (may be {@code null})
+     * @return {@code this}, to allow fluent style setting
+     */
+    public ZipArchiveWriter comment(String comment) {
+        this.comment = comment;
+        return this;
+    }
+
+    /**
+     * Returns the offset in the archive of the next byte written.
+     * @return the byte count
+     */
+    public long position() {
+        return start + out.getCount();
+    }
+
+    /**
+     * Returns the records written so far, in archive order.
+     * @return an unmodifiable list of {@link Record}
+     */
+    public List<Record> records() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Writes an empty directory entry.
+     * @param name the entry name, which should end in {@code /}
+     * @param time the modification time in Java milliseconds
+     * @throws IOException
+     */
+    public void mkdir(String name, long time) throws IOException {
+        Record record = new Record(name, FLAG_UTF8, ZipEntry.STORED, javaToDosTime(time),
+                0L, 0L, 0L, position(), new byte[0], null);
+        writeLocal(record);
+        records.add(record);
+    }
+
+    /**
+     * Writes a new entry whose content is supplied by {@code writer}, deflated
+     * at the writer's compression level.  Since the sizes are not known in
+     * advance, they follow the data in a data descriptor.
+     * @param name the entry name
+     * @param time the modification time in Java milliseconds
+     * @param writer the supplier of the content
+     * @throws IOException
+     */
+    public void write(String name, long time, ZipWriter writer) throws IOException {
+        long offset = position();
+        long dosTime = javaToDosTime(time);
+        writeLocal(new Record(name, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, ZipEntry.DEFLATED, dosTime,
+                0L, 0L, 0L, offset, new byte[0], null));
+        CRC32 crc = new CRC32();
+        Deflater deflater = pool.borrowDeflater(level);
+        long size;
+        long compressedSize;
+        try {
+            DeflaterOutputStream deflate = new DeflaterOutputStream(new NonClosingOutputStream(out), deflater, 8192);
+            writer.write(new NonClosingOutputStream(new CheckedOutputStream(deflate, crc)));
+            deflate.finish();
+            size = deflater.getBytesRead();
+            compressedSize = deflater.getBytesWritten();
+        } finally {
+            pool.release(deflater, level);
+        }
+        ByteBuffer ext;
+        if (size >= ZipCentralDirectory.ZIP64_MAGICVAL || compressedSize >= ZipCentralDirectory.ZIP64_MAGICVAL) {
+            ext = buffer(24);
+            ext.putInt(EXTSIG).putInt((int) crc.getValue()).putLong(compressedSize).putLong(size);
+        } else {
+            ext = buffer(16);
+            ext.putInt(EXTSIG).putInt((int) crc.getValue()).putInt((int) compressedSize).putInt((int) size);
+        }
+        out.write(ext.array(), 0, ext.position());
+        records.add(new Record(name, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR, ZipEntry.DEFLATED, dosTime,
+                crc.getValue(), compressedSize, size, offset, new byte[0], null));
+    }
+
+    /**
+     * Writes an existing entry by transferring its raw compressed bytes,
+     * possibly under a new name.  The method, CRC, sizes, time, extra field
+     * and comment are preserved from {@code source}.
+     * @param source the {@link Record} describing the raw content
+     * @param name the name to write the entry under
+     * @param raw the raw compressed bytes, exactly {@code source.compressedSize()} long
+     * @throws IOException
+     */
+    public void copy(Record source, String name, InputStream raw) throws IOException {
+        Record record = new Record(name, (source.flags() & ~FLAG_DATA_DESCRIPTOR) | FLAG_UTF8,
+                source.method(), source.dosTime(), source.crc(), source.compressedSize(), source.size(),
+                position(), source.extra(), source.comment());
+        writeLocal(record);
+        long copied = ByteStreams.copy(ByteStreams.limit(raw, source.compressedSize()), out);
+        if (copied != source.compressedSize()) {
+            throw new IOException("truncated entry data for " + source.name());
+        }
+        records.add(record);
+    }
+
+    /**
+     * Stamps the entry written last with a {@link ZipSequence} number, in
+     * its central directory record only (its local header is already written).
+     * @param sequence the sequence number
+     */
+    public void stamp(long sequence) {
+        int last = records.size() - 1;
+        records.set(last, ZipSequence.stamp(records.get(last), sequence));
+    }
+
+    /**
+     * Writes the central directory and end records and closes the
+     * underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                finish();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes the local file header for {@code record}.
+     * @param record the {@link Record}
+     * @throws IOException
+     */
+    private void writeLocal(Record record) throws IOException {
+        byte[] name = record.name().getBytes(StandardCharsets.UTF_8);
+        byte[] extra = record.extra();
+        boolean descriptor = (record.flags() & FLAG_DATA_DESCRIPTOR) != 0;
+        boolean zip64 = !descriptor && (record.size() >= ZipCentralDirectory.ZIP64_MAGICVAL
+                || record.compressedSize() >= ZipCentralDirectory.ZIP64_MAGICVAL);
+        int extraLength = extra.length + (zip64 ? 20 : 0);
+        ByteBuffer loc = buffer(ZipCentralDirectory.LOCHDR + name.length + extraLength);
+        loc.putInt(ZipCentralDirectory.LOCSIG);
+        loc.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+        loc.putShort((short) record.flags());
+        loc.putShort((short) record.method());
+        loc.putInt((int) record.dosTime());
+        if (descriptor) {
+            loc.putInt(0).putInt(0).putInt(0);
+        } else if (zip64) {
+            loc.putInt((int) record.crc()).putInt(-1).putInt(-1);
+        } else {
+            loc.putInt((int) record.crc()).putInt((int) record.compressedSize()).putInt((int) record.size());
+        }
+        loc.putShort((short) name.length);
+        loc.putShort((short) extraLength);
+        loc.put(name);
+        if (zip64) {
+            loc.putShort((short) ZipCentralDirectory.ZIP64_EXTID).putShort((short) 16);
+            loc.putLong(record.size()).putLong(record.compressedSize());
+        }
+        loc.put(extra);
+        out.write(loc.array(), 0, loc.position());
+    }
+
+    /**
+     * Writes the central directory, followed by the Zip64 end records
+     * (if needed) and the end of central directory record.
+     * @throws IOException
+     */
+    private void finish() throws IOException {
+        long cdOffset = position();
+        for (Record record : records) {
+            writeCentral(record);
+        }
+        long cdSize = position() - cdOffset;
+        long count = records.size();
+        byte[] commentBytes = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+        if (count >= ZipCentralDirectory.ZIP64_MAGICCOUNT || cdSize >= ZipCentralDirectory.ZIP64_MAGICVAL
+                || cdOffset >= ZipCentralDirectory.ZIP64_MAGICVAL) {
+            long end64 = position();
+            ByteBuffer zip64 = buffer(ZipCentralDirectory.ZIP64_ENDHDR + ZipCentralDirectory.ZIP64_LOCHDR);
+            zip64.putInt(ZipCentralDirectory.ZIP64_ENDSIG);
+            zip64.putLong(ZipCentralDirectory.ZIP64_ENDHDR - 12);
+            zip64.putShort((short) VERSION_ZIP64).putShort((short) VERSION_ZIP64);
+            zip64.putInt(0).putInt(0);
+            zip64.putLong(count).putLong(count);
+            zip64.putLong(cdSize).putLong(cdOffset);
+            zip64.putInt(ZipCentralDirectory.ZIP64_LOCSIG);
+            zip64.putInt(0).putLong(end64).putInt(1);
+            out.write(zip64.array(), 0, zip64.position());
+            count = Math.min(count, ZipCentralDirectory.ZIP64_MAGICCOUNT);
+            cdSize = Math.min(cdSize, ZipCentralDirectory.ZIP64_MAGICVAL);
+            cdOffset = Math.min(cdOffset, ZipCentralDirectory.ZIP64_MAGICVAL);
+        }
+        ByteBuffer end = buffer(ZipCentralDirectory.ENDHDR + commentBytes.length);
+        end.putInt(ZipCentralDirectory.ENDSIG);
+        end.putShort((short) 0).putShort((short) 0);
+        end.putShort((short) count).putShort((short) count);
+        end.putInt((int) cdSize).putInt((int) cdOffset);
+        end.putShort((short) commentBytes.length);
+        end.put(commentBytes);
+        out.write(end.array(), 0, end.position());
+        out.flush();
+    }
+
+    /**
+     * Writes the central directory header for {@code record}.
+     * @param record the {@link Record}
+     * @throws IOException
+     */
+    private void writeCentral(Record record) throws IOException {
+        byte[] name = record.name().getBytes(StandardCharsets.UTF_8);
+        byte[] extra = record.extra();
+        byte[] comment = record.comment() == null ? new byte[0] : record.comment().getBytes(StandardCharsets.UTF_8);
+        boolean bigSize = record.size() >= ZipCentralDirectory.ZIP64_MAGICVAL;
+        boolean bigCompressedSize = record.compressedSize() >= ZipCentralDirectory.ZIP64_MAGICVAL;
+        boolean bigOffset = record.offset() >= ZipCentralDirectory.ZIP64_MAGICVAL;
+        int zip64Length = (bigSize ? 8 : 0) + (bigCompressedSize ? 8 : 0) + (bigOffset ? 8 : 0);
+        boolean zip64 = zip64Length > 0;
+        int extraLength = extra.length + (zip64 ? 4 + zip64Length : 0);
+        ByteBuffer cen = buffer(ZipCentralDirectory.CENHDR + name.length + extraLength + comment.length);
+        int version = zip64 ? VERSION_ZIP64 : VERSION;
+        cen.putInt(ZipCentralDirectory.CENSIG);
+        cen.putShort((short) version).putShort((short) version);
+        cen.putShort((short) record.flags());
+        cen.putShort((short) record.method());
+        cen.putInt((int) record.dosTime());
+        cen.putInt((int) record.crc());
+        cen.putInt(bigCompressedSize ? -1 : (int) record.compressedSize());
+        cen.putInt(bigSize ? -1 : (int) record.size());
+        cen.putShort((short) name.length);
+        cen.putShort((short) extraLength);
+        cen.putShort((short) comment.length);
+        cen.putShort((short) 0).putShort((short) 0).putInt(0);
+        cen.putInt(bigOffset ? -1 : (int) record.offset());
+        cen.put(name);
+        if (zip64) {
+            cen.putShort((short) ZipCentralDirectory.ZIP64_EXTID).putShort((short) zip64Length);
+            if (bigSize) {
+                cen.putLong(record.size());
+            }
+            if (bigCompressedSize) {
+                cen.putLong(record.compressedSize());
+            }
+            if (bigOffset) {
+                cen.putLong(record.offset());
+            }
+        }
+        cen.put(extra);
+        cen.put(comment);
+        out.write(cen.array(), 0, cen.position());
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Converts Java milliseconds to MS-DOS date and time fields (date in
+     * the high 16 bits) in the default time zone.
+     * @param time the Java time
+     * @return the MS-DOS date and time
+     */
+    static long javaToDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (year - 1980) << 25)
+                | ((calendar.get(Calendar.MONTH) + 1) << 21)
+                | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+                | (calendar.get(Calendar.MINUTE) << 5)
+                | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * An {@link OutputStream} wrapper that passes writes through but
+     * ignores {@code close()}, so that content writers cannot close
+     * the archive stream out from under the next entry.
+     */
+    static class NonClosingOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        public NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        @Override
+        public void close() throws IOException {
+            // ignore it!!!
+        }
+    }
+}
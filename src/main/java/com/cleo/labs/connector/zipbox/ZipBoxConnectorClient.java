@@ -11,17 +11,23 @@ import static com.cleo.connector.api.command.ConnectorCommandName.RMDIR;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Delete;
 import static com.cleo.connector.api.command.ConnectorCommandOption.Unique;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipException;
 
 import org.apache.commons.io.FilenameUtils;
 
@@ -40,10 +46,62 @@ import com.cleo.connector.api.directory.Entry;
 import com.cleo.connector.api.helper.Attributes;
 import com.cleo.connector.api.interfaces.IConnectorIncoming;
 import com.cleo.connector.api.interfaces.IConnectorOutgoing;
+import com.cleo.connector.api.property.ConnectorPropertyException;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipBatchResult;
 import com.cleo.labs.connector.zipbox.ZipEditor.ZipProcessResult;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipRepackResult;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 
 public class ZipBoxConnectorClient extends ConnectorClient {
+    /**
+     * The virtual directory of administrative commands.  The reports are
+     * run by a {@code GET} of a file in this directory, and the report is
+     * the content of the file.  The commands that rewrite the archive are
+     * run by a {@code PUT} of a file in this directory (whose content is
+     * ignored), and the report is the message of the result.  The directory
+     * is reserved: entries can not be created in it.
+     */
+    public static final String CONTROL = ".zipbox/";
+    /**
+     * {@code GET .zipbox/verify} checks the integrity of every entry.
+     */
+    public static final String VERIFY = CONTROL+"verify";
+    /**
+     * {@code PUT .zipbox/repack} rewrites the archive sorted and compacted.
+     */
+    public static final String REPACK = CONTROL+"repack";
+    /**
+     * {@code PUT .zipbox/recompress} repacks the archive, recompressing
+     * every entry at the configured compression level.
+     */
+    public static final String RECOMPRESS = CONTROL+"recompress";
+    /**
+     * {@code GET .zipbox/scheduler} reports the queue of rewrites waiting
+     * for the {@link ZipRewriteScheduler}, and how long they have waited.
+     */
+    public static final String SCHEDULER = CONTROL+"scheduler";
+    /**
+     * {@code GET .zipbox/handles} reports the open archives shared through
+     * the {@link ZipHandlePool}, and how often they were reused.
+     */
+    public static final String HANDLES = CONTROL+"handles";
+    /**
+     * {@code GET .zipbox/ingest} reports whether files stored at the ingest
+     * level are waiting to be recompressed by {@link ZipIngest}.
+     */
+    public static final String INGEST = CONTROL+"ingest";
+    /**
+     * {@code GET .zipbox/partial} reports the uploads cut short that can be
+     * resumed, and the offset each can be resumed from (see {@link ZipPartial}).
+     */
+    public static final String PARTIAL = CONTROL+"partial";
+    /**
+     * {@code GET .zipbox/sequence} reports the last commit sequence number,
+     * for the {@code DirSince} of the next poll.
+     */
+    public static final String SEQUENCE = CONTROL+"sequence";
+
     private ZipBoxConnectorConfig config;
 
     /**
@@ -55,12 +113,35 @@ public class ZipBoxConnectorClient extends ConnectorClient {
     }
 
     /**
-     * Returns a {@link File} for the configured ZIP file.
+     * Constructs a new {@code ZipBoxConnectorClient} with a supplied
+     * configuration, for driving the client outside of the connector
+     * framework (e.g. from a load test).
+     * @param config the {@code ZipBoxConnectorConfig}
+     */
+    ZipBoxConnectorClient(ZipBoxConnectorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns a {@link File} for the configured ZIP file, registering it
+     * with the {@link ZipWatcher} and setting its limits in the
+     * {@link ZipHandlePool} according to the configuration.  The use of the file puts off any
+     * background recompression by {@link ZipIngest}.
      * @return the {@link File}
      * @throws ConnectorException if the file does not exist
+     * @throws IOException
      */
-    private File openFile(boolean mustExist) throws ConnectorException {
+    private File openFile(boolean mustExist) throws ConnectorException, IOException {
         File file = new File(config.getZipFile());
+        ZipWatcher.getDefault().register(file, config.getWatchZipFile(), config.getStatInterval());
+        ZipHandlePool.getDefault().configure(file, config.getHandlePoolSize(), config.getHandleIdleMillis());
+        if (config.getIngestLevel() != config.getCompressionLevel()) {
+            ZipIngest.of(file).configure(config.getCompressionLevel(), config.getIngestIdleMillis()).touch();
+        } else {
+            ZipIngest.existing(file).ifPresent(ZipIngest::touch);
+        }
+        // put back the tail of a rewrite cut short by a crash
+        ZipUndo.recover(file);
         if (mustExist && !file.exists()) {
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", config.getZipFile()),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
@@ -68,16 +149,85 @@ public class ZipBoxConnectorClient extends ConnectorClient {
         return file;
     }
 
+    /**
+     * Returns a new {@link ZipEditor} for {@code file}, configured with the
+     * compression level, index file, tail rewrite and content cache settings.
+     * @param file the Zip file
+     * @return the {@link ZipEditor}
+     * @throws ConnectorPropertyException
+     */
+    private ZipEditor editor(File file) throws ConnectorPropertyException {
+        return new ZipEditor(file)
+                .compressionLevel(config.getCompressionLevel())
+                .indexFile(config.getIndexFile())
+                .tailRewrite(config.getTailRewrite())
+                .contentCache(config.getContentCache());
+    }
+
+    /**
+     * Returns the {@link ZipStorageEngine} for {@code file} selected by the
+     * configuration, with the {@link ZipRewriteScheduler} configured for the
+     * edits it makes.
+     * @param file the Zip file
+     * @return the {@link ZipStorageEngine}
+     * @throws ConnectorPropertyException
+     */
+    private ZipStorageEngine engine(File file) throws ConnectorPropertyException {
+        scheduler();
+        switch (config.getStorageEngine()) {
+        case ZipFsEngine.NAME:
+            return new ZipFsEngine(file);
+        default:
+            return new ZipEditorEngine(file, editor(file));
+        }
+    }
+
+    /**
+     * Applies the edits in {@code zip} to {@code file}.  If uploads are being
+     * committed in the background, they are committed first so that edits
+     * apply in the order they were received, and the archive is locked
+     * against the committer while the edits are applied.
+     * @param file the Zip file
+     * @param zip the edits
+     * @return the {@link ZipProcessResult}
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private ZipProcessResult process(File file, ZipEditor zip) throws ConnectorException, IOException {
+        return exclusive(file, zip::process);
+    }
+
+    /**
+     * Runs {@code rewrite} after committing any uploads waiting in the
+     * background, while holding the archive's lock against the committer,
+     * once the {@link ZipRewriteScheduler} gives it a turn.
+     * @param file the Zip file
+     * @param rewrite the rewrite
+     * @return the result of the rewrite
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private <T> T exclusive(File file, ZipRewriteScheduler.Rewrite<T> rewrite) throws ConnectorException, IOException {
+        scheduler();
+        return ZipCommitter.exclusive(file, rewrite);
+    }
+
+    /**
+     * Returns the node-wide {@link ZipRewriteScheduler}, configured with
+     * this connector's limits.
+     * @return the scheduler
+     * @throws ConnectorPropertyException
+     */
+    private ZipRewriteScheduler scheduler() throws ConnectorPropertyException {
+        return ZipRewriteScheduler.getDefault()
+                .configure(config.getMaxConcurrentRewrites(), config.getRewriteRateLimit());
+    }
+
     @Command(name=DIR)
     public ConnectorCommandResult dir(DirCommand dir) throws ConnectorException, IOException
     {
-        String source = dir.getSource().getPath();
-
-        logger.debug(String.format("DIR '%s'", source));
-
-        if (source.equals(".")) source = ""; // TODO: remove when Harmony is fixed
         List<Entry> list = new ArrayList<>();
-        for (ZipEntry zipentry : new ZipEditor(config.getZipFile()).entries(source)) {
+        for (ZipEntry zipentry : list(dir.getSource().getPath())) {
             Entry entry = new Entry(zipentry.isDirectory() ? Type.dir : Type.file);
             entry.setDate(Attributes.toLocalDateTime(zipentry.getTime()));
             entry.setPath(zipentry.getName());
@@ -87,18 +237,95 @@ public class ZipBoxConnectorClient extends ConnectorClient {
         return new ConnectorCommandResult(Status.Success, Optional.empty(), list);
     }
 
+    /**
+     * Lists the entries in directory {@code source}, or matching the
+     * wildcard pattern {@code source}, including uploads not yet committed.
+     * With {@code DirSince}, lists instead the entries under {@code source},
+     * at any depth, or matching it, committed after that sequence number
+     * (uploads not yet committed are listed once they are).
+     * @param source the directory or pattern
+     * @return the entries
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    List<ZipEntry> list(String source) throws ConnectorException, IOException {
+        logger.debug(String.format("DIR '%s'", source));
+
+        if (source.equals(".")) source = ""; // TODO: remove when Harmony is fixed
+        File file = openFile(false);
+        ZipStorageEngine engine = engine(file);
+        long since = config.getDirSince();
+        if (since >= 0) {
+            return engine.since(source, since);
+        }
+        // take the uploads waiting before listing the archive, so that an upload
+        // committed in between is found in one or the other
+        Optional<ZipCommitter> committer = ZipCommitter.existing(file);
+        List<ZipCommitter.Pending> waiting = committer.isPresent()
+                ? new ArrayList<>(committer.get().pending())
+                : new ArrayList<>();
+        List<ZipEntry> entries = engine.list(source);
+        if (committer.isPresent()) {
+            // merge in uploads not yet committed, replacing their older versions
+            String prefix = ZipEditor.normalizeDirectoryName(source);
+            Pattern glob = engine.glob(source) ? ZipIndex.compile(source) : null;
+            Map<String,ZipEntry> merged = new TreeMap<>();
+            entries.forEach((e) -> merged.put(e.getName(), e));
+            for (ZipCommitter.Pending pending : waiting) {
+                String path = pending.path();
+                if (glob != null ? glob.matcher(path).matches()
+                        : path.startsWith(prefix) && path.indexOf(ZipEditor.DELIMITER, prefix.length()) < 0) {
+                    merged.put(path, pending.toZipEntry());
+                }
+            }
+            entries = new ArrayList<>(merged.values());
+        }
+        return entries;
+    }
+
     @Command(name = GET)
     public ConnectorCommandResult get(GetCommand get) throws ConnectorException, IOException {
-        String source = get.getSource().getPath();
-        IConnectorIncoming destination = get.getDestination();
+        return get(get.getSource().getPath(), get.getDestination());
+    }
 
+    /**
+     * Copies the content of entry {@code source} (or the report of an
+     * administrative command) to {@code destination}.
+     * @param source the entry name
+     * @param destination where to write the content
+     * @return the command result
+     * @throws ConnectorException if the entry does not exist
+     * @throws IOException
+     */
+    ConnectorCommandResult get(String source, IConnectorIncoming destination) throws ConnectorException, IOException {
         logger.debug(String.format("GET remote '%s' to local '%s'", source, destination.getPath()));
 
-        File file = new File(config.getZipFile());
-        try (ZipFile zipFile = new ZipFile(file)) {
-            ZipEntry entry = zipFile.getEntry(source);
-            if (entry != null) {
-                transfer(zipFile.getInputStream(entry), destination.getStream(), true);
+        if (source.startsWith(CONTROL)) {
+            return control(source, destination);
+        } else if (config.getExportZip()) {
+            Optional<ConnectorCommandResult> result = export(source, destination);
+            if (result.isPresent()) {
+                return result.get();
+            }
+        }
+
+        long[] range = config.getRange();
+        long offset = range == null ? 0L : range[0];
+        long length = range == null || range[1] < 0 ? -1L : range[1] - range[0] + 1;
+        if (range != null) {
+            logger.debug(String.format("GET range offset=%d length=%d", offset, length));
+        }
+
+        File file = openFile(false);
+        try {
+            Optional<InputStream> content = pending(file, source, offset, length);
+            if (!content.isPresent()) {
+                content = engine(file).read(source, offset, length);
+            }
+            if (content.isPresent()) {
+                try (InputStream in = content.get()) {
+                    transfer(in, destination.getStream(), true);
+                }
                 return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
             }
         } catch (IOException e) {
@@ -108,27 +335,246 @@ public class ZipBoxConnectorClient extends ConnectorClient {
             ConnectorException.Category.fileNonExistentOrNoAccess);
     }
 
+    /**
+     * Downloads a Zip file of directory {@code source} and its contents to
+     * {@code destination}, if {@code source} is a directory.  Uploads still
+     * being committed in the background are committed first.
+     * @param source the directory
+     * @param destination where to write the Zip file
+     * @return the command result, or {@code Optional.empty()} if {@code source} is not a directory
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private Optional<ConnectorCommandResult> export(String source, IConnectorIncoming destination)
+            throws ConnectorException, IOException {
+        File file = openFile(false);
+        Optional<ZipCommitter> committer = ZipCommitter.existing(file);
+        if (committer.isPresent()) {
+            committer.get().flush();
+        }
+        ZipEditor zip = editor(file);
+        boolean root = Strings.isNullOrEmpty(source) || source.equals(".");
+        if (!file.exists() || !root && !zip.entry(source).map(ZipEntry::isDirectory).orElse(false)) {
+            return Optional.empty();
+        }
+        ZipBatchResult result = zip.export(root ? "" : source, destination.getStream());
+        logger.debug(String.format("GET '%s' exported %d entries, %d bytes in %d ms", source,
+                result.entries(), result.bytes(), result.millis()));
+        return Optional.of(new ConnectorCommandResult(ConnectorCommandResult.Status.Success));
+    }
+
+    /**
+     * Opens an upload to {@code path} that has been spooled but not yet
+     * committed, if any.
+     * @param file the Zip file
+     * @param path the entry name
+     * @param offset the offset to start reading from
+     * @param length the number of bytes to read, or {@code -1} to read to the end
+     * @return the content, or {@code Optional.empty()}
+     * @throws IOException
+     */
+    private Optional<InputStream> pending(File file, String path, long offset, long length) throws IOException {
+        Optional<ZipCommitter> committer = ZipCommitter.existing(file);
+        Optional<ZipCommitter.Pending> pending = committer.isPresent()
+                ? committer.get().pending(path) : Optional.empty();
+        if (pending.isPresent()) {
+            try {
+                InputStream in = pending.get().open();
+                ByteStreams.skipFully(in, offset);
+                return Optional.of(length < 0 ? in : ByteStreams.limit(in, length));
+            } catch (FileNotFoundException e) {
+                // committed in the meantime: read from the archive
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Runs the administrative command named by {@code source}, writing
+     * its report to {@code destination}.
+     * @param source the command path, within {@link #CONTROL}
+     * @param destination where to write the report
+     * @return the command result
+     * @throws ConnectorException if the command is not known
+     * @throws IOException
+     */
+    private ConnectorCommandResult control(String source, IConnectorIncoming destination)
+            throws ConnectorException, IOException {
+        String report;
+        if (source.equals(VERIFY)) {
+            ZipBatchResult result = editor(openFile(true))
+                    .verify(Runtime.getRuntime().availableProcessors());
+            logger.debug(String.format("VERIFY %d entries, %d bad, %.1f MB/s", result.entries(),
+                    result.failures().size(), result.throughput() / (1024 * 1024)));
+            report = result.toString();
+        } else if (source.equals(SCHEDULER)) {
+            report = scheduler().toString();
+        } else if (source.equals(HANDLES)) {
+            report = ZipHandlePool.getDefault().toString();
+        } else if (source.equals(INGEST)) {
+            File file = openFile(true);
+            Optional<ZipIngest> ingest = ZipIngest.existing(file);
+            report = ingest.isPresent() ? ingest.get().toString() : String.format("ingest %s: off%n", file);
+        } else if (source.equals(PARTIAL)) {
+            report = ZipPartial.report(openFile(true));
+        } else if (source.equals(SEQUENCE)) {
+            report = String.format("%d%n", editor(openFile(false)).sequence());
+        } else {
+            throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
+                    ConnectorException.Category.fileNonExistentOrNoAccess);
+        }
+        transfer(new ByteArrayInputStream(report.getBytes(StandardCharsets.UTF_8)), destination.getStream(), true);
+        return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
+    }
+
+    /**
+     * Returns whether {@code path} is (or is within) the reserved
+     * {@link #CONTROL} directory.
+     * @param path the path
+     * @return {@code true} if entries may not be created at {@code path}
+     */
+    private static boolean reserved(String path) {
+        return path != null && (path + "/").startsWith(CONTROL);
+    }
+
+    /**
+     * Runs the administrative command that rewrites the archive named by
+     * {@code destination}, returning its report as the message of the result.
+     * @param destination the command path, within {@link #CONTROL}
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private ConnectorCommandResult maintain(String destination) throws ConnectorException, IOException {
+        if (!destination.equals(REPACK) && !destination.equals(RECOMPRESS)) {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
+                    String.format("'%s' is reserved for administrative commands.", destination));
+        }
+        File file = openFile(true);
+        ZipEditor zip = editor(file);
+        ZipRepackResult result = exclusive(file, () -> zip.repack(destination.equals(RECOMPRESS),
+                Runtime.getRuntime().availableProcessors()));
+        logger.debug(String.format("REPACK %d entries, %d bytes to %d bytes in %d ms", result.entries(),
+                result.before(), result.after(), result.millis()));
+        return new ConnectorCommandResult(ConnectorCommandResult.Status.Success, result.toString());
+    }
+
     @Command(name = PUT, options = { Unique, Delete })
     public ConnectorCommandResult put(PutCommand put) throws ConnectorException, IOException {
-        String destination = put.getDestination().getPath();
-        IConnectorOutgoing source = put.getSource();
+        return put(put.getSource(), put.getDestination().getPath(),
+                ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique));
+    }
 
+    /**
+     * Stores the content of {@code source} as entry {@code destination}.
+     * @param source the content
+     * @param destination the entry name
+     * @param unique {@code true} to pick a new name if {@code destination} exists
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    ConnectorCommandResult put(IConnectorOutgoing source, String destination, boolean unique)
+            throws ConnectorException, IOException {
         logger.debug(String.format("PUT local '%s' to remote '%s'", source.getPath(), destination));
 
-        File file = new File(config.getZipFile());
-        ZipEditor zip = new ZipEditor(file).compressionLevel(config.getCompressionLevel());
-        if (ConnectorCommandUtil.isOptionOn(put.getOptions(), Unique)) {
-            Set<String> index = zip.entries().stream().map((ze)->ze.getName()).collect(Collectors.toCollection(HashSet::new));
+        if (reserved(destination)) {
+            return maintain(destination);
+        }
+        File file = openFile(false);
+        if (config.getImportZip()) {
+            return importZip(file, editor(file), source, destination);
+        }
+        ZipStorageEngine engine = engine(file);
+        // uploads are committed in the background by splicing them in
+        ZipCommitter committer = config.getAsyncCommit() && engine.splices()
+                ? ZipCommitter.of(file, config.getCommitQueueSize(), config.getCompressionLevel())
+                : null;
+        if (committer != null) {
+            committer.tailRewrite(config.getTailRewrite());
+        }
+        // receive and deflate the upload before touching the archive, so the
+        // rewrite only splices in the compressed data at local disk speed
+        // (an engine that does not splice compresses the upload itself)
+        File directory = committer != null ? committer.directory() : file.getAbsoluteFile().getParentFile();
+        // with a fast ingest level, the upload is recompressed later when idle
+        boolean ingest = engine.splices() && config.getIngestLevel() != config.getCompressionLevel();
+        if (config.getResumablePut()) {
+            // checkpoint the upload as it is received, and pick up where one cut short left off.
+            // the partial holds off other PUTs to the destination, and keeps its checkpoint, until
+            // the upload is committed, so that a commit that fails can be resumed too
+            try (ZipPartial partial = ZipPartial.open(file, destination)) {
+                long offset = config.getPutOffset();
+                if (offset > partial.size()) {
+                    return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
+                            String.format("'%s' can only be resumed from %d.", destination, partial.size()));
+                }
+                try (ZipSpool spool = partial.spool(source.getStream(), offset, ZipCodecPool.getDefault(),
+                        config.getIngestLevel(), config.getSkipUnchangedDigest())) {
+                    ConnectorCommandResult result = store(file, engine, committer, spool.ingested(ingest),
+                            destination, unique);
+                    if (result.getStatus() == ConnectorCommandResult.Status.Success) {
+                        partial.discard();
+                        config.usedPutOffset();
+                    }
+                    return result;
+                }
+            }
+        }
+        try (ZipSpool spool = new ZipSpool(directory, config.getSkipUnchangedDigest()).ingested(ingest)) {
+            if (engine.splices()) {
+                spool.deflate(ZipCodecPool.getDefault(), config.getIngestLevel());
+            }
+            spool.spool(source.getStream());
+            return store(file, engine, committer, spool, destination, unique);
+        }
+    }
+
+    /**
+     * Commits the content received in {@code spool} as entry {@code destination},
+     * unless it is unchanged, through {@code committer} if there is one.
+     * @param file the Zip file
+     * @param engine the storage engine
+     * @param committer the background committer, or {@code null} to write the entry now
+     * @param spool the received content
+     * @param destination the entry name
+     * @param unique {@code true} to pick a new name if {@code destination} exists
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private ConnectorCommandResult store(File file, ZipStorageEngine engine, ZipCommitter committer, ZipSpool spool,
+            String destination, boolean unique) throws ConnectorException, IOException {
+        if (config.getSkipUnchanged() && (committer == null || !committer.pending(destination).isPresent())
+                && editor(file).unchanged(destination, spool)) {
+            logger.debug(String.format("PUT '%s' unchanged: skipped", destination));
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success,
+                    String.format("'%s' unchanged.", destination));
+        }
+        if (unique) {
+            Set<String> waiting = new HashSet<>();
+            if (committer != null) {
+                committer.pending().forEach((p) -> waiting.add(p.path()));
+            }
             String base = FilenameUtils.getBaseName(destination);
             String ext = FilenameUtils.getExtension(destination).replaceFirst("^(?=[^\\.])", ".");
             int i = 0;
-            while (index.contains(destination)) {
+            while (waiting.contains(destination) || engine.stat(destination).isPresent()) {
                 i++;
                 destination = String.format("%s.%d%s", base, i, ext);
             }
         }
 
-        ZipProcessResult result = zip.add(destination, (os)->transfer(source.getStream(), os, false)).process();
+        if (spool.ingested()) {
+            ZipIngest.of(file).written();
+        }
+        if (committer != null) {
+            committer.commit(destination, spool);
+            logger.debug(String.format("PUT '%s' spooled: %d waiting to commit", destination, committer.depth()));
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
+        }
+
+        ZipProcessResult result = engine.write(destination, spool);
 
         if (result.adds() != 1) {
             return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
@@ -138,6 +584,35 @@ public class ZipBoxConnectorClient extends ConnectorClient {
         }
     }
 
+    /**
+     * Imports the entries of the Zip file received from {@code source} into
+     * the directory of {@code destination}, in a single rewrite.
+     * @param file the Zip file
+     * @param zip the editor for the Zip file
+     * @param source the uploaded Zip file
+     * @param destination the destination path, whose directory receives the entries
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    private ConnectorCommandResult importZip(File file, ZipEditor zip, IConnectorOutgoing source, String destination)
+            throws ConnectorException, IOException {
+        String directory = FilenameUtils.getPath(destination);
+        try (ZipSpool spool = new ZipSpool(file.getAbsoluteFile().getParentFile(), null)) {
+            spool.spool(source.getStream());
+            try {
+                zip.importArchive(directory, spool.file());
+            } catch (ZipException e) {
+                return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
+                        String.format("'%s' can not be imported: %s", source.getPath(), e.getMessage()));
+            }
+            ZipProcessResult result = process(file, zip);
+            logger.debug(String.format("PUT '%s' imported %d entries into '%s'", source.getPath(), result.adds(), directory));
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Success,
+                    String.format("%d entries imported.", result.adds()));
+        }
+    }
+
     /**
      * Get the file attribute view associated with a file path
      * 
@@ -149,12 +624,16 @@ public class ZipBoxConnectorClient extends ConnectorClient {
     @Command(name = ATTR)
     public BasicFileAttributeView getAttributes(String path) throws ConnectorException, IOException {
         logger.debug(String.format("ATTR '%s'", path));
+        Optional<ZipCommitter> committer = ZipCommitter.existing(openFile(false));
+        if (committer.isPresent() && committer.get().pending(path).isPresent()) {
+            return new ZipEntryAttributes(committer.get().pending(path).get().toZipEntry());
+        }
         File file = openFile(true);
         if (Strings.isNullOrEmpty(path) || path.equals(".")) { // TODO: remove . check once Harmony fixed
             // the root path gets the attributes of the file itself
             return new ZipFileAttributes(file);
         } else {
-            Optional<ZipEntry> entry = new ZipEditor(file).entry(path);
+            Optional<ZipEntry> entry = engine(file).stat(path);
             if (entry.isPresent()) {
                 return new ZipEntryAttributes(entry.get());
             } else {
@@ -166,12 +645,22 @@ public class ZipBoxConnectorClient extends ConnectorClient {
 
     @Command(name = DELETE)
     public ConnectorCommandResult delete(OtherCommand delete) throws ConnectorException, IOException {
-        String source = delete.getSource();
+        return delete(delete.getSource());
+    }
+
+    /**
+     * Deletes entry {@code source}.
+     * @param source the path
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    ConnectorCommandResult delete(String source) throws ConnectorException, IOException {
         logger.debug(String.format("DELETE '%s'", source));
-        
-        File file = openFile(true);
-        ZipEditor zip = new ZipEditor(file).compressionLevel(config.getCompressionLevel());
-        ZipProcessResult result = zip.delete(source).process();
+
+        // the Zip file may only exist once the uploads waiting to be committed are
+        File file = openFile(false);
+        ZipProcessResult result = engine(file).delete(source);
         if (result.deletes() == 0) {
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
@@ -181,13 +670,28 @@ public class ZipBoxConnectorClient extends ConnectorClient {
 
     @Command(name = RENAME)
     public ConnectorCommandResult rename(OtherCommand rename) throws ConnectorException, IOException {
-        String from = rename.getSource();
-        String to = rename.getDestination();
+        return rename(rename.getSource(), rename.getDestination());
+    }
+
+    /**
+     * Renames entry (or directory) {@code from} to {@code to}.
+     * @param from the current path
+     * @param to the new path
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    ConnectorCommandResult rename(String from, String to) throws ConnectorException, IOException {
         logger.debug(String.format("RENAME '%s' '%s'", from, to));
 
-        File file = openFile(true);
-        ZipEditor zip = new ZipEditor(file).compressionLevel(config.getCompressionLevel());
-        ZipProcessResult result = zip.rename(from, to).process();
+        if (reserved(to)) {
+            return new ConnectorCommandResult(Status.Error,
+                    String.format("'%s' is reserved for administrative commands.", to));
+        }
+
+        // the Zip file may only exist once the uploads waiting to be committed are
+        File file = openFile(false);
+        ZipProcessResult result = engine(file).rename(from, to);
         if (result.deletes() == 0) {
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", from),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
@@ -200,18 +704,30 @@ public class ZipBoxConnectorClient extends ConnectorClient {
 
     @Command(name = MKDIR)
     public ConnectorCommandResult mkdir(OtherCommand mkdir) throws ConnectorException, IOException {
-        String source = mkdir.getSource();
+        return mkdir(mkdir.getSource());
+    }
+
+    /**
+     * Creates directory {@code source}.
+     * @param source the path
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    ConnectorCommandResult mkdir(String source) throws ConnectorException, IOException {
         logger.debug(String.format("MKDIR '%s'", source));
 
         if (Strings.isNullOrEmpty(source) || source.equals(".")) {
             return new ConnectorCommandResult(ConnectorCommandResult.Status.Success);
         //  return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
         //          String.format("'%s' already exists.", source));
+        } else if (reserved(source)) {
+            return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
+                    String.format("'%s' is reserved for administrative commands.", source));
         }
 
         File file = openFile(false);
-        ZipEditor zip = new ZipEditor(file).compressionLevel(config.getCompressionLevel());
-        ZipProcessResult result = zip.mkdir(source).process();
+        ZipProcessResult result = engine(file).mkdir(source);
         if (result.deletes() > 0) {
             return new ConnectorCommandResult(ConnectorCommandResult.Status.Error,
                     String.format("'%s' already exists.", source));
@@ -224,7 +740,17 @@ public class ZipBoxConnectorClient extends ConnectorClient {
 
     @Command(name = RMDIR)
     public ConnectorCommandResult rmdir(OtherCommand rmdir) throws ConnectorException, IOException {
-        String source = rmdir.getSource();
+        return rmdir(rmdir.getSource());
+    }
+
+    /**
+     * Removes directory {@code source} and its contents.
+     * @param source the path
+     * @return the command result
+     * @throws ConnectorException
+     * @throws IOException
+     */
+    ConnectorCommandResult rmdir(String source) throws ConnectorException, IOException {
         logger.debug(String.format("RMDIR '%s'", source));
 
         if (Strings.isNullOrEmpty(source) || source.equals(".")) {
@@ -233,8 +759,7 @@ public class ZipBoxConnectorClient extends ConnectorClient {
         }
 
         File file = openFile(true);
-        ZipEditor zip = new ZipEditor(file).compressionLevel(config.getCompressionLevel());
-        ZipProcessResult result = zip.rmdir(source).process();
+        ZipProcessResult result = engine(file).rmdir(source);
         if (result.deletes() == 0) {
             throw new ConnectorException(String.format("'%s' does not exist or is not accessible", source),
                     ConnectorException.Category.fileNonExistentOrNoAccess);
@@ -1,5 +1,7 @@
 package com.cleo.labs.connector.zipbox;
 
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.Deflater;
 
 import com.cleo.connector.api.property.ConnectorPropertyException;
@@ -8,6 +10,7 @@ import com.google.common.base.Strings;
 public class ZipBoxConnectorConfig {
     private ZipBoxConnectorClient client;
     private ZipBoxConnectorSchema schema;
+    private String usedPutOffset = null;
 
     public ZipBoxConnectorConfig(ZipBoxConnectorClient client, ZipBoxConnectorSchema schema) {
         this.client = client;
@@ -18,6 +21,17 @@ public class ZipBoxConnectorConfig {
         return schema.zipFile.getValue(client);
     }
 
+    /**
+     * Returns the name of the {@link ZipStorageEngine} behind the basic
+     * commands, {@link ZipEditorEngine#NAME} unless set otherwise.
+     * @return the engine name
+     * @throws ConnectorPropertyException
+     */
+    public String getStorageEngine() throws ConnectorPropertyException {
+        String value = schema.storageEngine.getValue(client);
+        return Strings.isNullOrEmpty(value) ? ZipEditorEngine.NAME : value;
+    }
+
     public int getCompressionLevel() throws ConnectorPropertyException {
         String value = schema.compressionLEvel.getValue(client);
         if (Strings.isNullOrEmpty(value) || value.equalsIgnoreCase(ZipBoxConnectorSchema.DEFAULT)) {
@@ -30,4 +44,295 @@ public class ZipBoxConnectorConfig {
             }
         }
     }
+
+    /**
+     * Returns the compression level new files are stored at, to be
+     * recompressed at the {@link #getCompressionLevel()} by {@link ZipIngest}
+     * if the two differ.
+     * @return the ingest level
+     * @throws ConnectorPropertyException
+     */
+    public int getIngestLevel() throws ConnectorPropertyException {
+        String value = schema.ingestLevel.getValue(client);
+        if (Strings.isNullOrEmpty(value) || value.equalsIgnoreCase(ZipBoxConnectorSchema.DEFAULT)) {
+            return getCompressionLevel();
+        } else {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new ConnectorPropertyException(e);
+            }
+        }
+    }
+
+    /**
+     * Returns the time the Zip file must be idle before {@link ZipIngest}
+     * recompresses it.
+     * @return the idle time in milliseconds
+     * @throws ConnectorPropertyException
+     */
+    public long getIngestIdleMillis() throws ConnectorPropertyException {
+        Integer value = schema.ingestIdleSeconds.getValue(client);
+        return value == null || value < 0 ? ZipIngest.DEFAULT_IDLE_MILLIS : value * 1000L;
+    }
+
+    /**
+     * Returns {@code true} if PUTs of content identical to the existing file
+     * should be skipped.
+     * @return {@code true} to skip unchanged PUTs
+     * @throws ConnectorPropertyException
+     */
+    public boolean getSkipUnchanged() throws ConnectorPropertyException {
+        String value = schema.skipUnchanged.getValue(client);
+        return !Strings.isNullOrEmpty(value) && !value.equalsIgnoreCase(ZipBoxConnectorSchema.OFF);
+    }
+
+    /**
+     * Returns the {@link java.security.MessageDigest} algorithm used to confirm
+     * unchanged PUTs, or {@code null} if comparing CRC and size is enough.
+     * @return the digest algorithm, or {@code null}
+     * @throws ConnectorPropertyException
+     */
+    public String getSkipUnchangedDigest() throws ConnectorPropertyException {
+        String value = schema.skipUnchanged.getValue(client);
+        return ZipBoxConnectorSchema.SHA256.equalsIgnoreCase(value) ? ZipBoxConnectorSchema.SHA256 : null;
+    }
+
+    /**
+     * Returns the commit sequence number after which a DIR lists the
+     * entries added or changed, or {@code -1} to list the directory as usual.
+     * @return the sequence number, or {@code -1} if not set
+     * @throws ConnectorPropertyException
+     */
+    public long getDirSince() throws ConnectorPropertyException {
+        String value = schema.dirSince.getValue(client);
+        if (Strings.isNullOrEmpty(value)) {
+            return -1L;
+        }
+        try {
+            long sequence = Long.parseLong(value.trim());
+            if (sequence < 0) {
+                throw new NumberFormatException(value);
+            }
+            return sequence;
+        } catch (NumberFormatException e) {
+            throw new ConnectorPropertyException(new IllegalArgumentException(String.format("invalid DirSince '%s'", value)));
+        }
+    }
+
+    /**
+     * Returns the {@code [start, end]} byte range requested for GET, where
+     * {@code end} is {@code -1} if the range extends to the end of the file,
+     * or {@code null} if no range is requested.
+     * @return the range, or {@code null}
+     * @throws ConnectorPropertyException if the range is malformed
+     */
+    public long[] getRange() throws ConnectorPropertyException {
+        String value = schema.getRange.getValue(client);
+        if (Strings.isNullOrEmpty(value)) {
+            return null;
+        }
+        Matcher m = RANGE.matcher(value.trim());
+        if (!m.matches()) {
+            throw new ConnectorPropertyException(new IllegalArgumentException(String.format("invalid GetRange '%s'", value)));
+        }
+        long start = Long.parseLong(m.group(1));
+        long end = Strings.isNullOrEmpty(m.group(2)) ? -1L : Long.parseLong(m.group(2));
+        if (end >= 0 && end < start) {
+            throw new ConnectorPropertyException(new IllegalArgumentException(String.format("invalid GetRange '%s'", value)));
+        }
+        return new long[] {start, end};
+    }
+
+    /**
+     * Returns {@code true} if a PUT should be spooled through a checkpointed
+     * {@link ZipPartial}, so that it can be resumed.
+     * @return {@code true} for resumable uploads
+     * @throws ConnectorPropertyException
+     */
+    public boolean getResumablePut() throws ConnectorPropertyException {
+        Boolean value = schema.resumablePut.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the offset the content of a resumed PUT starts from.  The
+     * offset applies to a single PUT: once {@link #usedPutOffset()} it is
+     * ignored until it is set to another value.
+     * @return the offset, or {@code 0} if not set
+     * @throws ConnectorPropertyException
+     */
+    public long getPutOffset() throws ConnectorPropertyException {
+        String value = schema.putOffset.getValue(client);
+        if (Strings.isNullOrEmpty(value) || value.equals(usedPutOffset)) {
+            return 0L;
+        }
+        try {
+            long offset = Long.parseLong(value.trim());
+            if (offset < 0) {
+                throw new NumberFormatException(value);
+            }
+            return offset;
+        } catch (NumberFormatException e) {
+            throw new ConnectorPropertyException(new IllegalArgumentException(String.format("invalid PutOffset '%s'", value)));
+        }
+    }
+
+    /**
+     * Marks the offset returned by {@link #getPutOffset()} as used by a PUT
+     * that completed, so that it does not carry over to later PUTs on the
+     * connection.
+     * @throws ConnectorPropertyException
+     */
+    public void usedPutOffset() throws ConnectorPropertyException {
+        usedPutOffset = schema.putOffset.getValue(client);
+    }
+
+    /**
+     * Returns {@code true} if a GET of a directory should download a Zip
+     * file of its contents.
+     * @return {@code true} to export directories
+     * @throws ConnectorPropertyException
+     */
+    public boolean getExportZip() throws ConnectorPropertyException {
+        Boolean value = schema.exportZip.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns {@code true} if PUTs are Zip files whose entries should be
+     * imported, rather than files to store.
+     * @return {@code true} to import PUTs
+     * @throws ConnectorPropertyException
+     */
+    public boolean getImportZip() throws ConnectorPropertyException {
+        Boolean value = schema.importZip.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns {@code true} if PUTs should be acknowledged once spooled and
+     * committed in the background by a {@link ZipCommitter}.
+     * @return {@code true} for asynchronous commits
+     * @throws ConnectorPropertyException
+     */
+    public boolean getAsyncCommit() throws ConnectorPropertyException {
+        Boolean value = schema.asyncCommit.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the maximum number of spooled PUTs waiting to be committed.
+     * @return the queue size
+     * @throws ConnectorPropertyException
+     */
+    public int getCommitQueueSize() throws ConnectorPropertyException {
+        Integer value = schema.commitQueueSize.getValue(client);
+        return value == null || value < 1 ? ZipCommitter.DEFAULT_CAPACITY : value;
+    }
+
+    /**
+     * Returns {@code true} if edits may rewrite only the tail of the Zip
+     * file in place.
+     * @return {@code true} to allow tail rewrites
+     * @throws ConnectorPropertyException
+     */
+    public boolean getTailRewrite() throws ConnectorPropertyException {
+        Boolean value = schema.tailRewrite.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the maximum number of archives the {@link ZipRewriteScheduler}
+     * rewrites at once.
+     * @return the concurrency, or {@code 0} for no limit
+     * @throws ConnectorPropertyException
+     */
+    public int getMaxConcurrentRewrites() throws ConnectorPropertyException {
+        Integer value = schema.maxConcurrentRewrites.getValue(client);
+        return value == null || value < 0 ? 0 : value;
+    }
+
+    /**
+     * Returns the maximum bytes per second written by all rewrites.
+     * @return the rate, or {@code 0} for no limit
+     * @throws ConnectorPropertyException
+     */
+    public long getRewriteRateLimit() throws ConnectorPropertyException {
+        Integer value = schema.rewriteRateLimit.getValue(client);
+        return value == null || value < 0 ? 0L : value * 1024L * 1024L;
+    }
+
+    /**
+     * Returns the maximum number of idle handles kept by the
+     * {@link ZipHandlePool}.
+     * @return the capacity, or {@code 0} to keep none
+     * @throws ConnectorPropertyException
+     */
+    public int getHandlePoolSize() throws ConnectorPropertyException {
+        Integer value = schema.handlePoolSize.getValue(client);
+        return value == null ? ZipHandlePool.DEFAULT_CAPACITY : Math.max(0, value);
+    }
+
+    /**
+     * Returns the time an idle handle stays open in the {@link ZipHandlePool}.
+     * @return the idle time in milliseconds
+     * @throws ConnectorPropertyException
+     */
+    public long getHandleIdleMillis() throws ConnectorPropertyException {
+        Integer value = schema.handleIdleSeconds.getValue(client);
+        return value == null || value < 0 ? ZipHandlePool.DEFAULT_IDLE_MILLIS : value * 1000L;
+    }
+
+    /**
+     * Returns {@code true} if a {@link ZipIndexFile} sidecar should be
+     * maintained beside the Zip file.
+     * @return {@code true} to maintain the sidecar
+     * @throws ConnectorPropertyException
+     */
+    public boolean getIndexFile() throws ConnectorPropertyException {
+        Boolean value = schema.indexFile.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the {@link ZipContentCache} configured for small files, or
+     * {@code null} if content caching is disabled.
+     * @return the cache, or {@code null}
+     * @throws ConnectorPropertyException
+     */
+    public ZipContentCache getContentCache() throws ConnectorPropertyException {
+        Integer size = schema.contentCacheSize.getValue(client);
+        if (size == null || size <= 0) {
+            return null;
+        }
+        Integer threshold = schema.contentCacheThreshold.getValue(client);
+        Boolean offHeap = schema.contentCacheOffHeap.getValue(client);
+        return ZipContentCache.of(threshold == null ? 0L : threshold, size * 1024L * 1024L,
+                offHeap != null && offHeap);
+    }
+
+    /**
+     * Returns {@code true} if the directory containing the Zip file should be
+     * watched for changes by other processes.
+     * @return {@code true} to watch the Zip file
+     * @throws ConnectorPropertyException
+     */
+    public boolean getWatchZipFile() throws ConnectorPropertyException {
+        Boolean value = schema.watchZipFile.getValue(client);
+        return value != null && value;
+    }
+
+    /**
+     * Returns the minimum milliseconds between checks of an unwatched Zip
+     * file for changes.
+     * @return the interval in milliseconds
+     * @throws ConnectorPropertyException
+     */
+    public long getStatInterval() throws ConnectorPropertyException {
+        Integer value = schema.statInterval.getValue(client);
+        return value == null || value < 0 ? 0L : value;
+    }
+
+    private static final Pattern RANGE = Pattern.compile("(\\d+)-(\\d*)");
 }
@@ -28,6 +28,15 @@ public class ZipBoxConnectorSchema extends ConnectorConfig {
             .setType(IConnectorProperty.Type.PathType)
             .build();
 
+    @Property
+    final public IConnectorProperty<String> storageEngine = new PropertyBuilder<>("StorageEngine", ZipEditorEngine.NAME)
+            .setAllowedInSetCommand(false)
+            .setDescription("How files in the Zip file are listed, read and edited: \"editor\" splices "+
+                            "changes into a copy of the Zip file, while \"zipfs\" uses the Java Zip file "+
+                            "system, which rewrites the whole Zip file when each command completes.")
+            .setPossibleValues(ZipEditorEngine.NAME, ZipFsEngine.NAME)
+            .build();
+
     public static final String DEFAULT = "default";
     @Property
     final public IConnectorProperty<String> compressionLEvel = new PropertyBuilder<>("CompressionLevel",DEFAULT)
@@ -37,6 +46,171 @@ public class ZipBoxConnectorSchema extends ConnectorConfig {
             .setPossibleValues(DEFAULT,"0","1","2","3","4","5","6","7","8","9")
             .build();
 
+    public static final String OFF = "off";
+    public static final String CRC = "CRC";
+    public static final String SHA256 = "SHA-256";
+    @Property
+    final public IConnectorProperty<String> skipUnchanged = new PropertyBuilder<>("SkipUnchanged", OFF)
+            .setAllowedInSetCommand(true)
+            .setDescription("Skip PUTs whose content is identical to the existing file, comparing "+
+                            "CRC and size, or CRC, size and an SHA-256 digest.")
+            .setPossibleValues(OFF, CRC, SHA256)
+            .build();
+
+    @Property
+    final public IConnectorProperty<String> dirSince = new PropertyBuilder<>("DirSince", "")
+            .setRequired(false)
+            .setAllowedInSetCommand(true)
+            .setDescription("List only the entries below the DIR path (at any depth) or matching its "+
+                            "pattern that were added or changed after this commit sequence number "+
+                            "(see .zipbox/sequence).  Leave empty to list the directory as usual.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<String> getRange = new PropertyBuilder<>("GetRange", "")
+            .setRequired(false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Byte range for GET as \"start-\" or \"start-end\" (inclusive), "+
+                            "e.g. to resume an interrupted download.  Leave empty to GET entire files.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> resumablePut = new PropertyBuilder<>("ResumablePut", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Keep the partial content of each PUT in a checkpointed file beside the Zip "+
+                            "file, so that a PUT to the same path that was cut short can be resumed.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<String> putOffset = new PropertyBuilder<>("PutOffset", "")
+            .setRequired(false)
+            .setAllowedInSetCommand(true)
+            .setDescription("The offset the content of the next resumed PUT starts from, at most the size "+
+                            "checkpointed (see .zipbox/partial).  It is ignored by later PUTs until set to "+
+                            "another value.  Leave empty when the PUT sends the entire file, which skips the "+
+                            "content already checkpointed if unchanged.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> exportZip = new PropertyBuilder<>("ExportZip", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("GET of a directory downloads a Zip file of the directory and its "+
+                            "contents, copying their compressed data as is.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> importZip = new PropertyBuilder<>("ImportZip", false)
+            .setAllowedInSetCommand(true)
+            .setDescription("Treat each PUT as a Zip file whose entries are added to the directory "+
+                            "of the destination path, copying their compressed data as is.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> asyncCommit = new PropertyBuilder<>("AsyncCommit", false)
+            .setAllowedInSetCommand(false)
+            .setDescription("Acknowledge each PUT once it is durably spooled, and commit the spooled "+
+                            "files to the Zip file in the background, in order.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> commitQueueSize = new PropertyBuilder<>("CommitQueueSize", ZipCommitter.DEFAULT_CAPACITY)
+            .setAllowedInSetCommand(false)
+            .setDescription("The maximum number of spooled PUTs waiting to be committed when AsyncCommit "+
+                            "is enabled, beyond which PUTs wait for the commits to catch up.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<String> ingestLevel = new PropertyBuilder<>("IngestLevel",DEFAULT)
+            .setAllowedInSetCommand(false)
+            .setDescription("Compression level 0-9 for new files, or default to use the CompressionLevel. "+
+                            "Files stored at a different level are recompressed at the CompressionLevel "+
+                            "once the Zip file has been idle for IngestIdleSeconds.")
+            .setPossibleValues(DEFAULT,"0","1","2","3","4","5","6","7","8","9")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> ingestIdleSeconds = new PropertyBuilder<>("IngestIdleSeconds", (int) (ZipIngest.DEFAULT_IDLE_MILLIS / 1000))
+            .setAllowedInSetCommand(false)
+            .setDescription("The number of seconds the Zip file must go unused before files stored at "+
+                            "the IngestLevel are recompressed.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> tailRewrite = new PropertyBuilder<>("TailRewrite", false)
+            .setAllowedInSetCommand(false)
+            .setDescription("Rewrite only the end of the Zip file in place, from the first file that "+
+                            "changes, when that is less than half of it, instead of copying the whole file.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> maxConcurrentRewrites = new PropertyBuilder<>("MaxConcurrentRewrites", 0)
+            .setAllowedInSetCommand(false)
+            .setDescription("The maximum number of Zip files rewritten at once on this node, with "+
+                            "smaller edits going first (0 for no limit).")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> rewriteRateLimit = new PropertyBuilder<>("RewriteRateLimit", 0)
+            .setAllowedInSetCommand(false)
+            .setDescription("The maximum megabytes per second written by all Zip file rewrites on "+
+                            "this node together (0 for no limit).")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> handlePoolSize = new PropertyBuilder<>("HandlePoolSize", ZipHandlePool.DEFAULT_CAPACITY)
+            .setAllowedInSetCommand(false)
+            .setDescription("The maximum number of idle open Zip files kept on this node for the next "+
+                            "GET, ATTR or DIR to reuse (0 to close them once read).")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> handleIdleSeconds = new PropertyBuilder<>("HandleIdleSeconds", (int) (ZipHandlePool.DEFAULT_IDLE_MILLIS / 1000))
+            .setAllowedInSetCommand(false)
+            .setDescription("The number of seconds an idle open Zip file is kept.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> indexFile = new PropertyBuilder<>("IndexFile", false)
+            .setAllowedInSetCommand(false)
+            .setDescription("Maintain a sorted index of the Zip file in a .idx file beside it, "+
+                            "which is memory-mapped instead of parsing the Zip file after a restart.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> contentCacheSize = new PropertyBuilder<>("ContentCacheSize", 0)
+            .setAllowedInSetCommand(false)
+            .setDescription("Megabytes of memory for caching the content of small files that are "+
+                            "fetched repeatedly (0 to disable the cache).")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> contentCacheThreshold = new PropertyBuilder<>("ContentCacheThreshold", 64 * 1024)
+            .setAllowedInSetCommand(false)
+            .setDescription("The size in bytes of the largest file whose content is cached.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> contentCacheOffHeap = new PropertyBuilder<>("ContentCacheOffHeap", false)
+            .setAllowedInSetCommand(false)
+            .setDescription("Hold cached content in direct buffers outside the Java heap.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Boolean> watchZipFile = new PropertyBuilder<>("WatchZipFile", false)
+            .setAllowedInSetCommand(false)
+            .setDescription("Watch the directory containing the Zip file for changes made by other "+
+                            "processes instead of checking the file on each command.  Not suitable "+
+                            "for network filesystems shared with other hosts.")
+            .build();
+
+    @Property
+    final public IConnectorProperty<Integer> statInterval = new PropertyBuilder<>("StatInterval", 0)
+            .setAllowedInSetCommand(false)
+            .setDescription("When the Zip file is not watched, the minimum number of milliseconds "+
+                            "between checks of the Zip file for changes made by other processes "+
+                            "(0 to check on every command).")
+            .build();
+
     @Property
     final IConnectorProperty<Boolean> enableDebug = CommonProperties.of(CommonProperty.EnableDebug);
 
@@ -0,0 +1,719 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A lightweight reader for the central directory of a Zip file.  Unlike
+ * {@link java.util.zip.ZipFile}, the {@code ZipCentralDirectory} exposes the
+ * location of each entry's data within the file, so that entries can be read
+ * with positional reads on a shared {@link FileChannel} and inflated with
+ * pooled {@link Inflater}s from a {@link ZipCodecPool}.
+ * <p/>
+ * Zip64 archives are supported.  Entry names are decoded as UTF-8, which
+ * matches the default behavior of {@code ZipFile}.
+ */
+public class ZipCentralDirectory implements Closeable {
+
+    static final int LOCSIG = 0x04034b50;
+    static final int CENSIG = 0x02014b50;
+    static final int ENDSIG = 0x06054b50;
+    static final int ZIP64_ENDSIG = 0x06064b50;
+    static final int ZIP64_LOCSIG = 0x07064b50;
+    static final int LOCHDR = 30;
+    static final int CENHDR = 46;
+    static final int ENDHDR = 22;
+    static final int ZIP64_ENDHDR = 56;
+    static final int ZIP64_LOCHDR = 20;
+    static final int ZIP64_EXTID = 0x0001;
+    static final long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    static final int ZIP64_MAGICCOUNT = 0xFFFF;
+
+    /**
+     * A single central directory record.  In addition to the usual
+     * {@link ZipEntry} properties, a {@code Record} knows the offset of
+     * its local header within the archive.
+     */
+    public static class Record {
+        private final String name;
+        private final int flags;
+        private final int method;
+        private final long dosTime;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long offset;
+        private final byte[] extra;
+        private final String comment;
+
+        Record(String name, int flags, int method, long dosTime, long crc,
+                long compressedSize, long size, long offset, byte[] extra, String comment) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+            this.extra = extra;
+            this.comment = comment;
+        }
+        public String name() {
+            return name;
+        }
+        public int flags() {
+            return flags;
+        }
+        public int method() {
+            return method;
+        }
+        public long dosTime() {
+            return dosTime;
+        }
+        public long crc() {
+            return crc;
+        }
+        public long compressedSize() {
+            return compressedSize;
+        }
+        public long size() {
+            return size;
+        }
+        /**
+         * Returns the offset of the entry's local header in the archive.
+         * @return the local header offset
+         */
+        public long offset() {
+            return offset;
+        }
+        /**
+         * Returns the central directory extra field with any Zip64
+         * extended information removed, since that is regenerated as
+         * needed whenever the entry is written.
+         * @return the extra field (possibly empty, but never {@code null})
+         */
+        public byte[] extra() {
+            return extra;
+        }
+        public String comment() {
+            return comment;
+        }
+        public boolean isDirectory() {
+            return name.endsWith(ZipEditor.DELIMITER);
+        }
+        /**
+         * Returns the entry's modification time in Java milliseconds,
+         * decoded from the MS-DOS date and time fields.
+         * @return the modification time
+         */
+        public long time() {
+            return dosToJavaTime(dosTime);
+        }
+        /**
+         * Returns a {@link ZipEntry} equivalent to this record, as
+         * would have been returned by {@link java.util.zip.ZipFile}.
+         * @return a new {@link ZipEntry}
+         */
+        public ZipEntry toZipEntry() {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(time());
+            if (extra.length > 0) {
+                entry.setExtra(extra);
+            }
+            if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED) {
+                entry.setMethod(method);
+            }
+            entry.setCrc(crc);
+            entry.setSize(size);
+            entry.setCompressedSize(compressedSize);
+            if (comment != null) {
+                entry.setComment(comment);
+            }
+            return entry;
+        }
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Reader reader;
+    private final boolean owner;
+    private final List<Record> records;
+    private final Map<String,Record> index;
+    private final long centralDirectoryOffset;
+    private final long centralDirectorySize;
+    private final String comment;
+
+    /**
+     * Opens {@code file} and reads its central directory.
+     * @param file the Zip file
+     * @throws FileNotFoundException if the file does not exist
+     * @throws ZipException if the file is empty or not a Zip file
+     * @throws IOException
+     */
+    public ZipCentralDirectory(File file) throws IOException {
+        this(new Reader(file), true);
+    }
+
+    /**
+     * Reads the central directory of an archive already open through
+     * {@code reader}, such as the file of a pinned {@link ZipGeneration}.
+     * The reader is left open when the directory is closed.
+     * @param reader the open archive
+     * @throws ZipException if the file is empty or not a Zip file
+     * @throws IOException
+     */
+    public ZipCentralDirectory(Reader reader) throws IOException {
+        this(reader, false);
+    }
+
+    private ZipCentralDirectory(Reader reader, boolean owner) throws IOException {
+        this.reader = reader;
+        this.owner = owner;
+        try {
+            long length = reader.channel().size();
+            if (length == 0) {
+                throw new ZipException("zip file is empty");
+            }
+            int tail = (int) Math.min(length, ENDHDR + 0xFFFF);
+            ByteBuffer end = read(length - tail, tail);
+            int pos = -1;
+            for (int i = tail - ENDHDR; i >= 0; i--) {
+                if (end.getInt(i) == ENDSIG && i + ENDHDR + (end.getShort(i + 20) & 0xFFFF) <= tail) {
+                    pos = i;
+                    break;
+                }
+            }
+            if (pos < 0) {
+                throw new ZipException("zip END header not found");
+            }
+            long endOffset = length - tail + pos;
+            long cdSize = end.getInt(pos + 12) & 0xFFFFFFFFL;
+            long cdOffset = end.getInt(pos + 16) & 0xFFFFFFFFL;
+            int commentLength = end.getShort(pos + 20) & 0xFFFF;
+            this.comment = commentLength == 0 ? null
+                    : new String(end.array(), pos + ENDHDR, commentLength, StandardCharsets.UTF_8);
+            if (endOffset >= ZIP64_LOCHDR) {
+                ByteBuffer locator = read(endOffset - ZIP64_LOCHDR, ZIP64_LOCHDR);
+                if (locator.getInt(0) == ZIP64_LOCSIG) {
+                    ByteBuffer end64 = read(locator.getLong(8), ZIP64_ENDHDR);
+                    if (end64.getInt(0) != ZIP64_ENDSIG) {
+                        throw new ZipException("invalid zip64 END header");
+                    }
+                    cdSize = end64.getLong(40);
+                    cdOffset = end64.getLong(48);
+                }
+            }
+            if (cdSize > Integer.MAX_VALUE || cdOffset + cdSize > endOffset) {
+                throw new ZipException("invalid END header (bad central directory size or offset)");
+            }
+            this.centralDirectoryOffset = cdOffset;
+            this.centralDirectorySize = cdSize;
+            this.records = parse(read(cdOffset, (int) cdSize));
+            this.index = new HashMap<>(records.size() * 4 / 3 + 1);
+            for (Record record : records) {
+                index.putIfAbsent(record.name(), record);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (owner) {
+                reader.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Parses the central directory records from {@code cd}.
+     * @param cd a buffer holding the entire central directory
+     * @return the list of {@link Record}s in directory order
+     * @throws ZipException if the directory is malformed
+     */
+    private static List<Record> parse(ByteBuffer cd) throws ZipException {
+        List<Record> result = new ArrayList<>();
+        int pos = 0;
+        int limit = cd.limit();
+        while (pos + CENHDR <= limit) {
+            if (cd.getInt(pos) != CENSIG) {
+                throw new ZipException("invalid CEN header (bad signature)");
+            }
+            int flags = cd.getShort(pos + 8) & 0xFFFF;
+            int method = cd.getShort(pos + 10) & 0xFFFF;
+            long dosTime = cd.getInt(pos + 12) & 0xFFFFFFFFL;
+            long crc = cd.getInt(pos + 16) & 0xFFFFFFFFL;
+            long csize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = cd.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+            int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+            int commentLength = cd.getShort(pos + 32) & 0xFFFF;
+            long offset = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+            int next = pos + CENHDR + nameLength + extraLength + commentLength;
+            if (next > limit) {
+                throw new ZipException("invalid CEN header (bad header size)");
+            }
+            String name = new String(cd.array(), pos + CENHDR, nameLength, StandardCharsets.UTF_8);
+            int extraStart = pos + CENHDR + nameLength;
+            byte[] extra = new byte[0];
+            if (extraLength > 0) {
+                // pull the zip64 values out of the extra field (if any), and strip them
+                ByteBuffer ext = ByteBuffer.wrap(cd.array(), extraStart, extraLength).slice().order(ByteOrder.LITTLE_ENDIAN);
+                int e = 0;
+                while (e + 4 <= extraLength) {
+                    int id = ext.getShort(e) & 0xFFFF;
+                    int sz = ext.getShort(e + 2) & 0xFFFF;
+                    if (id == ZIP64_EXTID) {
+                        int p = e + 4;
+                        int end = Math.min(e + 4 + sz, extraLength);
+                        if (size == ZIP64_MAGICVAL && p + 8 <= end) {
+                            size = ext.getLong(p);
+                            p += 8;
+                        }
+                        if (csize == ZIP64_MAGICVAL && p + 8 <= end) {
+                            csize = ext.getLong(p);
+                            p += 8;
+                        }
+                        if (offset == ZIP64_MAGICVAL && p + 8 <= end) {
+                            offset = ext.getLong(p);
+                            p += 8;
+                        }
+                    }
+                    e += 4 + sz;
+                }
+                extra = stripZip64(cd.array(), extraStart, extraLength);
+            }
+            String comment = commentLength == 0 ? null
+                    : new String(cd.array(), extraStart + extraLength, commentLength, StandardCharsets.UTF_8);
+            result.add(new Record(name, flags, method, dosTime, crc, csize, size, offset, extra, comment));
+            pos = next;
+        }
+        return result;
+    }
+
+    /**
+     * Returns a copy of an extra field with any Zip64 extended information
+     * blocks removed.
+     * @param buf the buffer holding the extra field
+     * @param off the offset of the extra field in {@code buf}
+     * @param len the length of the extra field
+     * @return the stripped extra field (possibly empty)
+     */
+    static byte[] stripZip64(byte[] buf, int off, int len) {
+        ByteBuffer out = ByteBuffer.allocate(len);
+        int e = 0;
+        while (e + 4 <= len) {
+            int id = (buf[off + e] & 0xFF) | (buf[off + e + 1] & 0xFF) << 8;
+            int sz = (buf[off + e + 2] & 0xFF) | (buf[off + e + 3] & 0xFF) << 8;
+            int blockLength = Math.min(4 + sz, len - e);
+            if (id != ZIP64_EXTID) {
+                out.put(buf, off + e, blockLength);
+            }
+            e += 4 + sz;
+        }
+        byte[] result = new byte[out.position()];
+        System.arraycopy(out.array(), 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Converts MS-DOS date and time fields (date in the high 16 bits)
+     * to Java milliseconds in the default time zone.
+     * @param dosTime the MS-DOS date and time
+     * @return the Java time
+     */
+    static long dosToJavaTime(long dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set((int) (((dosTime >> 25) & 0x7f) + 1980),
+                     (int) (((dosTime >> 21) & 0x0f) - 1),
+                     (int) ((dosTime >> 16) & 0x1f),
+                     (int) ((dosTime >> 11) & 0x1f),
+                     (int) ((dosTime >> 5) & 0x3f),
+                     (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        return reader.read(position, length);
+    }
+
+    /**
+     * Returns the {@link File} this directory was read from.
+     * @return the {@link File}
+     */
+    public File file() {
+        return reader.file();
+    }
+
+    /**
+     * Returns the {@link FileChannel} open on the archive, which may be
+     * used concurrently for positional reads.
+     * @return the {@link FileChannel}
+     */
+    public FileChannel channel() {
+        return reader.channel();
+    }
+
+    /**
+     * Returns the {@link Reader} for entry data on this directory's channel.
+     * @return the {@link Reader}
+     */
+    public Reader reader() {
+        return reader;
+    }
+
+    /**
+     * Returns the records in central directory order.
+     * @return an unmodifiable list of {@link Record}
+     */
+    public List<Record> records() {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Returns the record named exactly {@code name}.
+     * @param name the entry name
+     * @return the {@link Record}, or {@code Optional.empty()}
+     */
+    public Optional<Record> record(String name) {
+        return Optional.ofNullable(index.get(name));
+    }
+
+    /**
+     * Finds an entry the way {@link java.util.zip.ZipFile#getEntry(String)}
+     * does, trying {@code name} and then {@code name/}.
+     * @param name the entry name
+     * @return the {@link Record}, or {@code Optional.empty()}
+     */
+    public Optional<Record> find(String name) {
+        Record record = index.get(name);
+        if (record == null) {
+            record = index.get(ZipEditor.normalizeDirectoryName(name));
+        }
+        return Optional.ofNullable(record);
+    }
+
+    public long centralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    public long centralDirectorySize() {
+        return centralDirectorySize;
+    }
+
+    public String comment() {
+        return comment;
+    }
+
+    /**
+     * Returns the offset of {@code record}'s data, just past its local header.
+     * @see Reader#dataOffset(Record)
+     */
+    public long dataOffset(Record record) throws IOException {
+        return reader.dataOffset(record);
+    }
+
+    /**
+     * Returns a stream of the raw (still compressed) bytes of {@code record}.
+     * @see Reader#openRaw(Record)
+     */
+    public InputStream openRaw(Record record) throws IOException {
+        return reader.openRaw(record);
+    }
+
+    /**
+     * Returns a stream of the uncompressed bytes of {@code record}.
+     * @see Reader#open(Record, ZipCodecPool)
+     */
+    public InputStream open(Record record, ZipCodecPool pool) throws IOException {
+        return reader.open(record, pool);
+    }
+
+    /**
+     * Returns a stream of the uncompressed bytes of {@code record} starting
+     * at {@code offset}.
+     * @see Reader#open(Record, long, long, ZipCodecPool)
+     */
+    public InputStream open(Record record, long offset, long span, ZipCodecPool pool) throws IOException {
+        return reader.open(record, offset, span, pool);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (owner) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads entry data from an archive with positional reads on a
+     * {@link FileChannel}.  A {@code ZipCentralDirectory} has a {@code Reader}
+     * on its own channel, but additional {@code Reader}s may be opened on
+     * the same archive, each with its own channel, for parallel reads.
+     */
+    public static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel channel;
+
+        /**
+         * Opens a new channel on {@code file}.
+         * @param file the archive
+         * @throws FileNotFoundException if the file does not exist
+         */
+        @SuppressWarnings("resource")
+        public Reader(File file) throws FileNotFoundException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        public File file() {
+            return file;
+        }
+
+        public FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Reads {@code length} bytes at {@code position} into a new little-endian buffer.
+         * @param position the file position
+         * @param length the number of bytes
+         * @return a buffer with the bytes
+         * @throws IOException
+         */
+        ByteBuffer read(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("unexpected end of zip file");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        /**
+         * Returns the offset of {@code record}'s data, just past its local header.
+         * @param record the {@link Record}
+         * @return the file offset of the (possibly compressed) entry data
+         * @throws IOException
+         */
+        public long dataOffset(Record record) throws IOException {
+            ByteBuffer loc = read(record.offset(), LOCHDR);
+            if (loc.getInt(0) != LOCSIG) {
+                throw new ZipException("invalid LOC header (bad signature) for " + record.name());
+            }
+            return record.offset() + LOCHDR + (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF);
+        }
+
+        /**
+         * Returns a stream of the raw (still compressed) bytes of {@code record}.
+         * @param record the {@link Record}
+         * @return an {@link InputStream}, which does not close the channel
+         * @throws IOException
+         */
+        public InputStream openRaw(Record record) throws IOException {
+            return new ChannelInputStream(channel, dataOffset(record), record.compressedSize());
+        }
+
+        /**
+         * Returns a stream of the uncompressed bytes of {@code record}.  A
+         * {@code DEFLATED} entry is inflated with an {@link Inflater} borrowed
+         * from {@code pool}, which is returned to the pool when the stream is
+         * closed.
+         * @param record the {@link Record}
+         * @param pool the {@link ZipCodecPool} to borrow from
+         * @return an {@link InputStream}, which does not close the channel
+         * @throws IOException
+         */
+        public InputStream open(Record record, ZipCodecPool pool) throws IOException {
+            switch (record.method()) {
+            case ZipEntry.STORED:
+                return openRaw(record);
+            case ZipEntry.DEFLATED:
+                return new PooledInflaterInputStream(openRaw(record), pool, record.size());
+            default:
+                throw new ZipException("unsupported compression method " + record.method() + " for " + record.name());
+            }
+        }
+
+        /**
+         * Returns a stream of the uncompressed bytes of {@code record} starting
+         * at {@code offset}.  A {@code STORED} entry is simply positioned at the
+         * offset.  A {@code DEFLATED} entry is inflated from the nearest
+         * checkpoint of its (cached) {@link ZipInflateIndex}.
+         * @param record the {@link Record}
+         * @param offset the uncompressed offset to start at
+         * @param span the distance between {@link ZipInflateIndex} checkpoints
+         * @param pool the {@link ZipCodecPool} to borrow from
+         * @return an {@link InputStream}, which does not close the channel
+         * @throws IOException
+         */
+        public InputStream open(Record record, long offset, long span, ZipCodecPool pool) throws IOException {
+            if (offset <= 0) {
+                return open(record, pool);
+            }
+            offset = Math.min(offset, record.size());
+            switch (record.method()) {
+            case ZipEntry.STORED:
+                return new ChannelInputStream(channel, dataOffset(record) + offset, record.size() - offset);
+            case ZipEntry.DEFLATED:
+                if (offset == record.size()) {
+                    return new ChannelInputStream(channel, 0, 0);
+                }
+                return ZipInflateIndex.of(file, record, span).open(channel, dataOffset(record), record, offset, pool);
+            default:
+                throw new ZipException("unsupported compression method " + record.method() + " for " + record.name());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * An {@link InputStream} over a range of a {@link FileChannel} using
+     * positional reads, so many streams may share one channel.
+     */
+    static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        public ChannelInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (n < 0) {
+                throw new EOFException("unexpected end of zip file");
+            }
+            position += n;
+            return n;
+        }
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    /**
+     * An {@link InflaterInputStream} using a pooled {@link Inflater}.  Like
+     * the stream returned by {@code ZipFile}, it supplies a dummy byte at the
+     * end of the input, which nowrap inflation may require.
+     */
+    static class PooledInflaterInputStream extends InflaterInputStream {
+        private final ZipCodecPool pool;
+        private long remaining;
+        private boolean eof = false;
+        private boolean released = false;
+
+        public PooledInflaterInputStream(InputStream in, ZipCodecPool pool, long size) {
+            this(in, pool, pool.borrowInflater(), size);
+        }
+        /**
+         * Creates a stream using an {@link Inflater} already borrowed from
+         * {@code pool} (and possibly primed with a dictionary).  The
+         * {@code Inflater} is returned to the pool on {@code close()}.
+         */
+        public PooledInflaterInputStream(InputStream in, ZipCodecPool pool, Inflater inflater, long size) {
+            super(in, inflater, 8192);
+            this.pool = pool;
+            this.remaining = size;
+        }
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+        @Override
+        public int available() throws IOException {
+            if (released) {
+                throw new IOException("stream closed");
+            }
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, remaining));
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (released) {
+                throw new IOException("stream closed");
+            }
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+        @Override
+        public long skip(long n) throws IOException {
+            byte[] discard = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int got = read(discard, 0, (int) Math.min(discard.length, n - skipped));
+                if (got < 0) {
+                    break;
+                }
+                skipped += got;
+            }
+            return skipped;
+        }
+        @Override
+        public void close() throws IOException {
+            if (!released) {
+                released = true;
+                pool.release(inf);
+                in.close();
+            }
+        }
+    }
+}
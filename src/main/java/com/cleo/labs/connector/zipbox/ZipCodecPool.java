@@ -0,0 +1,199 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A bounded pool of {@link Deflater} and {@link Inflater} instances shared
+ * across {@link ZipEditor} invocations.  Each instance holds native zlib
+ * memory that is otherwise released only by {@code end()} or finalization,
+ * so reusing them avoids churning native memory when many commands run
+ * in quick succession.
+ * <p/>
+ * All instances are created in "nowrap" mode, which is the raw deflate
+ * format used inside Zip entries.  {@code Deflater}s are pooled separately
+ * for each compression level.  At most {@code capacity} idle instances are
+ * retained per level (and for {@code Inflater}s): returning an instance to
+ * a full pool simply ends it.
+ */
+public class ZipCodecPool {
+
+    /**
+     * The default number of idle instances retained per compression level.
+     */
+    public static final int DEFAULT_CAPACITY = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final ZipCodecPool DEFAULT = new ZipCodecPool(DEFAULT_CAPACITY);
+
+    /**
+     * Returns the JVM-wide pool shared by all {@link ZipEditor}s.
+     * @return the shared pool
+     */
+    public static ZipCodecPool getDefault() {
+        return DEFAULT;
+    }
+
+    private final int capacity;
+    private final List<Deque<Deflater>> deflaters;
+    private final Deque<Inflater> inflaters;
+    private final AtomicLong deflaterHits = new AtomicLong();
+    private final AtomicLong deflaterMisses = new AtomicLong();
+    private final AtomicLong inflaterHits = new AtomicLong();
+    private final AtomicLong inflaterMisses = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * Creates a new empty pool.
+     * @param capacity the maximum number of idle instances retained per level
+     */
+    public ZipCodecPool(int capacity) {
+        this.capacity = capacity;
+        // levels DEFAULT_COMPRESSION (-1) through BEST_COMPRESSION (9)
+        this.deflaters = new ArrayList<>(Deflater.BEST_COMPRESSION + 2);
+        for (int i = 0; i < Deflater.BEST_COMPRESSION + 2; i++) {
+            deflaters.add(new ArrayDeque<>());
+        }
+        this.inflaters = new ArrayDeque<>();
+    }
+
+    /**
+     * Maps a compression level to its slot in {@code deflaters}.
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1)
+     * @return the slot
+     */
+    private Deque<Deflater> slot(int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        return deflaters.get(level + 1);
+    }
+
+    /**
+     * Borrows a nowrap {@link Deflater} set to {@code level}, reusing
+     * an idle one if available.
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1)
+     * @return a {@link Deflater} ready for use
+     */
+    public Deflater borrowDeflater(int level) {
+        Deque<Deflater> idle = slot(level);
+        Deflater deflater;
+        synchronized (idle) {
+            deflater = idle.pollFirst();
+        }
+        if (deflater != null) {
+            deflaterHits.incrementAndGet();
+            return deflater;
+        }
+        deflaterMisses.incrementAndGet();
+        return new Deflater(level, true);
+    }
+
+    /**
+     * Returns a {@link Deflater} obtained from {@link #borrowDeflater(int)}
+     * to the pool.  The {@code Deflater} is reset and its level restored,
+     * and it must not be used by the caller afterwards.
+     * @param deflater the {@link Deflater} to return
+     * @param level the level it was borrowed at
+     */
+    public void release(Deflater deflater, int level) {
+        Deque<Deflater> idle = slot(level);
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+        synchronized (idle) {
+            if (idle.size() < capacity) {
+                idle.addFirst(deflater);
+                return;
+            }
+        }
+        discards.incrementAndGet();
+        deflater.end();
+    }
+
+    /**
+     * Borrows a nowrap {@link Inflater}, reusing an idle one if available.
+     * @return an {@link Inflater} ready for use
+     */
+    public Inflater borrowInflater() {
+        Inflater inflater;
+        synchronized (inflaters) {
+            inflater = inflaters.pollFirst();
+        }
+        if (inflater != null) {
+            inflaterHits.incrementAndGet();
+            return inflater;
+        }
+        inflaterMisses.incrementAndGet();
+        return new Inflater(true);
+    }
+
+    /**
+     * Returns an {@link Inflater} obtained from {@link #borrowInflater()}
+     * to the pool.  The {@code Inflater} is reset and must not be used by the
+     * caller afterwards.
+     * @param inflater the {@link Inflater} to return
+     */
+    public void release(Inflater inflater) {
+        inflater.reset();
+        synchronized (inflaters) {
+            if (inflaters.size() < capacity) {
+                inflaters.addFirst(inflater);
+                return;
+            }
+        }
+        discards.incrementAndGet();
+        inflater.end();
+    }
+
+    /**
+     * Returns the number of {@link Deflater} borrows satisfied from the pool.
+     * @return the hit count
+     */
+    public long deflaterHits() {
+        return deflaterHits.get();
+    }
+
+    /**
+     * Returns the number of {@link Deflater} borrows that allocated a new instance.
+     * @return the miss count
+     */
+    public long deflaterMisses() {
+        return deflaterMisses.get();
+    }
+
+    /**
+     * Returns the number of {@link Inflater} borrows satisfied from the pool.
+     * @return the hit count
+     */
+    public long inflaterHits() {
+        return inflaterHits.get();
+    }
+
+    /**
+     * Returns the number of {@link Inflater} borrows that allocated a new instance.
+     * @return the miss count
+     */
+    public long inflaterMisses() {
+        return inflaterMisses.get();
+    }
+
+    /**
+     * Returns the number of instances ended because the pool was full
+     * when they were released.
+     * @return the discard count
+     */
+    public long discards() {
+        return discards.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("deflater hits=%d misses=%d, inflater hits=%d misses=%d, discards=%d",
+                deflaterHits(), deflaterMisses(), inflaterHits(), inflaterMisses(), discards());
+    }
+}
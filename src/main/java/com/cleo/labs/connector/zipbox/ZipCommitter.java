@@ -0,0 +1,528 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipEntry;
+
+/**
+ * A {@code ZipCommitter} decouples {@code PUT} from the rewrite of the
+ * archive.  Each upload is spooled durably into a directory beside the
+ * archive and acknowledged at once, and a dedicated thread per archive
+ * applies the queued uploads to the archive in order, as many as have
+ * accumulated in each rewrite.
+ * <p/>
+ * The queue of uploads waiting to be committed is bounded: once it is
+ * full, {@link #commit(String, ZipSpool)} blocks until the committer
+ * catches up, applying backpressure to the clients.  Until it is committed,
+ * an upload is visible through {@link #pending(String)} so that reads
+ * can see it.
+ * <p/>
+ * Each upload is spooled as {@code <sequence>.data}, made durable, and
+ * then recorded by writing its entry name, CRC-32, size and whether it
+ * was deflated at the {@link ZipIngest} level to {@code <sequence>.path}
+ * (written in full to a temporary file and renamed into place).  Uploads
+ * are queued in sequence order, however their writes interleave, so a
+ * later upload of a path always replaces an earlier one.  A committer
+ * started on an archive whose spool directory holds recorded uploads (for
+ * example after a crash) commits them before accepting new ones.
+ * <p/>
+ * All rewrites of an archive, whether by the committer or by other
+ * {@link ZipEditor}s, should hold the archive's {@link #lock(File)},
+ * which the {@link ZipRewriteScheduler} takes for each rewrite it runs.
+ */
+public class ZipCommitter implements Closeable {
+
+    /**
+     * The default bound on the number of uploads waiting to be committed.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final String DATA = ".data";
+    private static final String PATH = ".path";
+    private static final String TEMP = ".tmp";
+    private static final long RETRY_MILLIS = 1000L;
+    private static final long MAX_RETRY_MILLIS = 60000L;
+
+    private static final Map<String,ZipCommitter> COMMITTERS = new HashMap<>();
+    private static final Map<String,ReentrantLock> LOCKS = new HashMap<>();
+
+    /**
+     * Returns the shared lock to hold while rewriting {@code archive}.
+     * @param archive the archive
+     * @return the lock
+     * @throws IOException
+     */
+    public static ReentrantLock lock(File archive) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (LOCKS) {
+            return LOCKS.computeIfAbsent(key, (k) -> new ReentrantLock());
+        }
+    }
+
+    /**
+     * Returns the committer for {@code archive}, starting it if needed.
+     * The {@code capacity} and {@code level} are those of the call that
+     * started the committer.
+     * @param archive the archive
+     * @param capacity the maximum number of uploads waiting to be committed
+     * @param level the compression level for committed entries
+     * @return the committer
+     * @throws IOException if uploads left in the spool directory can not be committed
+     */
+    public static ZipCommitter of(File archive, int capacity, int level) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (COMMITTERS) {
+            ZipCommitter committer = COMMITTERS.get(key);
+            if (committer == null) {
+                committer = new ZipCommitter(new File(key), capacity, level);
+                COMMITTERS.put(key, committer);
+            }
+            return committer;
+        }
+    }
+
+    /**
+     * Returns the running committer for {@code archive}, if any.
+     * @param archive the archive
+     * @return the committer, or {@code Optional.empty()}
+     * @throws IOException
+     */
+    public static Optional<ZipCommitter> existing(File archive) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (COMMITTERS) {
+            return Optional.ofNullable(COMMITTERS.get(key));
+        }
+    }
+
+    /**
+     * Runs {@code rewrite} after committing any uploads waiting in the
+     * background, while holding the archive's lock against the committer,
+     * once the {@link ZipRewriteScheduler} gives it a turn.
+     * @param archive the archive
+     * @param rewrite the rewrite
+     * @return the result of the rewrite
+     * @throws IOException
+     */
+    public static <T> T exclusive(File archive, ZipRewriteScheduler.Rewrite<T> rewrite) throws IOException {
+        Optional<ZipCommitter> committer = existing(archive);
+        if (committer.isPresent()) {
+            committer.get().flush();
+        }
+        return ZipRewriteScheduler.getDefault().run(archive, archive.length(), rewrite);
+    }
+
+    /**
+     * An upload that has been spooled but not yet committed.
+     */
+    public static class Pending {
+        private final long sequence;
+        private final String path;
+        private final ZipSpool spool;
+        private final long time;
+        private Pending(long sequence, String path, ZipSpool spool) {
+            this.sequence = sequence;
+            this.path = path;
+            this.spool = spool;
+            this.time = spool.file().lastModified();
+        }
+        public long sequence() {
+            return sequence;
+        }
+        public String path() {
+            return path;
+        }
+        public File data() {
+            return spool.file();
+        }
+        public ZipSpool spool() {
+            return spool;
+        }
+        public long size() {
+            return spool.size();
+        }
+        public long time() {
+            return time;
+        }
+        /**
+         * Returns a {@link ZipEntry} describing the upload as it will appear
+         * once committed.
+         * @return a {@link ZipEntry}
+         */
+        public ZipEntry toZipEntry() {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(time);
+            entry.setSize(spool.size());
+            return entry;
+        }
+        /**
+         * Opens the spooled content.  Once the upload is committed the
+         * spooled file is deleted, so this may fail after the upload has
+         * been observed, in which case the content is in the archive.
+         * @return an {@link InputStream}
+         * @throws java.io.FileNotFoundException if the upload has since been committed
+         */
+        public InputStream open() throws IOException {
+            return spool.open();
+        }
+    }
+
+    private final File archive;
+    private final File directory;
+    private final int level;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Semaphore slots;
+    private final Map<String,Pending> pending = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private long sequence = 0L;
+    private long queued = 0L;
+    private long submitted = 0L;
+    private long committed = 0L;
+    private volatile IOException failure = null;
+    private volatile boolean closed = false;
+    private volatile boolean tailRewrite = false;
+
+    private ZipCommitter(File archive, int capacity, int level) throws IOException {
+        this.archive = archive;
+        this.directory = new File(archive.getParentFile(), archive.getName() + ".spool");
+        this.level = level;
+        this.slots = new Semaphore(Math.max(1, capacity));
+        Files.createDirectories(directory.toPath());
+        recover();
+        this.queued = sequence;
+        this.thread = new Thread(this::run, "zipbox-commit-" + archive.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Returns the spool directory, where uploads should be spooled with
+     * {@link ZipSpool} so they can be committed without copying.
+     * @return the spool directory
+     */
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * Sets whether commits may rewrite only the tail of the archive in
+     * place, as with {@link ZipEditor#tailRewrite(boolean)}.
+     * @param tailRewrite {@code true} to allow tail rewrites
+     * @return {@code this}, to allow fluent style use
+     */
+    public ZipCommitter tailRewrite(boolean tailRewrite) {
+        this.tailRewrite = tailRewrite;
+        return this;
+    }
+
+    /**
+     * Makes the content of {@code spool} durable and queues it to be
+     * committed as {@code path}, blocking while the queue is full.  The
+     * spooled file is adopted by the committer, so closing {@code spool}
+     * afterwards is harmless.
+     * @param path the entry name
+     * @param spool a spool in {@link #directory()}
+     * @return the pending upload
+     * @throws InterruptedIOException if interrupted while waiting for space in the queue
+     * @throws IOException if the committer has failed or is closed
+     */
+    public Pending commit(String path, ZipSpool spool) throws IOException {
+        if (closed) {
+            throw new IOException("committer for " + archive + " is closed");
+        }
+        if (failure != null) {
+            throw new IOException("committer for " + archive + " failed", failure);
+        }
+        sync(spool.file());
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to queue " + path);
+        }
+        long n;
+        synchronized (this) {
+            n = ++sequence;
+        }
+        Pending upload = null;
+        try {
+            File data = new File(directory, name(n, DATA));
+            Files.move(spool.file().toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            File record = new File(directory, name(n, PATH));
+            File temp = new File(directory, name(n, PATH + TEMP));
+            String summary = String.format("%s%n%b %d %d %b%n", path, spool.deflated(), spool.crc(), spool.size(),
+                    spool.ingested());
+            Files.write(temp.toPath(), summary.getBytes(StandardCharsets.UTF_8));
+            sync(temp);
+            Files.move(temp.toPath(), record.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            syncDirectory(directory);
+            upload = new Pending(n, path,
+                    new ZipSpool(data, spool.deflated(), spool.crc(), spool.size(), ZipCodecPool.getDefault())
+                            .ingested(spool.ingested()));
+        } finally {
+            enqueue(n, upload);
+        }
+        return upload;
+    }
+
+    /**
+     * Queues upload {@code n} once every earlier upload has been queued (or
+     * has failed), so that uploads are queued in sequence order.  A failed
+     * upload ({@code null}) just gives up its turn and its slot in the queue.
+     * @param n the sequence number of the upload
+     * @param upload the upload, or {@code null} if it could not be recorded
+     */
+    private synchronized void enqueue(long n, Pending upload) {
+        boolean interrupted = false;
+        // the earlier uploads are past their sequence numbers, so they are
+        // bound to take their turns
+        while (queued < n - 1) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (upload != null) {
+            submitted++;
+            pending.put(upload.path(), upload);
+            queue.add(upload);
+        } else {
+            slots.release();
+        }
+        queued = n;
+        notifyAll();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the latest uncommitted upload for {@code path}, if any.
+     * @param path the entry name
+     * @return the pending upload, or {@code Optional.empty()}
+     */
+    public Optional<Pending> pending(String path) {
+        return Optional.ofNullable(pending.get(path));
+    }
+
+    /**
+     * Returns the latest uncommitted upload for each path.
+     * @return the pending uploads
+     */
+    public Collection<Pending> pending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Returns the number of uploads waiting to be committed.
+     * @return the queue depth
+     */
+    public int depth() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the failure that stopped the most recent commit, or
+     * {@code null} if it succeeded.  Failed commits are retried, backing
+     * off while they keep failing.
+     * @return the failure, or {@code null}
+     */
+    public IOException failure() {
+        return failure;
+    }
+
+    /**
+     * Waits until every upload queued so far has been committed.
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException if the committer is failing
+     */
+    public synchronized void flush() throws IOException {
+        long target = submitted;
+        try {
+            while (committed < target && thread.isAlive()) {
+                if (failure != null) {
+                    throw new IOException("committer for " + archive + " failed", failure);
+                }
+                wait(RETRY_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for commit");
+        }
+    }
+
+    /**
+     * Stops accepting uploads, commits those already queued and
+     * stops the committer thread.
+     * @throws IOException if the committer is failing or interrupted while waiting
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (COMMITTERS) {
+            COMMITTERS.remove(archive.getPath(), this);
+        }
+        closed = true;
+        flush();
+        thread.interrupt();
+    }
+
+    /**
+     * The committer thread: takes whatever has accumulated in the queue
+     * and commits it in one rewrite, retrying on failure, at twice the
+     * interval after each failure in a row (up to a minute).
+     */
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        long retry = RETRY_MILLIS;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    Pending first = queue.poll(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        if (closed) {
+                            return;
+                        }
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                try {
+                    apply(batch);
+                    failure = null;
+                    retry = RETRY_MILLIS;
+                } catch (IOException|RuntimeException e) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    Thread.sleep(retry);
+                    retry = Math.min(retry * 2, MAX_RETRY_MILLIS);
+                    continue;
+                }
+                synchronized (this) {
+                    committed += batch.size();
+                    notifyAll();
+                }
+                slots.release(batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                if (closed && batch.isEmpty() && queue.isEmpty()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits {@code batch} in a single rewrite of the archive, in order, so
+     * that a later upload of the same path replaces an earlier one, and
+     * then discards the spooled files.  Uploads spooled deflated are
+     * spliced in without recompression.
+     * @param batch the uploads to commit
+     * @throws IOException
+     */
+    private void apply(List<Pending> batch) throws IOException {
+        ZipEditor zip = new ZipEditor(archive).compressionLevel(level).tailRewrite(tailRewrite);
+        for (Pending upload : batch) {
+            zip.add(upload.path(), upload.spool());
+        }
+        long cost = archive.length();
+        for (Pending upload : batch) {
+            cost += upload.spool().compressedSize();
+        }
+        ZipRewriteScheduler.getDefault().run(archive, cost, zip::process);
+        for (Pending upload : batch) {
+            pending.remove(upload.path(), upload);
+            Files.deleteIfExists(new File(directory, name(upload.sequence(), PATH)).toPath());
+            Files.deleteIfExists(upload.data().toPath());
+        }
+    }
+
+    /**
+     * Commits any uploads recorded in the spool directory by a previous
+     * committer, and discards any that were never recorded, or whose record
+     * can not be read.
+     * @throws IOException
+     */
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        List<Pending> batch = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(PATH)) {
+                try {
+                    long n = Long.parseLong(name.substring(0, name.length() - PATH.length()));
+                    List<String> summary = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+                    String[] fields = summary.get(1).split(" ");
+                    File data = new File(directory, name(n, DATA));
+                    if (summary.get(0).isEmpty() || !data.isFile()) {
+                        throw new IllegalArgumentException(name);
+                    }
+                    batch.add(new Pending(n, summary.get(0), new ZipSpool(data,
+                            Boolean.parseBoolean(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            ZipCodecPool.getDefault()).ingested(fields.length > 3 && Boolean.parseBoolean(fields[3]))));
+                    sequence = Math.max(sequence, n);
+                } catch (IOException|RuntimeException e) {
+                    // a record cut short: the upload was never acknowledged
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            apply(batch);
+        }
+        // content never recorded, or uploads interrupted while spooling or recording
+        for (File file : files) {
+            if (file.getName().endsWith(DATA) || file.getName().endsWith(".spool") || file.getName().endsWith(TEMP)) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private static String name(long sequence, String suffix) {
+        return String.format("%016d%s", sequence, suffix);
+    }
+
+    private static void sync(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Makes the renames in {@code directory} durable, where the platform
+     * allows a directory to be opened (it does not on Windows, which needs
+     * no such step).
+     */
+    private static void syncDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // not supported on this platform
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+
+/**
+ * A bounded cache of the uncompressed content of small entries, so that
+ * entries fetched over and over are not re-read and re-inflated on every
+ * {@code GET}.  Only entries of at most {@code threshold} bytes are cached,
+ * and the least recently used entries are evicted to keep the total
+ * content within {@code budget} bytes.  Content may be held on the heap or
+ * in direct (off-heap) buffers.
+ * <p/>
+ * Entries are keyed by archive, name, local header offset and CRC-32.  The
+ * cached entries of an archive are discarded whenever {@link ZipEditor}
+ * commits a change to it, or the {@link ZipWatcher} sees it change.
+ */
+public class ZipContentCache {
+
+    private static final List<ZipContentCache> CACHES = new CopyOnWriteArrayList<>();
+    private static final Map<String,ZipContentCache> SHARED = new HashMap<>();
+
+    static {
+        ZipWatcher.getDefault().addListener(ZipContentCache::invalidateAll);
+    }
+
+    /**
+     * Returns the JVM-wide cache with the given configuration, creating it
+     * if needed, so that clients configured alike share a cache.
+     * @param threshold the size of the largest entry to cache
+     * @param budget the maximum total size of the cached content
+     * @param offHeap {@code true} to hold content in direct buffers
+     * @return the shared cache
+     */
+    public static ZipContentCache of(long threshold, long budget, boolean offHeap) {
+        String key = threshold + ":" + budget + ":" + offHeap;
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(key, (k) -> new ZipContentCache(threshold, budget, offHeap));
+        }
+    }
+
+    /**
+     * Discards the content cached for {@code file} from every cache.
+     * @param file the archive
+     */
+    public static void invalidateAll(File file) {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            path = file.getAbsolutePath();
+        }
+        for (ZipContentCache cache : CACHES) {
+            cache.invalidate(path);
+        }
+    }
+
+    private final long threshold;
+    private final long budget;
+    private final boolean offHeap;
+    private final LinkedHashMap<String,Cached> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String,Set<String>> archives = new HashMap<>();
+    private long size = 0L;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a new empty cache.  Most uses should share a cache obtained
+     * from {@link #of(long, long, boolean)}.
+     * @param threshold the size of the largest entry to cache
+     * @param budget the maximum total size of the cached content
+     * @param offHeap {@code true} to hold content in direct buffers
+     */
+    public ZipContentCache(long threshold, long budget, boolean offHeap) {
+        this.threshold = Math.min(threshold, budget);
+        this.budget = budget;
+        this.offHeap = offHeap;
+        CACHES.add(this);
+    }
+
+    /**
+     * Returns {@code true} if content of {@code record} should be cached.
+     * @param record the entry
+     * @return {@code true} if cacheable
+     */
+    public boolean cacheable(Record record) {
+        return !record.isDirectory() && record.size() <= threshold;
+    }
+
+    /**
+     * Cached content, and the archive it came from.
+     */
+    private static class Cached {
+        private final String archive;
+        private final ByteBuffer content;
+        private Cached(String archive, ByteBuffer content) {
+            this.archive = archive;
+            this.content = content;
+        }
+    }
+
+    private static String key(String path, Record record) {
+        return path + ":" + record.name() + ":" + record.offset() + ":" + record.crc();
+    }
+
+    /**
+     * Returns the cached content for {@code record} in the archive at
+     * (canonical) {@code path}, or {@code null} if it is not cached.
+     * @param path the canonical path of the archive
+     * @param record the entry
+     * @return a read-only buffer of the content, or {@code null}
+     */
+    public ByteBuffer get(String path, Record record) {
+        Cached cached;
+        synchronized (this) {
+            cached = entries.get(key(path, record));
+        }
+        if (cached == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.content.duplicate();
+    }
+
+    /**
+     * Caches {@code content} for {@code record} in the archive at
+     * (canonical) {@code path}, evicting the least recently used content
+     * as needed to stay within the budget.
+     * @param path the canonical path of the archive
+     * @param record the entry
+     * @param content the uncompressed content
+     */
+    public void put(String path, Record record, byte[] content) {
+        if (content.length > threshold) {
+            return;
+        }
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(content.length);
+            buffer.put(content);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(content);
+        }
+        buffer = buffer.asReadOnlyBuffer();
+        String key = key(path, record);
+        synchronized (this) {
+            Cached old = entries.put(key, new Cached(path, buffer));
+            if (old != null) {
+                size -= old.content.capacity();
+            }
+            size += buffer.capacity();
+            archives.computeIfAbsent(path, (k) -> new HashSet<>()).add(key);
+            Iterator<Map.Entry<String,Cached>> lru = entries.entrySet().iterator();
+            while (size > budget && lru.hasNext()) {
+                Map.Entry<String,Cached> eldest = lru.next();
+                lru.remove();
+                size -= eldest.getValue().content.capacity();
+                Set<String> keys = archives.get(eldest.getValue().archive);
+                if (keys != null) {
+                    keys.remove(eldest.getKey());
+                    if (keys.isEmpty()) {
+                        archives.remove(eldest.getValue().archive);
+                    }
+                }
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Discards the content cached for the archive at (canonical) {@code path}.
+     * @param path the canonical path of the archive
+     */
+    public synchronized void invalidate(String path) {
+        Set<String> keys = archives.remove(path);
+        if (keys != null) {
+            for (String key : keys) {
+                Cached cached = entries.remove(key);
+                if (cached != null) {
+                    size -= cached.content.capacity();
+                }
+            }
+        }
+    }
+
+    public long threshold() {
+        return threshold;
+    }
+
+    public long budget() {
+        return budget;
+    }
+
+    /**
+     * Returns the total size of the cached content.
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    /**
+     * An {@link InputStream} over the remaining content of a {@link ByteBuffer}.
+     */
+    public static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            } else if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("content cache %d/%d bytes, hits=%d misses=%d evictions=%d",
+                size(), budget, hits(), misses(), evictions());
+    }
+}
@@ -1,36 +1,63 @@
 package com.cleo.labs.connector.zipbox;
 
-import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FilterOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
-import java.util.regex.Matcher;
+import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
 import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
 
@@ -56,42 +83,66 @@ public class ZipEditor {
     }
 
     private static class Edit {
-        public enum Type {PUT, MKDIR, RENAME};
+        public enum Type {PUT, SPLICE, MKDIR, RENAME, COPY};
         public Type type;
         public String path;
         public ZipWriter writer;
+        public ZipSpool spool;
         public String from;
-        private Edit(Type type, String path, ZipWriter writer, String from) {
+        public File archive;
+        public Record record;
+        private Edit(Type type, String path, ZipWriter writer, ZipSpool spool, String from) {
             this.type = type;
             this.path = path;
             this.writer = writer;
+            this.spool = spool;
             this.from = from;
         }
         public static Edit put(String path, ZipWriter writer) {
-            return new Edit(Type.PUT, path, writer, null);
+            return new Edit(Type.PUT, path, writer, null, null);
+        }
+        public static Edit splice(String path, ZipSpool spool) {
+            return new Edit(Type.SPLICE, path, null, spool, null);
         }
         public static Edit mkdir(String path) {
             path = normalizeDirectoryName(path);
-            return new Edit(Type.MKDIR, path, null, null);
+            return new Edit(Type.MKDIR, path, null, null, null);
         }
         public static Edit rename(String path, String from) {
-            return new Edit(Type.RENAME, path, null, from);
+            return new Edit(Type.RENAME, path, null, null, from);
+        }
+        public static Edit copy(String path, File archive, Record record) {
+            Edit edit = new Edit(Type.COPY, path, null, null, null);
+            edit.archive = archive;
+            edit.record = record;
+            return edit;
         }
     }
 
     /**
-     * The {@code PathPrefixMatcher} collects a list of prefix
+     * The {@code PathPrefixMatcher} collects a list of directory prefix
      * strings so they can be matched against candidate strings
      * easily, a bit like {@code String.startsWith(any of String[])}.
+     * <p/>
+     * The prefixes are kept in a trie of path segments, so a match costs
+     * one lookup per directory level of the candidate, however many
+     * prefixes have been added.
      */
     private static class PathPrefixMatcher {
-        private List<String> prefixes;
+        /**
+         * A node of the trie: the directory reached by the path from the root.
+         */
+        private static class Node {
+            private Map<String,Node> children = null;
+            private boolean terminal = false;
+        }
+        private Node root;
         /**
          * Constructs a new empty matching list.  {@code matches()}
          * will return {@code false} until at least one prefix is added.
          */
         public PathPrefixMatcher() {
-            this.prefixes = new ArrayList<>();
+            this.root = new Node();
         }
         /**
          * Add a prefix string to the matching list.
@@ -99,7 +150,22 @@ public class ZipEditor {
          * @return {@code this}, to allow fluent style adds
          */
         public PathPrefixMatcher add(String prefix) {
-            prefixes.add(normalizeDirectoryName(prefix));
+            prefix = normalizeDirectoryName(prefix);
+            Node node = root;
+            int start = 0;
+            int slash;
+            while (!node.terminal && (slash = prefix.indexOf(DELIMITER, start)) >= 0) {
+                if (node.children == null) {
+                    node.children = new HashMap<>();
+                }
+                node = node.children.computeIfAbsent(prefix.substring(start, slash), (k) -> new Node());
+                start = slash + 1;
+            }
+            // prefixes under one already added are redundant
+            if (!node.terminal) {
+                node.terminal = true;
+                node.children = null;
+            }
             return this;
         }
         /**
@@ -109,12 +175,20 @@ public class ZipEditor {
          * @return {@code true} if there is a match
          */
         public boolean matches(String path) {
-            for (String prefix : prefixes) {
-                if (path.startsWith(prefix)) {
-                    return true;
+            Node node = root;
+            int start = 0;
+            int slash;
+            while (!node.terminal) {
+                if (node.children == null || (slash = path.indexOf(DELIMITER, start)) < 0) {
+                    return false;
                 }
+                node = node.children.get(path.substring(start, slash));
+                if (node == null) {
+                    return false;
+                }
+                start = slash + 1;
             }
-            return false;
+            return true;
         }
     }
 
@@ -208,8 +282,15 @@ public class ZipEditor {
         }
     }
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private File original;
     private int compressionLevel;
+    private ZipCodecPool pool;
+    private long checkpointSpan;
+    private boolean indexFile;
+    private boolean tailRewrite;
+    private ZipContentCache contentCache;
     private TreeMap<String,Edit> adds;
     private Set<String> deletes;
     private PathPrefixMatcher rmdirs;
@@ -235,6 +316,11 @@ public class ZipEditor {
     public ZipEditor(File original) {
         this.original = original;
         this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        this.pool = ZipCodecPool.getDefault();
+        this.checkpointSpan = ZipInflateIndex.DEFAULT_SPAN;
+        this.indexFile = false;
+        this.tailRewrite = false;
+        this.contentCache = null;
         reset();
     }
 
@@ -257,6 +343,67 @@ public class ZipEditor {
         return this;
     }
 
+    /**
+     * Set the {@link ZipCodecPool} used to borrow {@link Deflater}s and
+     * {@link Inflater}s, in place of the shared default pool.
+     * @param pool the {@link ZipCodecPool}
+     * @return {@code this} to allow fluent style setting
+     */
+    public ZipEditor codecPool(ZipCodecPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Set the distance, in uncompressed bytes, between the checkpoints
+     * of the {@link ZipInflateIndex} used for ranged reads.
+     * @param checkpointSpan the checkpoint span
+     * @return {@code this} to allow fluent style setting
+     */
+    public ZipEditor checkpointSpan(long checkpointSpan) {
+        this.checkpointSpan = checkpointSpan;
+        return this;
+    }
+
+    /**
+     * Set whether to maintain a {@link ZipIndexFile} sidecar beside the
+     * archive, so that listings and lookups after a restart map the sidecar
+     * instead of parsing the central directory.  An existing sidecar is
+     * always kept up to date, whether or not this is set.
+     * @param indexFile {@code true} to create the sidecar
+     * @return {@code this} to allow fluent style setting
+     */
+    public ZipEditor indexFile(boolean indexFile) {
+        this.indexFile = indexFile;
+        return this;
+    }
+
+    /**
+     * Set whether {@link #process()} may rewrite just the tail of the
+     * archive in place, from the first entry that changes, instead of
+     * copying the whole archive to a new file.  The tail is only rewritten
+     * in place while no reader has the current {@link ZipGeneration} pinned,
+     * and readers arriving meanwhile wait for it.
+     * @param tailRewrite {@code true} to allow tail rewrites
+     * @return {@code this} to allow fluent style setting
+     */
+    public ZipEditor tailRewrite(boolean tailRewrite) {
+        this.tailRewrite = tailRewrite;
+        return this;
+    }
+
+    /**
+     * Set a {@link ZipContentCache} to serve the content of small entries
+     * without re-reading and re-inflating it, or {@code null} (the default)
+     * to always read from the archive.
+     * @param contentCache the {@link ZipContentCache}
+     * @return {@code this} to allow fluent style setting
+     */
+    public ZipEditor contentCache(ZipContentCache contentCache) {
+        this.contentCache = contentCache;
+        return this;
+    }
+
     /**
      * A {@code ZipWriter} is a {@code Consumer<OutputStream>} that is
      * allowed to throw an {@link IOException}.
@@ -313,6 +460,25 @@ public class ZipEditor {
         adds.put(path, Edit.put(path, writer));
         return this;
     }
+    /**
+     * Add the content received into {@code spool} in an entry named
+     * {@code path}.  If the spool is {@link ZipSpool#deflated() deflated},
+     * its compressed data is spliced into the archive as is, otherwise it
+     * is deflated as for {@link #add(String, ZipWriter)}.  The spool must
+     * remain open until the edits are processed.
+     * <p/>
+     * Process results:<ul>
+     * <li>adds will be incremented by 1</li>
+     * <li>deletes will be incremented by 1 in case of an overwrite</li></ul>
+     * @param path what to name the content
+     * @param spool the spooled content
+     * @return {@code this}, allowing fluent-style editing
+     */
+    public ZipEditor add(String path, ZipSpool spool) {
+        deletes.add(path);
+        adds.put(path, spool.deflated() ? Edit.splice(path, spool) : Edit.put(path, spool.writer()));
+        return this;
+    }
     /**
      * Makes a "directory" in an entry named {@code path}.  By convention, Zip
      * directories end in {@code /}, so a {@code /} will be appended to {@code path}
@@ -373,6 +539,53 @@ public class ZipEditor {
         return this;
     }
 
+    /**
+     * Adds every entry of another Zip {@code archive} under {@code directory},
+     * replacing any entries of the same names.  The entries are copied as
+     * raw compressed bytes, without inflating or deflating them, so
+     * importing a batch of files costs one rewrite and no compression.
+     * Where {@code archive} contains more than one entry with the same
+     * name, the first is imported.  The archive must remain in place until
+     * the edits are processed.
+     * <p/>
+     * Process results:<ul>
+     * <li>adds will be incremented by the number of entries imported</li>
+     * <li>deletes will be incremented by 1 for each overwrite</li></ul>
+     * @param directory the directory to import into ({@code ""} for the root)
+     * @param archive the Zip archive to import
+     * @return {@code this}, allowing fluent-style editing
+     * @throws ZipException if {@code archive} is not a valid Zip file, or
+     *         contains an entry that can not be imported safely
+     * @throws IOException
+     */
+    public ZipEditor importArchive(String directory, File archive) throws IOException {
+        String prefix = Strings.isNullOrEmpty(directory) ? "" : normalizeDirectoryName(directory);
+        List<Record> records;
+        try (ZipCentralDirectory source = new ZipCentralDirectory(archive)) {
+            records = source.records();
+        }
+        // check everything before queueing anything
+        for (Record record : records) {
+            String name = record.name();
+            if (name.isEmpty() || name.startsWith(DELIMITER) || Arrays.asList(name.split(DELIMITER)).contains("..")) {
+                throw new ZipException("invalid entry name " + name);
+            } else if (record.method() != ZipEntry.STORED && record.method() != ZipEntry.DEFLATED) {
+                throw new ZipException("unsupported compression method " + record.method() + " for " + name);
+            } else if ((record.flags() & 0x0001) != 0) {
+                throw new ZipException("encrypted entry " + name);
+            }
+        }
+        Set<String> imported = new HashSet<>();
+        for (Record record : records) {
+            String path = prefix + record.name();
+            if (imported.add(path)) {
+                deletes.add(path);
+                adds.put(path, Edit.copy(path, archive, record));
+            }
+        }
+        return this;
+    }
+
     private static final SimpleDateFormat SSS = new SimpleDateFormat("yyyyMMddHHmmss.SSS");
     /**
      * Generates a {@link File} whose name is derived from an existing
@@ -414,6 +627,20 @@ public class ZipEditor {
         return entries().stream().map((ze)->ze.getName()).collect(Collectors.toCollection(HashSet::new));
     }
 
+    /**
+     * Returns the index of the current generation of the archive.  Pinning
+     * the generation to find it waits out a rewrite in place, rather than
+     * indexing a partly written archive, and is cheap since the open file
+     * is shared through the {@link ZipHandlePool}.
+     * @return the {@link ZipIndex}
+     * @throws IOException
+     */
+    private ZipIndex index() throws IOException {
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile)) {
+            return generation.index();
+        }
+    }
+
     /**
      * Returns a (possibly empty but never {@code null}) list of entries with a
      * specified {@code prefix}, emulating a directory listing.  The {@code prefix}
@@ -431,42 +658,103 @@ public class ZipEditor {
      */
     public List<ZipEntry> entries(String prefix) {
         prefix = normalizeDirectoryName(prefix);
-        List<ZipEntry> list = entries();
-        Set<String> directories = list.stream()
-                                      .filter((e) -> e.getName().endsWith(DELIMITER))
-                                      .map(ZipEntry::getName)
-                                      .collect(Collectors.toCollection(HashSet::new));
-
-        // ^prefix([^/]+)(?:/(.*))?$ 
-        //   group(1) is what follows the prefix up-to-not-inlcuding /
-        //   group(2) is after the trailing / if anything
-        Pattern match = Pattern.compile("^"+prefix+"([^"+DELIMITER+"]+)(?:"+DELIMITER+"(.*))?$");
-
         List<ZipEntry> result = new ArrayList<>();
-        for (ZipEntry zipentry : list) {
-            Matcher m = match.matcher(zipentry.getName());
-            if (m.matches()) {
-                String name = m.group(1);
-                boolean hasSuffix = !Strings.isNullOrEmpty(m.group(2));
-
-                if (!hasSuffix) {
-                    // a direct descendant of prefix: add it
-                    result.add(zipentry);
-                } else {
-                    // a multi-level descendant of prefix -- make sure the implied subdirectory is there
-                    String subdir = prefix+name+DELIMITER;
-                    if (!directories.contains(subdir)) {
-                        // found prefix/subdir/something, but prefix/subdir is not present -- fake it
-                        ZipEntry fake = new ZipEntry(subdir);
-                        fake.setTime(zipentry.getTime());
-                        result.add(fake);
-                        directories.add(subdir); // but only once...
-                    }
-                }
+        ZipIndex index;
+        try {
+            index = index();
+        } catch (IOException e) {
+            return result;
+        }
+        // scan just the range of names starting with prefix, skipping over
+        // each subdirectory's names once its (real or fake) entry is added
+        int i = index.lowerBound(prefix);
+        int end = index.upperBound(i, prefix);
+        while (i < end) {
+            Record record = index.get(i);
+            String name = record.name();
+            int slash = name.indexOf(DELIMITER, prefix.length());
+            if (name.length() == prefix.length()) {
+                // the directory entry for prefix itself
+                i++;
+            } else if (slash < 0 || slash == name.length()-1) {
+                // a direct descendant of prefix (or its directory entry): add it
+                result.add(record.toZipEntry());
+                i = slash < 0 ? i+1 : index.upperBound(i, name);
+            } else {
+                // a multi-level descendant of prefix without a directory entry -- fake it
+                String subdir = name.substring(0, slash+1);
+                ZipEntry fake = new ZipEntry(subdir);
+                fake.setTime(record.time());
+                result.add(fake);
+                i = index.upperBound(i, subdir);
             }
         }
         return result;
     }
+
+    /**
+     * Returns a (possibly empty but never {@code null}) list of entries
+     * whose names match the glob {@code pattern}, sorted by name.  Only
+     * the slice of the sorted name index sharing the literal prefix of
+     * the pattern is examined, so a pattern like {@code inbox/2026-10/*.edi}
+     * is cheap even in a very large archive.
+     * @param pattern the glob pattern (see {@link ZipIndex#compile(String)})
+     * @return the list of entries
+     */
+    public List<ZipEntry> glob(String pattern) {
+        try {
+            return index().glob(pattern).stream()
+                    .map(Record::toZipEntry)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Returns the last {@link ZipSequence} number taken by a commit to the
+     * archive.  Every entry added or changed after this call is stamped with
+     * a greater number, so a poller passes it to its next {@link #since(String, long)}.
+     * @return the sequence number, or {@code 0} if the archive is missing or has none
+     */
+    public long sequence() {
+        try {
+            return index().sequence();
+        } catch (IOException e) {
+            return 0L;
+        }
+    }
+
+    /**
+     * Returns a (possibly empty but never {@code null}) list of the entries
+     * under directory {@code source}, at any depth, or matching the glob
+     * {@code source}, that were added or changed by a commit after
+     * {@code sequence} (see {@link #sequence()}), in the order they were
+     * committed.  Only the entries stamped after {@code sequence} are
+     * examined, however large the archive.  Deletes are not reported.
+     * @param source the directory or glob pattern
+     * @param sequence the last sequence number already seen
+     * @return the list of entries
+     */
+    public List<ZipEntry> since(String source, long sequence) {
+        Predicate<String> matches;
+        if (ZipIndex.isGlob(source)) {
+            Pattern glob = ZipIndex.compile(source);
+            matches = (name) -> glob.matcher(name).matches();
+        } else {
+            String prefix = normalizeDirectoryName(source);
+            matches = (name) -> name.startsWith(prefix) && name.length() > prefix.length();
+        }
+        try {
+            return index().since(sequence).stream()
+                    .filter((record) -> matches.test(record.name()))
+                    .map(Record::toZipEntry)
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            return new ArrayList<>();
+        }
+    }
+
     /**
      * Find a {@link ZipEntry} by path name in the archive.  This
      * method uses a best-match heuristic for "directories", which by
@@ -486,30 +774,163 @@ public class ZipEditor {
             // represents the ZipFile itself
         }
         String dir = normalizeDirectoryName(path);
-        ZipEntry candidate = null;
-        try (ZipFile zipFile = new ZipFile(original)) {
-            for (ZipEntry entry : new EnumerationStepper<>(zipFile.entries())) {
-                if (entry.getName().equals(path) || entry.getName().equals(dir)) {
-                    return Optional.of(entry);
-                }
-                if (candidate == null && entry.getName().startsWith(dir)) {
-                    candidate = entry;
-                }
-            }
+        ZipIndex index;
+        try {
+            index = index();
         } catch (IOException e) {
-            // fall through to empty
+            return Optional.empty();
+        }
+        Optional<Record> exact = index.record(path);
+        if (!exact.isPresent()) {
+            exact = index.record(dir);
         }
-        if (candidate != null) {
+        if (exact.isPresent()) {
+            return Optional.of(exact.get().toZipEntry());
+        }
+        int i = index.lowerBound(dir);
+        if (i < index.size() && index.get(i).name().startsWith(dir)) {
             ZipEntry result = new ZipEntry(dir);
-            result.setCreationTime(candidate.getCreationTime());
-            result.setLastAccessTime(candidate.getLastAccessTime());
-            result.setLastModifiedTime(candidate.getLastModifiedTime());
-            result.setTime(candidate.getTime());
+            result.setTime(index.get(i).time());
             return Optional.of(result);
         }
         return Optional.empty();
     }
 
+    /**
+     * Opens the content of an entry for reading.  As with
+     * {@link ZipFile#getEntry(String)}, {@code path} is tried first as is
+     * and then with a {@code /} appended.  Compressed entries are inflated
+     * using an {@link Inflater} borrowed from the {@link ZipCodecPool}.  The
+     * returned stream must be closed to release the archive and the
+     * {@code Inflater}.
+     * <p/>
+     * Returns {@code Optional.empty()} if the archive or entry is not found.
+     * @param path the entry to read
+     * @return an {@link InputStream} of the entry content
+     * @throws IOException if the entry exists but can not be opened
+     */
+    public Optional<InputStream> open(String path) throws IOException {
+        return open(path, 0, -1);
+    }
+
+    /**
+     * Opens a byte range of the content of an entry for reading, for partial
+     * or resumed downloads.  {@code STORED} entries are read directly from
+     * the offset.  {@code DEFLATED} entries are inflated from the nearest
+     * checkpoint in a lazily built {@link ZipInflateIndex}, so only at most
+     * {@code checkpointSpan} bytes are inflated and discarded to reach
+     * {@code offset}.
+     * @param path the entry to read
+     * @param offset the offset of the first byte to read
+     * @param length the maximum number of bytes to read, or {@code -1} to read to the end
+     * @return an {@link InputStream} of the requested range of the entry content
+     * @throws IOException if the entry exists but can not be opened
+     */
+    public Optional<InputStream> open(String path, long offset, long length) throws IOException {
+        ZipGeneration generation;
+        try {
+            generation = ZipGeneration.pin(original, indexFile);
+        } catch (FileNotFoundException|ZipException e) {
+            return Optional.empty();
+        }
+        try {
+            Optional<Record> record = generation.index().find(path);
+            if (!record.isPresent()) {
+                generation.close();
+                return Optional.empty();
+            }
+            if (contentCache != null && contentCache.cacheable(record.get())) {
+                try {
+                    return Optional.of(cached(generation.reader(), record.get(), offset, length));
+                } finally {
+                    generation.close();
+                }
+            }
+            InputStream in = generation.reader().open(record.get(), offset, checkpointSpan, pool);
+            if (length >= 0) {
+                in = ByteStreams.limit(in, length);
+            }
+            return Optional.of(new FilterInputStream(in) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        generation.close();
+                    }
+                }
+            });
+        } catch (IOException e) {
+            generation.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a byte range of the content of a small entry from the
+     * {@link ZipContentCache}, reading it into the cache if needed.
+     * @param reader the pinned archive
+     * @param record the entry to read
+     * @param offset the offset of the first byte to read
+     * @param length the maximum number of bytes to read, or {@code -1} to read to the end
+     * @return an {@link InputStream} of the requested range of the entry content
+     * @throws IOException
+     */
+    private InputStream cached(ZipCentralDirectory.Reader reader, Record record, long offset, long length) throws IOException {
+        String path = original.getCanonicalPath();
+        ByteBuffer content = contentCache.get(path, record);
+        if (content == null) {
+            byte[] bytes;
+            try (InputStream in = reader.open(record, pool)) {
+                bytes = ByteStreams.toByteArray(in);
+            }
+            contentCache.put(path, record, bytes);
+            content = ByteBuffer.wrap(bytes);
+        }
+        content.position((int) Math.min(offset, content.limit()));
+        if (length >= 0 && length < content.remaining()) {
+            content.limit(content.position() + (int) length);
+        }
+        return new ZipContentCache.ByteBufferInputStream(content);
+    }
+
+    /**
+     * Returns {@code true} if the file entry {@code path} exists and holds
+     * exactly the content in {@code spool}.  The CRC-32 and size recorded
+     * in the central directory are compared first.  If they match and the
+     * spool computed a digest, the existing content is also read and
+     * digested, guarding against CRC collisions.
+     * @param path the entry to compare
+     * @param spool the spooled replacement content
+     * @return {@code true} if replacing the entry would not change it
+     * @throws IOException
+     */
+    public boolean unchanged(String path, ZipSpool spool) throws IOException {
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile)) {
+            ZipCentralDirectory.Reader directory = generation.reader();
+            Optional<Record> record = generation.index().record(path);
+            if (!record.isPresent() || record.get().isDirectory()
+                    || record.get().crc() != spool.crc() || record.get().size() != spool.size()) {
+                return false;
+            }
+            if (spool.digest() == null) {
+                return true;
+            }
+            MessageDigest md;
+            try {
+                md = MessageDigest.getInstance(spool.algorithm());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            try (InputStream in = new DigestInputStream(directory.open(record.get(), pool), md)) {
+                ByteStreams.copy(in, ByteStreams.nullOutputStream());
+            }
+            return MessageDigest.isEqual(md.digest(), spool.digest());
+        } catch (FileNotFoundException|ZipException e) {
+            return false;
+        }
+    }
+
     /**
      * Records the result of processing a set of edits, including the
      * number of entries retained ({@code keeps()}), the number of
@@ -524,6 +945,7 @@ public class ZipEditor {
         private int keeps = 0;
         private int adds = 0;
         private int deletes = 0;
+        private long retained = 0L;
         public void keep() {
             keeps++;
         }
@@ -545,6 +967,603 @@ public class ZipEditor {
         public int changes() {
             return adds+deletes;
         }
+        /**
+         * Returns the number of bytes of the original archive left in
+         * place by a tail rewrite, or {@code 0} if the archive was copied.
+         * @return the bytes retained in place
+         */
+        public long retained() {
+            return retained;
+        }
+    }
+
+    /**
+     * Records the result of a batch operation over many entries, such as
+     * {@link ZipEditor#verify(int)} or {@link ZipEditor#extract(Collection, ZipDestination, int)},
+     * including the number of entries and uncompressed bytes handled, the
+     * entries that failed (with the reason), and the elapsed time.
+     */
+    public static class ZipBatchResult {
+        private final String operation;
+        private final AtomicInteger entries = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Map<String,String> failures = Collections.synchronizedMap(new TreeMap<>());
+        private int threads = 0;
+        private long millis = 0;
+        public ZipBatchResult(String operation) {
+            this.operation = operation;
+        }
+        public void success(long size) {
+            entries.incrementAndGet();
+            bytes.addAndGet(size);
+        }
+        public void failure(String name, String reason) {
+            entries.incrementAndGet();
+            failures.put(name, reason);
+        }
+        public int entries() {
+            return entries.get();
+        }
+        public long bytes() {
+            return bytes.get();
+        }
+        /**
+         * Returns the failed entries, sorted by name, mapped to the reason.
+         * @return the failed entries
+         */
+        public Map<String,String> failures() {
+            return failures;
+        }
+        public boolean ok() {
+            return failures.isEmpty();
+        }
+        public int threads() {
+            return threads;
+        }
+        public long millis() {
+            return millis;
+        }
+        /**
+         * Returns the throughput in uncompressed bytes per second.
+         * @return the throughput
+         */
+        public double throughput() {
+            return millis == 0 ? 0.0 : bytes() * 1000.0 / millis;
+        }
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(String.format("%s %d entries, %d bytes in %d ms (%.1f MB/s) with %d threads%n",
+                    operation, entries(), bytes(), millis(), throughput() / (1024 * 1024), threads()));
+            s.append(String.format("failed entries: %d%n", failures.size()));
+            synchronized (failures) {
+                for (Map.Entry<String,String> entry : failures.entrySet()) {
+                    s.append(String.format("FAILED %s: %s%n", entry.getKey(), entry.getValue()));
+                }
+            }
+            return s.toString();
+        }
+    }
+
+    /**
+     * Records the result of {@link ZipEditor#repack(boolean, int)}: the
+     * entries written, any duplicate entries dropped, and the size of the
+     * archive before and after.
+     */
+    public static class ZipRepackResult extends ZipBatchResult {
+        private final long before;
+        private long after = 0;
+        private int duplicates = 0;
+        public ZipRepackResult(String operation, long before) {
+            super(operation);
+            this.before = before;
+        }
+        public long before() {
+            return before;
+        }
+        public long after() {
+            return after;
+        }
+        public int duplicates() {
+            return duplicates;
+        }
+        @Override
+        public String toString() {
+            return super.toString() + String.format("duplicate entries dropped: %d%narchive size: %d bytes before, %d bytes after (%+.1f%%)%n",
+                    duplicates, before, after, before == 0 ? 0.0 : (after - before) * 100.0 / before);
+        }
+    }
+
+    /**
+     * The work done for each entry by {@link ZipEditor#parallel}.
+     */
+    private interface RecordTask {
+        public void run(ZipCentralDirectory.Reader reader, Record record) throws IOException;
+    }
+
+    /**
+     * Runs {@code task} for each of {@code records} on a pool of {@code threads}
+     * workers, which take the records from a shared queue in list order.
+     * Each worker reads through {@code shared} if it is not {@code null},
+     * or else through its own {@link ZipCentralDirectory.Reader}.  Exceptions
+     * thrown by {@code task} abandon the batch.
+     * @param records the records to process
+     * @param threads the maximum number of worker threads
+     * @param shared the shared reader, or {@code null} for a reader per worker
+     * @param result the result to record the thread count and elapsed time in
+     * @param task the work to do for each record
+     * @throws IOException
+     */
+    private void parallel(List<Record> records, int threads, ZipCentralDirectory.Reader shared,
+            ZipBatchResult result, RecordTask task) throws IOException {
+        long start = System.currentTimeMillis();
+        Queue<Record> queue = new ConcurrentLinkedQueue<>(records);
+        threads = Math.max(1, Math.min(threads, records.size()));
+        result.threads = threads;
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(workers.submit(() -> {
+                    try (ZipCentralDirectory.Reader own = shared == null ? new ZipCentralDirectory.Reader(original) : null) {
+                        ZipCentralDirectory.Reader reader = shared == null ? own : shared;
+                        Record record;
+                        while ((record = queue.poll()) != null) {
+                            task.run(reader, record);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(result.operation + " interrupted");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        result.millis = System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Verifies the integrity of every entry in the archive by inflating it
+     * and checking its CRC-32 and size against the central directory.  The
+     * entries are shared out, in archive order, among {@code threads}
+     * workers, reading with positional reads on the open file of the
+     * pinned {@link ZipGeneration}, so that large archives verify at the
+     * combined speed of many cores, and are not rewritten in place meanwhile.
+     * <p/>
+     * Entries that fail are reported in the result rather than thrown.
+     * @param threads the number of worker threads
+     * @return a summary of results in a {@link ZipBatchResult}
+     * @throws IOException if the central directory itself can not be read
+     */
+    public ZipBatchResult verify(int threads) throws IOException {
+        ZipBatchResult result = new ZipBatchResult("verified");
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile);
+             ZipCentralDirectory directory = new ZipCentralDirectory(generation.reader())) {
+            List<Record> records = new ArrayList<>(directory.records());
+            records.sort((a, b) -> Long.compare(a.offset(), b.offset()));
+            parallel(records, threads, directory.reader(), result, (reader, record) -> verify(reader, record, result));
+        }
+        return result;
+    }
+
+    /**
+     * Verifies a single entry, recording the outcome in {@code result}.
+     */
+    private void verify(ZipCentralDirectory.Reader reader, Record record, ZipBatchResult result) {
+        CRC32 crc = new CRC32();
+        long size = 0;
+        byte[] buf = new byte[BUFFER_SIZE];
+        try (InputStream in = reader.open(record, pool)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                crc.update(buf, 0, n);
+                size += n;
+            }
+        } catch (IOException e) {
+            result.failure(record.name(), e.getMessage());
+            return;
+        }
+        if (size != record.size()) {
+            result.failure(record.name(), String.format("size %d does not match directory size %d", size, record.size()));
+        } else if (crc.getValue() != record.crc()) {
+            result.failure(record.name(), String.format("CRC %08x does not match directory CRC %08x", crc.getValue(), record.crc()));
+        } else {
+            result.success(size);
+        }
+    }
+
+    /**
+     * A {@code ZipDestination} supplies the {@link OutputStream} to receive
+     * each entry retrieved by {@link ZipEditor#extract(Collection, ZipDestination, int)},
+     * and is allowed to throw an {@link IOException}.  It is called
+     * concurrently from many threads.
+     */
+    public interface ZipDestination {
+        /**
+         * Returns the {@link OutputStream} for the content of {@code entry}.
+         * The stream will be closed once the content is written.
+         * @param entry the entry about to be written
+         * @return the {@link OutputStream} to write to
+         * @throws IOException
+         */
+        public OutputStream open(ZipEntry entry) throws IOException;
+    }
+
+    /**
+     * Retrieves many entries at once, as for a wildcard {@code GET}.  The
+     * archive is opened once, and the entries are taken in archive order
+     * rather than the order requested, each streaming to the
+     * {@link OutputStream} supplied by {@code destination}.  With a single
+     * thread the archive is read sequentially through a {@link ZipReadahead},
+     * delivering each entry as its bytes stream past, which suits spinning
+     * disks and network volumes.  Otherwise the entries are inflated
+     * concurrently on a pool of at most {@code threads} workers with
+     * positional reads on the shared channel.
+     * <p/>
+     * The generation of the archive is pinned until all the entries are
+     * retrieved, so that it is not rewritten in place meanwhile.
+     * <p/>
+     * Directory entries are skipped.  Entries that are not found or that fail
+     * are reported in the result rather than thrown, but an exception from
+     * {@code destination} abandons the batch.
+     * @param paths the entries to retrieve
+     * @param destination the supplier of an {@link OutputStream} for each entry
+     * @param threads the maximum number of worker threads
+     * @return a summary of results in a {@link ZipBatchResult}
+     * @throws IOException
+     */
+    public ZipBatchResult extract(Collection<String> paths, ZipDestination destination, int threads) throws IOException {
+        ZipBatchResult result = new ZipBatchResult("extracted");
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile);
+             ZipCentralDirectory directory = new ZipCentralDirectory(generation.reader())) {
+            List<Record> records = new ArrayList<>();
+            for (String path : paths) {
+                Optional<Record> record = directory.record(path);
+                if (!record.isPresent()) {
+                    result.failure(path, "does not exist");
+                } else if (!record.get().isDirectory()) {
+                    records.add(record.get());
+                }
+            }
+            records.sort(Comparator.comparingLong(Record::offset));
+            if (threads > 1) {
+                parallel(records, threads, directory.reader(), result,
+                        (reader, record) -> extract(reader.open(record, pool), record, destination, result));
+            } else {
+                long start = System.currentTimeMillis();
+                result.threads = 1;
+                try (ZipReadahead readahead = new ZipReadahead(directory.reader().channel())) {
+                    for (Record record : records) {
+                        extract(readahead.open(record, pool), record, destination, result);
+                    }
+                }
+                result.millis = System.currentTimeMillis() - start;
+            }
+        } catch (FileNotFoundException|ZipException e) {
+            for (String path : paths) {
+                result.failure(path, "does not exist");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the content of one entry to the {@link OutputStream} supplied
+     * by {@code destination}, recording it in {@code result}.
+     */
+    private static void extract(InputStream content, Record record, ZipDestination destination,
+            ZipBatchResult result) throws IOException {
+        long size;
+        try (InputStream in = content;
+             OutputStream out = destination.open(record.toZipEntry())) {
+            size = ByteStreams.copy(in, out);
+        }
+        result.success(size);
+    }
+
+    /**
+     * Writes a new Zip archive of the entries under {@code directory} to
+     * {@code out}, named relative to {@code directory}.  The entries are
+     * copied as raw compressed bytes, and only their headers and the
+     * central directory are written anew, so exporting a directory costs
+     * no compression at all.  The entries are written in archive order,
+     * read sequentially through a {@link ZipReadahead} from the pinned
+     * {@link ZipGeneration}, so the export is of one generation even if the
+     * archive is edited meanwhile.  {@code out} is closed when done.
+     * @param directory the directory to export ({@code ""} for the whole archive)
+     * @param out where to write the new archive
+     * @return a summary of results in a {@link ZipBatchResult}
+     * @throws FileNotFoundException if the archive does not exist
+     * @throws IOException
+     */
+    public ZipBatchResult export(String directory, OutputStream out) throws IOException {
+        ZipBatchResult result = new ZipBatchResult("exported");
+        String prefix = Strings.isNullOrEmpty(directory) ? "" : normalizeDirectoryName(directory);
+        long start = System.currentTimeMillis();
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile);
+             ZipCentralDirectory source = new ZipCentralDirectory(generation.reader());
+             ZipArchiveWriter zos = new ZipArchiveWriter(new BufferedOutputStream(out, BUFFER_SIZE), pool, compressionLevel)) {
+            List<Record> records = new ArrayList<>();
+            for (Record record : source.records()) {
+                if (record.name().startsWith(prefix) && record.name().length() > prefix.length()) {
+                    records.add(record);
+                }
+            }
+            // the sort is stable, so the first of any duplicates stays first
+            records.sort(Comparator.comparing(Record::name));
+            List<Record> unique = new ArrayList<>(records.size());
+            for (Record record : records) {
+                if (unique.isEmpty() || !unique.get(unique.size()-1).name().equals(record.name())) {
+                    unique.add(record);
+                }
+            }
+            // then copy them in archive order, streaming the archive past once
+            unique.sort(Comparator.comparingLong(Record::offset));
+            try (ZipReadahead readahead = new ZipReadahead(source.reader().channel())) {
+                for (Record record : unique) {
+                    try (InputStream raw = readahead.openRaw(record)) {
+                        zos.copy(record, record.name().substring(prefix.length()), raw);
+                    }
+                    result.success(record.size());
+                }
+            }
+        }
+        result.threads = 1;
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Rewrites the archive with its entries sorted by name, which keeps the
+     * entries of each directory together, dropping all but the first of
+     * any entries with the same name (as {@link ZipIndex} does) and any
+     * space in the file not used by an entry.  Archives written by other
+     * tools are not necessarily sorted, and a repack restores the order
+     * that directory listings and {@link #process()} work best with.
+     * <p/>
+     * If {@code recompress} is requested, the content of every entry is
+     * inflated, checked, and encoded again at the editor's compression
+     * level ({@code 0} to store entries uncompressed), by {@code threads}
+     * workers in parallel, while the entries are written in order, and
+     * any {@link ZipIngest#MARKER} is dropped.  Otherwise entries are copied
+     * as raw compressed bytes.  Requested edits are left for {@link #process()}.
+     * @param recompress {@code true} to recompress every entry
+     * @param threads the number of worker threads for recompression
+     * @return a summary of results in a {@link ZipRepackResult}
+     * @throws IOException
+     */
+    public ZipRepackResult repack(boolean recompress, int threads) throws IOException {
+        return repack(recompress ? "recompressed" : "repacked", recompress ? (record) -> true : null,
+                threads, () -> false);
+    }
+
+    /**
+     * Recompresses the entries marked by {@link ZipIngest} as written at a
+     * fast ingest level, at the editor's compression level, repacking the
+     * archive as for {@link #repack(boolean, int)}.  The archive is left
+     * alone if no entry is marked.  If {@code yield} turns {@code true}
+     * between entries, the rewrite is abandoned, leaving the archive as it
+     * was.
+     * @param threads the number of worker threads for recompression
+     * @param yield whether to give up
+     * @return a summary of results in a {@link ZipRepackResult}
+     * @throws InterruptedIOException if the rewrite yielded
+     * @throws IOException
+     */
+    public ZipRepackResult settle(int threads, BooleanSupplier yield) throws IOException {
+        ZipUndo.recover(original);
+        try (ZipGeneration generation = ZipGeneration.pin(original, indexFile)) {
+            ZipIndex index = generation.index();
+            boolean marked = false;
+            for (int i = 0; i < index.size() && !marked; i++) {
+                marked = ZipIngest.marked(index.get(i));
+            }
+            if (!marked) {
+                ZipRepackResult result = new ZipRepackResult("settled", original.length());
+                result.after = result.before;
+                return result;
+            }
+        } catch (FileNotFoundException|ZipException e) {
+            return new ZipRepackResult("settled", 0L);
+        }
+        return repack("settled", ZipIngest::marked, threads, yield);
+    }
+
+    /**
+     * Repacks the archive, recompressing the entries matching {@code recode}
+     * (if not {@code null}) and copying the rest as raw compressed bytes.
+     */
+    private ZipRepackResult repack(String operation, Predicate<Record> recode, int threads, BooleanSupplier yield)
+            throws IOException {
+        ZipUndo.recover(original);
+        ZipRepackResult result = new ZipRepackResult(operation, original.length());
+        ZipBatchResult batch = result;
+        long start = System.currentTimeMillis();
+        File temp = unique(original);
+        List<Record> written;
+        long sequence;
+        try (ZipCentralDirectory directory = new ZipCentralDirectory(original)) {
+            sequence = ZipSequence.parse(directory.comment());
+            List<Record> records = new ArrayList<>(directory.records());
+            // the sort is stable, so the first of any duplicates stays first
+            records.sort(Comparator.comparing(Record::name));
+            List<Record> unique = new ArrayList<>(records.size());
+            for (Record record : records) {
+                if (!unique.isEmpty() && unique.get(unique.size()-1).name().equals(record.name())) {
+                    result.duplicates++;
+                } else {
+                    unique.add(record);
+                }
+            }
+            batch.threads = threads = recode != null ? Math.max(1, threads) : 1;
+            ExecutorService workers = recode != null ? Executors.newFixedThreadPool(threads) : null;
+            Queue<Future<ZipSpool>> window = new ArrayDeque<>();
+            try (ZipArchiveWriter zos = new ZipArchiveWriter(new BufferedOutputStream(ZipRewriteScheduler.getDefault().throttle(new FileOutputStream(temp)), BUFFER_SIZE), pool, compressionLevel)) {
+                zos.comment(directory.comment());
+                int next = 0;
+                for (Record record : unique) {
+                    if (yield.getAsBoolean()) {
+                        throw new InterruptedIOException(batch.operation + " yielded");
+                    }
+                    // keep a few entries ahead of the writer in the works
+                    while (workers != null && next < unique.size() && window.size() < 2 * threads) {
+                        Record ahead = unique.get(next++);
+                        window.add(ahead.isDirectory() || !recode.test(ahead) ? CompletableFuture.completedFuture(null)
+                                : workers.submit(() -> recode(directory, ahead)));
+                    }
+                    ZipSpool recoded = workers == null ? null : window.remove().get();
+                    if (recoded == null) {
+                        try (InputStream raw = directory.openRaw(record)) {
+                            zos.copy(record, record.name(), raw);
+                        }
+                    } else {
+                        try (ZipSpool spool = recoded;
+                             InputStream raw = new FileInputStream(spool.file())) {
+                            zos.copy(new Record(record.name(), ZipArchiveWriter.FLAG_UTF8,
+                                    spool.deflated() ? ZipEntry.DEFLATED : ZipEntry.STORED, record.dosTime(),
+                                    spool.crc(), spool.compressedSize(), spool.size(), -1L,
+                                    ZipIngest.unmark(record.extra()), record.comment()), record.name(), raw);
+                        }
+                    }
+                    result.success(record.size());
+                }
+                written = zos.records();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(batch.operation + " interrupted");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } finally {
+                if (workers != null) {
+                    workers.shutdownNow();
+                    // discard the work done ahead of a failure
+                    for (Future<ZipSpool> future : window) {
+                        try {
+                            ZipSpool spool = future.get();
+                            if (spool != null) {
+                                spool.close();
+                            }
+                        } catch (InterruptedException|ExecutionException|CancellationException e) {
+                            // nothing spooled
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        ZipGeneration.commit(original, () -> {
+            Files.move(temp.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            ZipInflateIndex.invalidate(original);
+            return publish(written, sequence);
+        });
+        result.after = original.length();
+        batch.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Inflates {@code record} and encodes it again into a spool at the
+     * editor's compression level, checking its CRC-32 and size on the way.
+     * @param directory the archive
+     * @param record the entry
+     * @return the spooled entry, which the caller must close
+     * @throws IOException
+     */
+    private ZipSpool recode(ZipCentralDirectory directory, Record record) throws IOException {
+        ZipSpool spool = new ZipSpool(original.getAbsoluteFile().getParentFile(), null);
+        try {
+            if (compressionLevel != Deflater.NO_COMPRESSION) {
+                spool.deflate(pool, compressionLevel);
+            }
+            spool.spool(directory.open(record, pool));
+            if (spool.crc() != record.crc() || spool.size() != record.size()) {
+                throw new ZipException("invalid entry CRC or size for " + record.name());
+            }
+            return spool;
+        } catch (IOException e) {
+            spool.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the number of leading {@code records}, sorted by name, that
+     * the requested edits leave untouched, when it pays to rewrite only the
+     * rest of the archive in place.  This requires the entries to be laid
+     * out in name order without duplicates, so that every entry from the
+     * first changed one on lies after it in the file, and the tail from the
+     * first changed entry to be less than half of the file, since it is
+     * written twice (once to the {@link ZipUndo} record).
+     * @param directory the archive
+     * @param records the entries, sorted by name
+     * @return the number of entries to keep in place, or {@code 0} to rewrite the whole archive
+     */
+    private int keepable(ZipCentralDirectory directory, List<Record> records) {
+        for (int i = 1; i < records.size(); i++) {
+            if (records.get(i).offset() <= records.get(i-1).offset()
+                    || records.get(i).name().equals(records.get(i-1).name())) {
+                return 0;
+            }
+        }
+        String first = adds.isEmpty() ? null : adds.firstKey();
+        int keep = 0;
+        for (Record record : records) {
+            String name = record.name();
+            if (first != null && name.compareTo(first) >= 0 || deletes.contains(name) || rmdirs.matches(name)) {
+                break;
+            }
+            keep++;
+        }
+        if (keep == records.size() && first == null) {
+            return 0; // nothing to change
+        }
+        long length = original.length();
+        long cut = keep < records.size() ? records.get(keep).offset() : directory.centralDirectoryOffset();
+        return 2 * (length - cut) < length ? keep : 0;
+    }
+
+    /**
+     * Makes a new generation of the archive current for readers, discarding
+     * the content cached for earlier generations and indexing {@code written},
+     * rather than parsing the archive again later.
+     * @param written the records written
+     * @param sequence the {@link ZipSequence} number recorded in the archive comment
+     * @return the records written
+     * @throws IOException
+     */
+    private List<Record> publish(List<Record> written, long sequence) throws IOException {
+        ZipContentCache.invalidateAll(original);
+        ZipIndex.written(original, written, sequence, indexFile);
+        return written;
+    }
+
+    /**
+     * Copies a retained entry, stamping it with {@code sequence} if it has
+     * no {@link ZipSequence} number yet.
+     */
+    private static void retain(ZipArchiveWriter zos, Record record, InputStream raw, long sequence) throws IOException {
+        zos.copy(record, record.name(), raw);
+        if (ZipSequence.of(record) == 0) {
+            zos.stamp(sequence);
+        }
+    }
+
+    /**
+     * Opens the raw compressed bytes of an entry of the original archive,
+     * from the {@code undo} record if the entry is in the tail being rewritten.
+     */
+    private static InputStream openRaw(ZipCentralDirectory directory, ZipUndo undo, Record record) throws IOException {
+        return undo != null && record.offset() >= undo.cut() ? undo.openRaw(record) : directory.openRaw(record);
     }
 
     /**
@@ -556,113 +1575,212 @@ public class ZipEditor {
      * <p/>
      * If the original Zip file does not exist yet, it is treated as
      * if it existed but is empty.
+     * <p/>
+     * Retained and renamed entries are copied as raw compressed bytes, so
+     * only new content is deflated, using a {@link Deflater} borrowed from
+     * the {@link ZipCodecPool}.
+     * <p/>
+     * With {@link #tailRewrite(boolean)}, if the entries before the first
+     * changed one make up most of the archive, they are left in place and
+     * only the rest is rewritten, in place, protected by a {@link ZipUndo}
+     * record.
+     * <p/>
+     * The entries added, replaced or renamed are stamped with the archive's
+     * next {@link ZipSequence} number, for {@link #since(String, long)}.
      * @return a summary of results in a {@link ZipProcessResult}
      * @throws IOException
      */
     public ZipProcessResult process() throws IOException {
+        ZipUndo.recover(original);
         ZipProcessResult result = new ZipProcessResult();
-        File temp = unique(original);
-        ZipFile zipFile;
-        EnumerationStepper<? extends ZipEntry> zipEntries;
+        File temp = null;
+        Closeable lock = null;
+        ZipUndo undo = null;
+        ZipCentralDirectory directory;
+        EnumerationStepper<Record> zipEntries;
+        List<Record> kept = Collections.emptyList();
+        long cut = -1L;
+        long sequence = 1L;
+        List<Record> written;
+        Map<File,ZipCentralDirectory.Reader> imports = new HashMap<>();
         try {
-            zipFile = new ZipFile(original);
-            zipEntries = new EnumerationStepper<>(zipFile.entries());
-            temp = unique(original);
+            directory = new ZipCentralDirectory(original);
+            // merge in name order, even if another tool wrote the entries unsorted
+            List<Record> records = new ArrayList<>(directory.records());
+            records.sort(Comparator.comparing(Record::name));
+            sequence = ZipSequence.last(directory.comment(), records) + 1;
+            int keep = tailRewrite ? keepable(directory, records) : 0;
+            if (keep > 0 && ZipGeneration.exclusive(original)) {
+                long next = sequence;
+                kept = records.subList(0, keep).stream()
+                        .map((record) -> ZipSequence.of(record) == 0 ? ZipSequence.stamp(record, next) : record)
+                        .collect(Collectors.toList());
+                records = records.subList(keep, records.size());
+                cut = records.isEmpty() ? directory.centralDirectoryOffset() : records.get(0).offset();
+            } else {
+                temp = unique(original);
+            }
+            zipEntries = new EnumerationStepper<>(Collections.enumeration(records));
         } catch (FileNotFoundException|ZipException e) {
-            zipFile = null;
+            directory = null;
             zipEntries = new EnumerationStepper<>();
             temp = original;
         }
-        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(temp))) {
-            zos.setLevel(compressionLevel);
-            for (Edit add : adds.values()) {
-                String addPath = add.path;
-                // copy over existing zip entries up-to-but-not-including this new path.
-                // this keeps the entries in sorted order (if they were already).
-                while (!zipEntries.done() && zipEntries.value().getName().compareTo(addPath) < 0) {
-                    String name = zipEntries.value().getName();
+        try {
+            OutputStream out;
+            if (cut >= 0) {
+                // held until the new tail is durable, or the original is back
+                lock = ZipUndo.lock(original);
+                undo = ZipUndo.record(original, cut);
+                out = undo.rewrite();
+            } else {
+                out = new FileOutputStream(temp);
+            }
+            try (ZipArchiveWriter zos = new ZipArchiveWriter(new BufferedOutputStream(ZipRewriteScheduler.getDefault().throttle(out), BUFFER_SIZE),
+                    pool, compressionLevel, Math.max(cut, 0L), kept)) {
+                zos.comment(ZipSequence.comment(sequence));
+                result.keeps += kept.size();
+                result.retained = Math.max(cut, 0L);
+                for (Edit add : adds.values()) {
+                    String addPath = add.path;
+                    // copy over existing zip entries up-to-but-not-including this new path.
+                    // this keeps the entries in sorted order (if they were already).
+                    while (!zipEntries.done() && zipEntries.value().name().compareTo(addPath) < 0) {
+                        Record record = zipEntries.value();
+                        String name = record.name();
+                        if (deletes.contains(name) || rmdirs.matches(name)) {
+                            result.delete();
+                        } else {
+                            try (InputStream raw = openRaw(directory, undo, record)) {
+                                retain(zos, record, raw, sequence);
+                                result.keep();
+                            }
+                        }
+                        zipEntries.step();
+                    }
+                    // add in the new path
+                    long now = new Date().getTime();
+                    switch (add.type) {
+                    case MKDIR:
+                        zos.mkdir(addPath, now);
+                        zos.stamp(sequence);
+                        result.add();
+                        break;
+                    case PUT:
+                        zos.write(addPath, now, add.writer);
+                        zos.stamp(sequence);
+                        result.add();
+                        break;
+                    case SPLICE:
+                        try (InputStream raw = new FileInputStream(add.spool.file())) {
+                            zos.copy(add.spool.record(addPath, now), addPath, raw);
+                        }
+                        zos.stamp(sequence);
+                        result.add();
+                        break;
+                    case COPY:
+                        ZipCentralDirectory.Reader reader = imports.get(add.archive);
+                        if (reader == null) {
+                            reader = new ZipCentralDirectory.Reader(add.archive);
+                            imports.put(add.archive, reader);
+                        }
+                        try (InputStream raw = reader.openRaw(add.record)) {
+                            zos.copy(add.record, addPath, raw);
+                        }
+                        zos.stamp(sequence);
+                        result.add();
+                        break;
+                    case RENAME:
+                        Optional<Record> source = directory == null ? Optional.empty() : directory.record(add.from);
+                        if (source.isPresent()) {
+                            try (InputStream raw = openRaw(directory, undo, source.get())) {
+                                zos.copy(source.get(), addPath, raw);
+                                zos.stamp(sequence);
+                                result.add();
+                            }
+                        }
+                        break;
+                    default:
+                        break;
+                    }
+                }
+                // copy over any remaining entries
+                while (!zipEntries.done()) {
+                    Record record = zipEntries.value();
+                    String name = record.name();
                     if (deletes.contains(name) || rmdirs.matches(name)) {
                         result.delete();
                     } else {
-                        ZipEntry copy = new ZipEntry(zipEntries.value());
-                        zos.putNextEntry(copy);
-                        try (BufferedInputStream read = new BufferedInputStream(zipFile.getInputStream(zipEntries.value()))) {
-                            ByteStreams.copy(read, zos);
-                            result.keep();
-                        } catch (IOException e) {
-                            // don't increment the keep counter
-                        } finally {
-                            zos.closeEntry();
+                        try (InputStream raw = openRaw(directory, undo, record)) {
+                            retain(zos, record, raw, sequence);
                         }
+                        result.keep();
                     }
                     zipEntries.step();
                 }
-                // add in the new path
-                ZipEntry addition = new ZipEntry(addPath);
-                addition.setTime(new Date().getTime());
-                switch (add.type) {
-                case MKDIR:
-                    zos.putNextEntry(addition);
-                    zos.closeEntry();
-                    result.add();
-                    break;
-                case PUT:
-                    zos.putNextEntry(addition);
-                    add.writer.write(new FilterOutputStream(zos) {
-                        @Override
-                        public void close() throws IOException {
-                            // ignore it!!!
-                        }
-                    });
-                    zos.closeEntry();
-                    result.add();
-                    break;
-                case RENAME:
-                    ZipEntry source = zipFile.getEntry(add.from);
-                    if (source != null) {
-                        addition.setTime(source.getTime());
-                        zos.putNextEntry(addition);
-                        try (BufferedInputStream read = new BufferedInputStream(zipFile.getInputStream(source))) {
-                            ByteStreams.copy(read, zos);
-                            result.add();
-                        } catch (IOException e) {
-                            // don't increment the add counter
-                        } finally {
-                            zos.closeEntry();
-                        }
-                    }
-                    break;
-                default:
-                    break;
+                written = zos.records();
+            }
+        } catch (IOException|RuntimeException e) {
+            if (undo != null) {
+                // put the original tail back, or leave the undo record for recovery
+                try {
+                    undo.restore();
+                } catch (IOException restore) {
+                    e.addSuppressed(restore);
                 }
             }
-            // copy over any remaining entries
-            while (!zipEntries.done()) {
-                String name = zipEntries.value().getName();
-                if (deletes.contains(name) || rmdirs.matches(name)) {
-                    result.delete();
+            if (cut >= 0) {
+                ZipGeneration.advance(original);
+            }
+            if (lock != null) {
+                lock.close();
+            }
+            if (temp != null && temp != original) {
+                // don't leave a copy of the archive behind for every failed attempt
+                Files.deleteIfExists(temp.toPath());
+            }
+            throw e;
+        } finally {
+            if (directory != null) {
+                directory.close();
+            }
+            for (ZipCentralDirectory.Reader reader : imports.values()) {
+                reader.close();
+            }
+        }
+        long committed = sequence;
+        try {
+            if (result.changes() == 0) {
+                // nothing happened -- delete the file we just wrote, or put the tail back
+                if (undo != null) {
+                    undo.restore();
                 } else {
-                    ZipEntry copy = new ZipEntry(zipEntries.value());
-                    zos.putNextEntry(copy);
-                    try (BufferedInputStream read = new BufferedInputStream(zipFile.getInputStream(zipEntries.value()))) {
-                        ByteStreams.copy(read, zos);
-                        zos.closeEntry();
-                    }
-                    result.keep();
+                    Files.delete(temp.toPath());
                 }
-                zipEntries.step();
+                ZipIndex.invalidate(original);
+            } else if (undo != null) {
+                // the new tail is durable -- the undo record is no longer needed
+                undo.discard();
+                publish(written, sequence);
+            } else if (directory != null) {
+                // we made a new file (not just a brand new file) -- overwrite the original.
+                // a plain move deletes the original first, so readers could find it missing
+                File replacement = temp;
+                ZipGeneration.commit(original, () -> {
+                    Files.move(replacement.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    return publish(written, committed);
+                });
+            } else {
+                ZipGeneration.commit(original, () -> publish(written, committed));
             }
         } finally {
-            if (zipFile != null) {
-                zipFile.close();
+            if (cut >= 0) {
+                ZipGeneration.advance(original);
+            }
+            if (lock != null) {
+                lock.close();
             }
-        }
-        if (result.changes() == 0) {
-            // nothing happened -- delete the file we just wrote
-            Files.delete(temp.toPath());
-        } else if (zipFile != null) {
-            // we made a new file (not just a brand new file) -- overwrite the original
-            Files.move(temp.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
         reset(); // once processed the updates are discarded
         return result;
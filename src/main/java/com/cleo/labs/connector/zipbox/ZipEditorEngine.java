@@ -0,0 +1,97 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipProcessResult;
+
+/**
+ * The default {@link ZipStorageEngine}, reading through the shared
+ * {@link ZipIndex} and {@link ZipHandlePool}, and applying each edit with a
+ * {@link ZipEditor} that splices spooled uploads into a copy of the archive
+ * (or into its tail, in place).
+ */
+public class ZipEditorEngine implements ZipStorageEngine {
+
+    /**
+     * The name the engine is selected by.
+     */
+    public static final String NAME = "editor";
+
+    private final File archive;
+    private final ZipEditor zip;
+
+    /**
+     * Creates an engine for {@code archive} using {@code zip}, configured
+     * as the connection requires, for its reads and edits.
+     * @param archive the archive
+     * @param zip the {@link ZipEditor} for the archive
+     */
+    public ZipEditorEngine(File archive, ZipEditor zip) {
+        this.archive = archive;
+        this.zip = zip;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean splices() {
+        return true;
+    }
+
+    @Override
+    public List<ZipEntry> list(String source) throws IOException {
+        return glob(source) ? zip.glob(source) : zip.entries(source);
+    }
+
+    @Override
+    public List<ZipEntry> since(String source, long sequence) throws IOException {
+        return zip.since(source, sequence);
+    }
+
+    @Override
+    public Optional<ZipEntry> stat(String path) throws IOException {
+        return zip.entry(path);
+    }
+
+    @Override
+    public Optional<InputStream> read(String path, long offset, long length) throws IOException {
+        return zip.open(path, offset, length);
+    }
+
+    @Override
+    public ZipProcessResult write(String path, ZipSpool spool) throws IOException {
+        return process(zip.add(path, spool));
+    }
+
+    @Override
+    public ZipProcessResult delete(String path) throws IOException {
+        return process(zip.delete(path));
+    }
+
+    @Override
+    public ZipProcessResult rename(String from, String to) throws IOException {
+        return process(zip.rename(from, to));
+    }
+
+    @Override
+    public ZipProcessResult mkdir(String path) throws IOException {
+        return process(zip.mkdir(path));
+    }
+
+    @Override
+    public ZipProcessResult rmdir(String path) throws IOException {
+        return process(zip.rmdir(path));
+    }
+
+    private ZipProcessResult process(ZipEditor edits) throws IOException {
+        return ZipCommitter.exclusive(archive, edits::process);
+    }
+}
@@ -0,0 +1,455 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipProcessResult;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A {@link ZipStorageEngine} backed by the JDK's Zip file system provider
+ * ({@code jdk.nio.zipfs}).  The provider reads the whole central directory
+ * each time the archive is opened, holds the changes made through it in
+ * memory (or in temporary files), and writes them out as a new archive
+ * when it is closed, recompressing the entries it added.  Each command is
+ * one such batch.
+ * <p/>
+ * The provider replaces the file it edits by deleting it and moving the new
+ * one into place, so readers could find the archive missing.  Instead, an
+ * edit opens the provider on a hard link to the archive (or a copy, where
+ * links are not supported), and the result is moved over the archive
+ * atomically when the new {@link ZipGeneration} is committed.  Reads pin
+ * the current generation, so they are not disturbed by rewrites in place
+ * made through the {@link ZipEditorEngine}.
+ */
+public class ZipFsEngine implements ZipStorageEngine {
+
+    /**
+     * The name the engine is selected by.
+     */
+    public static final String NAME = "zipfs";
+
+    private static final String ROOT = "/";
+    private static final Map<String,String> OPEN = Collections.emptyMap();
+    private static final Map<String,String> CREATE = Collections.singletonMap("create", "true");
+
+    private final File archive;
+
+    /**
+     * Creates an engine for {@code archive}.
+     * @param archive the archive
+     */
+    public ZipFsEngine(File archive) {
+        this.archive = archive;
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean splices() {
+        return false;
+    }
+
+    /**
+     * Returns the installed Zip file system provider.  Its file systems are
+     * opened through {@link FileSystemProvider#newFileSystem(Path, Map)},
+     * which unlike {@link java.nio.file.FileSystems#newFileSystem(java.net.URI, Map)}
+     * does not register them, so any number may be open on one archive.
+     * @return the provider
+     * @throws ProviderNotFoundException if there is none
+     */
+    private static FileSystemProvider provider() {
+        for (FileSystemProvider provider : FileSystemProvider.installedProviders()) {
+            if (provider.getScheme().equalsIgnoreCase("jar")) {
+                return provider;
+            }
+        }
+        throw new ProviderNotFoundException("jar");
+    }
+
+    /**
+     * The pinned current generation of the archive, open through the provider.
+     */
+    private class Snapshot implements Closeable {
+        private final ZipGeneration generation;
+        private final FileSystem fs;
+        private Snapshot(ZipGeneration generation, FileSystem fs) {
+            this.generation = generation;
+            this.fs = fs;
+        }
+        private Path root() {
+            return fs.getPath(ROOT);
+        }
+        @Override
+        public void close() throws IOException {
+            try {
+                fs.close();
+            } finally {
+                generation.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the current generation of the archive for reading.  The zipfs
+     * provider opens the archive by name, so if a commit comes between
+     * pinning the generation and opening it, the snapshot is opened again.
+     * @return the {@link Snapshot}, or {@code Optional.empty()} if the archive is missing or empty
+     * @throws IOException
+     */
+    private Optional<Snapshot> snapshot() throws IOException {
+        while (true) {
+            ZipGeneration generation;
+            try {
+                generation = ZipGeneration.pin(archive, false);
+            } catch (FileNotFoundException|ZipException e) {
+                return Optional.empty();
+            }
+            FileSystem fs;
+            try {
+                fs = provider().newFileSystem(archive.toPath(), OPEN);
+            } catch (IOException|RuntimeException e) {
+                generation.close();
+                throw e;
+            }
+            Snapshot snapshot = new Snapshot(generation, fs);
+            boolean current = false;
+            try {
+                // current waits out a commit in progress, so a newer file is caught here
+                current = ZipGeneration.current(archive) == generation.number();
+            } finally {
+                if (!current) {
+                    snapshot.close();
+                }
+            }
+            if (current) {
+                return Optional.of(snapshot);
+            }
+        }
+    }
+
+    private static Path resolve(Path root, String path) {
+        String relative = path == null ? "" : path.replaceAll("^/+|/+$", "");
+        return relative.isEmpty() || relative.equals(".") ? root : root.resolve(relative);
+    }
+
+    private static ZipEntry entry(Path path, BasicFileAttributes attributes) {
+        String name = path.toString().substring(ROOT.length());
+        ZipEntry entry = new ZipEntry(attributes.isDirectory() ? ZipEditor.normalizeDirectoryName(name) : name);
+        entry.setTime(attributes.lastModifiedTime().toMillis());
+        if (!attributes.isDirectory()) {
+            entry.setSize(attributes.size());
+        }
+        return entry;
+    }
+
+    private static ZipEntry entry(Path path) throws IOException {
+        return entry(path, Files.readAttributes(path, BasicFileAttributes.class));
+    }
+
+    /**
+     * Returns {@code start} and everything below it, parents before children.
+     */
+    private static List<Path> walk(Path start) throws IOException {
+        try (Stream<Path> paths = Files.walk(start)) {
+            return paths.sorted(Comparator.comparing(Path::toString)).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public List<ZipEntry> list(String source) throws IOException {
+        List<ZipEntry> result = new ArrayList<>();
+        Pattern glob = glob(source) ? ZipIndex.compile(source) : null;
+        Optional<Snapshot> snapshot = snapshot();
+        if (!snapshot.isPresent()) {
+            return result;
+        }
+        try (Snapshot zipfs = snapshot.get()) {
+            Path root = zipfs.root();
+            if (glob != null) {
+                for (Path path : walk(root)) {
+                    if (!path.equals(root)) {
+                        ZipEntry entry = entry(path);
+                        if (glob.matcher(entry.getName()).matches()) {
+                            result.add(entry);
+                        }
+                    }
+                }
+            } else {
+                Path directory = resolve(root, source);
+                if (Files.isDirectory(directory)) {
+                    try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+                        for (Path child : children) {
+                            result.add(entry(child));
+                        }
+                    }
+                }
+            }
+        }
+        result.sort(Comparator.comparing(ZipEntry::getName));
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The provider neither reads nor writes {@link ZipSequence} numbers, so
+     * this lists every entry under (or matching) {@code source}, whatever
+     * the sequence, rather than miss the entries the provider wrote.
+     */
+    @Override
+    public List<ZipEntry> since(String source, long sequence) throws IOException {
+        List<ZipEntry> result = new ArrayList<>();
+        Optional<Snapshot> snapshot = snapshot();
+        if (!snapshot.isPresent()) {
+            return result;
+        }
+        try (Snapshot zipfs = snapshot.get()) {
+            Path root = zipfs.root();
+            Pattern glob = ZipIndex.isGlob(source) ? ZipIndex.compile(source) : null;
+            Path start = glob != null ? root : resolve(root, source);
+            if (Files.isDirectory(start)) {
+                for (Path path : walk(start)) {
+                    if (!path.equals(start)) {
+                        ZipEntry entry = entry(path);
+                        if (glob == null || glob.matcher(entry.getName()).matches()) {
+                            result.add(entry);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Optional<ZipEntry> stat(String path) throws IOException {
+        Optional<Snapshot> snapshot = snapshot();
+        if (!snapshot.isPresent()) {
+            return Optional.empty();
+        }
+        try (Snapshot zipfs = snapshot.get()) {
+            Path target = resolve(zipfs.root(), path);
+            return Files.exists(target) && !target.equals(zipfs.root())
+                    ? Optional.of(entry(target))
+                    : Optional.empty();
+        }
+    }
+
+    @Override
+    public Optional<InputStream> read(String path, long offset, long length) throws IOException {
+        Optional<Snapshot> snapshot = snapshot();
+        if (!snapshot.isPresent()) {
+            return Optional.empty();
+        }
+        Snapshot zipfs = snapshot.get();
+        try {
+            Path target = resolve(zipfs.root(), path);
+            if (!Files.isRegularFile(target)) {
+                zipfs.close();
+                return Optional.empty();
+            }
+            InputStream in = Files.newInputStream(target);
+            ByteStreams.skipFully(in, offset);
+            return Optional.of(new FilterInputStream(length < 0 ? in : ByteStreams.limit(in, length)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zipfs.close();
+                    }
+                }
+            });
+        } catch (IOException|RuntimeException e) {
+            zipfs.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An edit of the archive, open through the provider at {@code root},
+     * recording what it does in {@code result}.
+     */
+    private interface Edit {
+        void apply(Path root, ZipProcessResult result) throws IOException;
+    }
+
+    /**
+     * Applies {@code edit} to a new generation of the archive, committing
+     * it if anything changed.
+     * @param edit the edit
+     * @return the result
+     * @throws IOException
+     */
+    private ZipProcessResult edit(Edit edit) throws IOException {
+        return ZipCommitter.exclusive(archive, () -> {
+            ZipProcessResult result = new ZipProcessResult();
+            File temp = File.createTempFile(archive.getName() + "-", ".zipfs", archive.getAbsoluteFile().getParentFile());
+            Files.delete(temp.toPath());
+            try {
+                boolean exists = archive.length() > 0;
+                if (exists) {
+                    link(archive, temp);
+                }
+                try (FileSystem fs = provider().newFileSystem(temp.toPath(), exists ? OPEN : CREATE)) {
+                    edit.apply(fs.getPath(ROOT), result);
+                }
+                // the provider leaves the file alone if nothing changed
+                if (result.changes() > 0 && temp.exists()
+                        && !(exists && Files.isSameFile(temp.toPath(), archive.toPath()))) {
+                    ZipGeneration.commit(archive, () -> {
+                        Files.move(temp.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                        ZipContentCache.invalidateAll(archive);
+                        ZipInflateIndex.invalidate(archive);
+                        ZipIndex.invalidate(archive);
+                        return null;
+                    });
+                }
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Makes {@code temp} a hard link to {@code archive}, or a copy of it if
+     * the file system does not support links.
+     */
+    private static void link(File archive, File temp) throws IOException {
+        try {
+            Files.createLink(temp.toPath(), archive.toPath());
+        } catch (UnsupportedOperationException|FileSystemException e) {
+            Files.copy(archive.toPath(), temp.toPath());
+        }
+    }
+
+    @Override
+    public ZipProcessResult write(String path, ZipSpool spool) throws IOException {
+        return edit((root, result) -> {
+            Path target = resolve(root, path);
+            if (target.equals(root) || Files.isDirectory(target)) {
+                return;
+            }
+            if (Files.exists(target)) {
+                result.delete();
+            }
+            if (target.getParent() != null) {
+                Files.createDirectories(target.getParent());
+            }
+            try (InputStream in = spool.open()) {
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            result.add();
+        });
+    }
+
+    @Override
+    public ZipProcessResult delete(String path) throws IOException {
+        return edit((root, result) -> {
+            Path target = resolve(root, path);
+            if (Files.isRegularFile(target)) {
+                Files.delete(target);
+                result.delete();
+            }
+        });
+    }
+
+    @Override
+    public ZipProcessResult rename(String from, String to) throws IOException {
+        return edit((root, result) -> {
+            Path source = resolve(root, from);
+            Path target = resolve(root, to);
+            if (source.equals(root) || !Files.exists(source)) {
+                return;
+            }
+            if (target.equals(root) || target.startsWith(source)) {
+                // found but not moved: the rename failed
+                result.delete();
+                return;
+            }
+            List<Path> paths = walk(source);
+            for (Path path : paths) {
+                Path moved = target.resolve(source.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    if (!Files.isDirectory(moved)) {
+                        Files.createDirectories(moved);
+                        result.add();
+                    }
+                } else {
+                    if (moved.getParent() != null) {
+                        Files.createDirectories(moved.getParent());
+                    }
+                    Files.move(path, moved, StandardCopyOption.REPLACE_EXISTING);
+                    result.delete();
+                    result.add();
+                }
+            }
+            Collections.reverse(paths);
+            for (Path path : paths) {
+                if (Files.isDirectory(path)) {
+                    Files.delete(path);
+                    result.delete();
+                }
+            }
+        });
+    }
+
+    @Override
+    public ZipProcessResult mkdir(String path) throws IOException {
+        return edit((root, result) -> {
+            Path target = resolve(root, path);
+            if (Files.exists(target)) {
+                result.delete();
+            } else {
+                Files.createDirectories(target);
+                result.add();
+            }
+        });
+    }
+
+    @Override
+    public ZipProcessResult rmdir(String path) throws IOException {
+        return edit((root, result) -> {
+            Path target = resolve(root, path);
+            if (target.equals(root) || !Files.isDirectory(target)) {
+                return;
+            }
+            List<Path> paths = walk(target);
+            Collections.reverse(paths);
+            for (Path each : paths) {
+                Files.delete(each);
+                result.delete();
+            }
+        });
+    }
+}
@@ -0,0 +1,228 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A generation of an archive pinned by a reader, so that the reader sees a
+ * consistent archive however many rewrites are committed while it reads.
+ * <p/>
+ * Each commit of a rewrite starts a new generation.  A rewrite that copies
+ * the archive replaces it with a new file, so a reader that pinned an
+ * earlier generation keeps reading the file it opened, which the
+ * filesystem reclaims when its last reader closes.  A pinned generation
+ * pairs the open file, shared through the {@link ZipHandlePool}, with the
+ * {@link ZipIndex} of that same file: the
+ * step that publishes a new generation (moving the new file into place
+ * and indexing it) runs in {@link #commit(File, ZipRewriteScheduler.Rewrite)}
+ * excluding readers from pinning, and a reader whose pin straddles a commit
+ * tries again.
+ * <p/>
+ * A rewrite in place (see {@link ZipEditor#tailRewrite(boolean)}) can only
+ * take {@link #exclusive(File)} access to the current generation when no
+ * reader has it pinned, and readers arriving during the rewrite wait for
+ * it to {@link #advance(File)}.
+ */
+public class ZipGeneration implements Closeable {
+
+    /**
+     * The generations of an archive: the current one, the number of
+     * readers pinning it, and whether it is being rewritten in place.
+     */
+    private static class Generations {
+        private long current = 0L;
+        private int pinned = 0;
+        private boolean rewriting = false;
+    }
+
+    private static final Map<String,Generations> ARCHIVES = new HashMap<>();
+
+    private static Generations generations(File archive) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (ARCHIVES) {
+            return ARCHIVES.computeIfAbsent(key, (k) -> new Generations());
+        }
+    }
+
+    /**
+     * Pins the current generation of {@code archive}, opening it and
+     * finding its index.  The pin must be closed to release the archive.
+     * @param archive the archive
+     * @param sidecar {@code true} to create an index sidecar if needed, as for {@link ZipIndex#of(File, boolean)}
+     * @return the pinned generation
+     * @throws java.io.FileNotFoundException if the archive does not exist
+     * @throws java.util.zip.ZipException if the archive is empty or invalid
+     * @throws IOException
+     */
+    public static ZipGeneration pin(File archive, boolean sidecar) throws IOException {
+        Generations generations = generations(archive);
+        while (true) {
+            long number;
+            synchronized (generations) {
+                try {
+                    while (generations.rewriting) {
+                        generations.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for " + archive);
+                }
+                number = generations.current;
+                generations.pinned++;
+            }
+            ZipHandlePool.Handle handle = null;
+            try {
+                ZipIndex index = ZipIndex.of(archive, sidecar);
+                handle = ZipHandlePool.getDefault().acquire(archive, number, index);
+                synchronized (generations) {
+                    if (generations.current == number) {
+                        return new ZipGeneration(generations, number, handle);
+                    }
+                }
+            } catch (IOException e) {
+                unpin(generations, number);
+                if (handle != null) {
+                    handle.close();
+                }
+                throw e;
+            }
+            // a commit came between pinning the generation and opening it
+            unpin(generations, number);
+            handle.close();
+        }
+    }
+
+    /**
+     * Publishes a new generation of {@code archive}, running {@code publish}
+     * (which should move the new file into place and index it) while
+     * readers are kept from pinning a generation.  The idle handles on the
+     * archive are closed and its cached index dropped before {@code publish}
+     * runs, since a file held open (or its sidecar mapped) cannot be replaced
+     * on every platform; any a reader opens meanwhile are discarded after.
+     * @param archive the archive
+     * @param publish the step that makes the new generation current
+     * @return the result of {@code publish}
+     * @throws IOException
+     */
+    public static <T> T commit(File archive, ZipRewriteScheduler.Rewrite<T> publish) throws IOException {
+        Generations generations = generations(archive);
+        synchronized (generations) {
+            ZipHandlePool.getDefault().invalidate(archive);
+            ZipIndex.invalidate(archive);
+            try {
+                return publish.run();
+            } finally {
+                generations.current++;
+                generations.pinned = 0;
+                ZipHandlePool.getDefault().invalidate(archive);
+                generations.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes exclusive access to the current generation of {@code archive}
+     * to rewrite it in place, if no reader has it pinned.  Readers wait
+     * until the rewrite ends with {@link #advance(File)}.
+     * @param archive the archive
+     * @return {@code true} if the archive may be rewritten in place
+     * @throws IOException
+     */
+    public static boolean exclusive(File archive) throws IOException {
+        Generations generations = generations(archive);
+        synchronized (generations) {
+            if (generations.pinned > 0 || generations.rewriting) {
+                return false;
+            }
+            generations.rewriting = true;
+            return true;
+        }
+    }
+
+    /**
+     * Ends a rewrite in place begun with {@link #exclusive(File)}, whether
+     * or not it succeeded, starting a new generation.
+     * @param archive the archive
+     * @throws IOException
+     */
+    public static void advance(File archive) throws IOException {
+        Generations generations = generations(archive);
+        synchronized (generations) {
+            generations.current++;
+            generations.pinned = 0;
+            generations.rewriting = false;
+            ZipHandlePool.getDefault().invalidate(archive);
+            generations.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the number of the current generation of {@code archive}.
+     * @param archive the archive
+     * @return the generation number
+     * @throws IOException
+     */
+    public static long current(File archive) throws IOException {
+        Generations generations = generations(archive);
+        synchronized (generations) {
+            return generations.current;
+        }
+    }
+
+    private static void unpin(Generations generations, long number) {
+        synchronized (generations) {
+            if (generations.current == number && generations.pinned > 0) {
+                generations.pinned--;
+            }
+        }
+    }
+
+    private final Generations generations;
+    private final long number;
+    private final ZipHandlePool.Handle handle;
+    private boolean closed = false;
+
+    private ZipGeneration(Generations generations, long number, ZipHandlePool.Handle handle) {
+        this.generations = generations;
+        this.number = number;
+        this.handle = handle;
+    }
+
+    public long number() {
+        return number;
+    }
+
+    /**
+     * Returns the index of the pinned generation.
+     * @return the {@link ZipIndex}
+     */
+    public ZipIndex index() {
+        return handle.index();
+    }
+
+    /**
+     * Returns the open file of the pinned generation.
+     * @return the {@link ZipCentralDirectory.Reader}
+     */
+    public ZipCentralDirectory.Reader reader() {
+        return handle.reader();
+    }
+
+    /**
+     * Releases the pin, returning the open file to the {@link ZipHandlePool}.
+     * The file of a generation that is no longer current is reclaimed once
+     * its last reader closes it.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            unpin(generations, number);
+            handle.close();
+        }
+    }
+}
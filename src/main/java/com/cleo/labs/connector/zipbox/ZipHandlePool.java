@@ -0,0 +1,340 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of open archives, so that the commands reading an archive share
+ * one open file (and its index) instead of each opening it again.  Handles
+ * are keyed by archive and {@link ZipGeneration}, and counted by reference:
+ * any number of readers may use a handle at once, since all reads are
+ * positional.
+ * <p/>
+ * A handle no reader is using stays open for {@code idleMillis}, and at
+ * most {@code capacity} such idle handles are kept, the least recently used
+ * being closed first.  The handles of an archive are discarded when a new
+ * generation is committed, or the {@link ZipWatcher} sees it change, and are
+ * closed as soon as their last reader releases them.
+ * <p/>
+ * The limits may be set for each archive, as they are configured for the
+ * connections to it, so that connections to different archives do not
+ * override each other's settings.
+ */
+public class ZipHandlePool {
+
+    /**
+     * The default maximum number of idle handles.
+     */
+    public static final int DEFAULT_CAPACITY = 32;
+    /**
+     * The default time an idle handle stays open.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 60_000L;
+
+    private static final ZipHandlePool DEFAULT = new ZipHandlePool(DEFAULT_CAPACITY, DEFAULT_IDLE_MILLIS);
+
+    static {
+        ZipWatcher.getDefault().addListener(DEFAULT::invalidate);
+    }
+
+    /**
+     * Returns the JVM-wide pool.
+     * @return the shared pool
+     */
+    public static ZipHandlePool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The limits set for the idle handles of one archive.
+     */
+    private static class Limits {
+        private final int capacity;
+        private final long idleMillis;
+
+        private Limits(int capacity, long idleMillis) {
+            this.capacity = capacity;
+            this.idleMillis = idleMillis;
+        }
+    }
+
+    /**
+     * An open archive, shared by the readers of one generation.  Each
+     * reader must {@link #close()} the handle it acquired.
+     */
+    public class Handle implements Closeable {
+        private final String path;
+        private final String key;
+        private final ZipCentralDirectory.Reader reader;
+        private final ZipIndex index;
+        private int refs = 1;
+        private boolean stale = false;
+        private long idleSince = 0L;
+
+        private Handle(String path, String key, ZipCentralDirectory.Reader reader, ZipIndex index) {
+            this.path = path;
+            this.key = key;
+            this.reader = reader;
+            this.index = index;
+        }
+
+        public ZipCentralDirectory.Reader reader() {
+            return reader;
+        }
+
+        public ZipIndex index() {
+            return index;
+        }
+
+        /**
+         * Releases the handle, leaving it open for the next reader.
+         */
+        @Override
+        public void close() throws IOException {
+            release(this);
+        }
+    }
+
+    private final LinkedHashMap<String,Handle> handles = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String,Limits> limits = new HashMap<>();
+    private int capacity;
+    private long idleMillis;
+    private long hits = 0L;
+    private long opens = 0L;
+    private long evictions = 0L;
+
+    /**
+     * Creates a new empty pool.  Most uses should share the pool from
+     * {@link #getDefault()}.
+     * @param capacity the maximum number of idle handles, or {@code 0} to close handles once released
+     * @param idleMillis the time an idle handle stays open
+     */
+    public ZipHandlePool(int capacity, long idleMillis) {
+        configure(capacity, idleMillis);
+    }
+
+    /**
+     * Changes the limits on idle handles, for the archives with no limits
+     * of their own.
+     * @param capacity the maximum number of idle handles, or {@code 0} to close handles once released
+     * @param idleMillis the time an idle handle stays open
+     * @return {@code this}, to allow fluent style use
+     */
+    public synchronized ZipHandlePool configure(int capacity, long idleMillis) {
+        this.capacity = Math.max(0, capacity);
+        this.idleMillis = Math.max(0L, idleMillis);
+        sweep();
+        return this;
+    }
+
+    /**
+     * Sets the limits on the idle handles of {@code archive}.  Its handles
+     * stay open for {@code idleMillis} once idle, or are closed once released
+     * if {@code capacity} is {@code 0}.  Once any archive has limits of its
+     * own, the pool keeps as many idle handles as the largest capacity set
+     * for any archive.
+     * @param archive the archive
+     * @param capacity the maximum number of idle handles, or {@code 0} to close the handles of {@code archive} once released
+     * @param idleMillis the time an idle handle of {@code archive} stays open
+     * @return {@code this}, to allow fluent style use
+     * @throws IOException
+     */
+    public ZipHandlePool configure(File archive, int capacity, long idleMillis) throws IOException {
+        String path = archive.getCanonicalPath();
+        synchronized (this) {
+            limits.put(path, new Limits(Math.max(0, capacity), Math.max(0L, idleMillis)));
+            sweep();
+        }
+        return this;
+    }
+
+    /**
+     * Acquires a handle on generation {@code generation} of {@code archive},
+     * sharing the open handle if there is one with the same {@code index},
+     * or opening the archive if not.  The caller must have the generation
+     * pinned, and must close the handle when done.
+     * @param archive the archive
+     * @param generation the pinned generation
+     * @param index the index of the generation
+     * @return the handle
+     * @throws IOException
+     */
+    public Handle acquire(File archive, long generation, ZipIndex index) throws IOException {
+        String path = archive.getCanonicalPath();
+        String key = path + ":" + generation;
+        synchronized (this) {
+            Handle handle = handles.get(key);
+            if (handle != null && handle.index == index) {
+                handle.refs++;
+                hits++;
+                return handle;
+            } else if (handle != null) {
+                // the archive was changed by someone else
+                discard(handle);
+            }
+        }
+        Handle opened = new Handle(path, key, new ZipCentralDirectory.Reader(archive), index);
+        List<Handle> closing = new ArrayList<>();
+        synchronized (this) {
+            opens++;
+            Handle handle = handles.get(key);
+            if (handle != null && handle.index == index) {
+                // another reader opened it first
+                handle.refs++;
+                closing.add(opened);
+                opened = handle;
+            } else {
+                if (handle != null) {
+                    discard(handle);
+                }
+                handles.put(key, opened);
+            }
+        }
+        for (Handle handle : closing) {
+            handle.reader.close();
+        }
+        return opened;
+    }
+
+    private synchronized void release(Handle handle) throws IOException {
+        if (handle.refs <= 0) {
+            return;
+        }
+        handle.refs--;
+        if (handle.refs == 0) {
+            if (handle.stale) {
+                handle.reader.close();
+            } else {
+                handle.idleSince = System.currentTimeMillis();
+            }
+        }
+        sweep();
+    }
+
+    /**
+     * Discards the handles of {@code archive}, closing those not in use.
+     * Handles in use are closed when released.
+     * @param archive the archive
+     */
+    public synchronized void invalidate(File archive) {
+        String prefix;
+        try {
+            prefix = archive.getCanonicalPath() + ":";
+        } catch (IOException e) {
+            prefix = archive.getAbsolutePath() + ":";
+        }
+        Iterator<Handle> i = handles.values().iterator();
+        while (i.hasNext()) {
+            Handle handle = i.next();
+            if (handle.key.startsWith(prefix)) {
+                i.remove();
+                stale(handle);
+            }
+        }
+    }
+
+    /**
+     * Removes {@code handle} from the pool, closing it if not in use.
+     */
+    private void discard(Handle handle) {
+        handles.remove(handle.key);
+        stale(handle);
+    }
+
+    private void stale(Handle handle) {
+        handle.stale = true;
+        if (handle.refs == 0) {
+            closeQuietly(handle);
+        }
+    }
+
+    /**
+     * Closes the idle handles that have been idle too long, and the least
+     * recently used idle handles beyond the capacity.
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        int capacity = capacity();
+        int idle = 0;
+        for (Handle handle : handles.values()) {
+            if (handle.refs == 0) {
+                idle++;
+            }
+        }
+        Iterator<Handle> i = handles.values().iterator();
+        while (i.hasNext()) {
+            Handle handle = i.next();
+            Limits limit = limits.get(handle.path);
+            long idleMillis = limit == null ? this.idleMillis : limit.idleMillis;
+            boolean keep = limit == null || limit.capacity > 0;
+            if (handle.refs == 0 && (idle > capacity || !keep || now - handle.idleSince >= idleMillis)) {
+                i.remove();
+                closeQuietly(handle);
+                idle--;
+                evictions++;
+            }
+        }
+    }
+
+    /**
+     * Returns the maximum number of idle handles: the largest capacity set
+     * for any archive, or the capacity of the pool if none has been.
+     */
+    private int capacity() {
+        if (limits.isEmpty()) {
+            return capacity;
+        }
+        int largest = 0;
+        for (Limits limit : limits.values()) {
+            largest = Math.max(largest, limit.capacity);
+        }
+        return largest;
+    }
+
+    private static void closeQuietly(Handle handle) {
+        try {
+            handle.reader.close();
+        } catch (IOException e) {
+            // nothing more to do with it
+        }
+    }
+
+    /**
+     * Returns the number of open handles, in use or idle.
+     * @return the handle count
+     */
+    public synchronized int size() {
+        return handles.size();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long opens() {
+        return opens;
+    }
+
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int idle = 0;
+        for (Map.Entry<String,Handle> entry : handles.entrySet()) {
+            if (entry.getValue().refs == 0) {
+                idle++;
+            }
+        }
+        return String.format("handle pool %d open (%d idle, max %d), hits=%d opens=%d evictions=%d",
+                handles.size(), idle, capacity(), hits, opens, evictions);
+    }
+}
@@ -0,0 +1,615 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A sorted index of the entry names in an archive, so that lookups,
+ * directory listings and glob patterns can be answered by binary search
+ * and a scan of just the matching range of names rather than a pass over
+ * the whole central directory.  Since names are sorted, the entries under
+ * any directory form a contiguous range, so the index also serves as the
+ * directory tree.
+ * <p/>
+ * Where an archive contains more than one entry with the same name, the
+ * first one in the central directory is indexed, as for
+ * {@link ZipCentralDirectory#record(String)}.
+ * <p/>
+ * The index also orders the records by their {@link ZipSequence} numbers,
+ * so that {@link #since(long)} finds the entries changed since a poller last
+ * looked with a binary search, at a cost proportional to the number found.
+ * <p/>
+ * An index is either built in memory from the central directory or
+ * mapped from a {@link ZipIndexFile} sidecar, if a valid one exists.
+ * Indexes are cached per archive and rebuilt when the file's size,
+ * modification time or file key (inode) changes, checked as often as the {@link ZipWatcher}
+ * requires.  {@link ZipEditor} also replaces the index explicitly
+ * whenever it rewrites the archive.
+ */
+public abstract class ZipIndex {
+
+    /**
+     * The maximum number of archive indexes retained.
+     */
+    public static final int CACHE_SIZE = 64;
+
+    private static final Cache<String,ZipIndex> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(CACHE_SIZE)
+            .softValues()
+            .build();
+
+    /**
+     * Returns the (possibly cached) index for {@code file}, using a valid
+     * {@link ZipIndexFile} sidecar if there is one.
+     * @param file the archive
+     * @return the index
+     * @throws java.io.FileNotFoundException if the archive does not exist
+     * @throws java.util.zip.ZipException if the archive is empty or invalid
+     * @throws IOException
+     */
+    public static ZipIndex of(File file) throws IOException {
+        return of(file, false);
+    }
+
+    /**
+     * Returns the (possibly cached) index for {@code file}, using a valid
+     * {@link ZipIndexFile} sidecar if there is one.  If the index has to be
+     * built from the central directory, a sidecar is (re)written if
+     * {@code sidecar} is requested or if a (stale) sidecar already exists.
+     * @param file the archive
+     * @param sidecar {@code true} to create a sidecar if needed
+     * @return the index
+     * @throws java.io.FileNotFoundException if the archive does not exist
+     * @throws java.util.zip.ZipException if the archive is empty or invalid
+     * @throws IOException
+     */
+    public static ZipIndex of(File file, boolean sidecar) throws IOException {
+        String key = file.getCanonicalPath();
+        ZipIndex index = CACHE.getIfPresent(key);
+        if (index != null && (!ZipWatcher.getDefault().revalidate(key)
+                || index.modified == file.lastModified() && index.length == file.length()
+                        && Objects.equals(index.fileKey, fileKey(file)))) {
+            return index;
+        }
+        try {
+            CACHE.invalidate(key);
+            return CACHE.get(key, () -> {
+                ZipWatcher.getDefault().validated(key);
+                // capture the file state before reading the records, so that
+                // a concurrent rewrite leaves the index looking stale, not current
+                Object fileKey = fileKey(file);
+                Optional<ZipIndexFile> mapped = ZipIndexFile.open(file);
+                if (mapped.isPresent()) {
+                    ZipIndex sidecarIndex = mapped.get();
+                    sidecarIndex.fileKey = fileKey;
+                    return sidecarIndex;
+                }
+                long modified = file.lastModified();
+                long length = file.length();
+                ZipIndex loaded;
+                try (ZipCentralDirectory directory = new ZipCentralDirectory(file)) {
+                    loaded = new Loaded(modified, length, directory.records(),
+                            ZipSequence.parse(directory.comment()));
+                }
+                loaded.fileKey = fileKey;
+                if (sidecar || ZipIndexFile.sidecar(file).exists()) {
+                    update(file, loaded);
+                }
+                return loaded;
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Replaces the cached index for {@code file}, which has just been
+     * written with {@code records}, saving the cost of parsing it again.
+     * The sidecar is rewritten if {@code sidecar} is requested or if a
+     * sidecar already exists.
+     * @param file the archive
+     * @param records the records written
+     * @param sequence the {@link ZipSequence} number recorded in the archive comment
+     * @param sidecar {@code true} to create a sidecar if needed
+     * @throws IOException
+     */
+    public static void written(File file, List<Record> records, long sequence, boolean sidecar) throws IOException {
+        String key = file.getCanonicalPath();
+        ZipIndex index = new Loaded(file.lastModified(), file.length(), records, sequence);
+        index.fileKey = fileKey(file);
+        if (sidecar || ZipIndexFile.sidecar(file).exists()) {
+            update(file, index);
+        }
+        ZipWatcher.getDefault().validated(key);
+        ZipWatcher.getDefault().published(key, index.modified, index.length, index.fileKey);
+        CACHE.put(key, index);
+    }
+
+    /**
+     * Rewrites the sidecar for {@code file}.  The sidecar is only an
+     * optimization, and one left stale is ignored, so failures are not fatal.
+     * @param file the archive
+     * @param index the index to write
+     */
+    private static void update(File file, ZipIndex index) {
+        try {
+            ZipIndexFile.write(file, index);
+        } catch (IOException e) {
+            // carry on with the index in memory
+        }
+    }
+
+    /**
+     * Returns the file key of {@code file}, which identifies the file itself
+     * rather than its name.  Since a rewrite replaces the archive with a new
+     * file, this catches rewrites that leave the size unchanged within the
+     * granularity of the filesystem's modification times.
+     * @param file the archive
+     * @return the file key, or {@code null} if not available
+     */
+    private static Object fileKey(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Discards the cached index for {@code file}, if any.
+     * @param file the archive
+     */
+    public static void invalidate(File file) {
+        try {
+            CACHE.invalidate(file.getCanonicalPath());
+        } catch (IOException e) {
+            CACHE.invalidateAll();
+        }
+    }
+
+    /**
+     * An index built in memory from the records of the central directory.
+     */
+    static class Loaded extends ZipIndex {
+        private final Record[] records;
+        private final long sequence;
+        private final long[] sequences;
+        private final int[] order;
+
+        /**
+         * Builds the index from the records of a central directory.
+         * @param modified the archive's modification time
+         * @param length the archive's size
+         * @param records the records
+         * @param sequence the {@link ZipSequence} number recorded in the archive comment
+         */
+        Loaded(long modified, long length, List<Record> records, long sequence) {
+            super(modified, length);
+            List<Record> sorted = new ArrayList<>(records);
+            // the sort is stable, so the first of any duplicates stays first
+            Collections.sort(sorted, Comparator.comparing(Record::name));
+            List<Record> unique = new ArrayList<>(sorted.size());
+            for (Record record : sorted) {
+                if (unique.isEmpty() || !unique.get(unique.size()-1).name().equals(record.name())) {
+                    unique.add(record);
+                }
+            }
+            this.records = unique.toArray(new Record[unique.size()]);
+            // sort the positions by sequence number, and then by name
+            long[] stamps = new long[this.records.length];
+            Integer[] positions = new Integer[this.records.length];
+            long last = sequence;
+            for (int i = 0; i < stamps.length; i++) {
+                stamps[i] = ZipSequence.of(this.records[i]);
+                positions[i] = i;
+                last = Math.max(last, stamps[i]);
+            }
+            Arrays.sort(positions, Comparator.comparingLong((Integer i) -> stamps[i]));
+            this.sequence = last;
+            this.sequences = new long[positions.length];
+            this.order = new int[positions.length];
+            for (int rank = 0; rank < positions.length; rank++) {
+                order[rank] = positions[rank];
+                sequences[rank] = stamps[positions[rank]];
+            }
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        @Override
+        public long sequence(int rank) {
+            return sequences[rank];
+        }
+
+        @Override
+        public int bySequence(int rank) {
+            return order[rank];
+        }
+
+        @Override
+        public int size() {
+            return records.length;
+        }
+
+        @Override
+        public Record get(int i) {
+            return records[i];
+        }
+
+        @Override
+        public String name(int i) {
+            return records[i].name();
+        }
+    }
+
+    private final long modified;
+    private final long length;
+    private Object fileKey = null;
+
+    /**
+     * Creates an index for the archive as it was at {@code modified} and {@code length}.
+     * @param modified the archive's modification time
+     * @param length the archive's size
+     */
+    protected ZipIndex(long modified, long length) {
+        this.modified = modified;
+        this.length = length;
+    }
+
+    /**
+     * Returns the modification time of the archive when indexed.
+     * @return the modification time
+     */
+    public long modified() {
+        return modified;
+    }
+
+    /**
+     * Returns the size of the archive when indexed.
+     * @return the size
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the number of (unique) names in the index.
+     * @return the number of names
+     */
+    public abstract int size();
+
+    /**
+     * Returns the record at a position in the sorted index.
+     * @param i the position
+     * @return the record
+     */
+    public abstract Record get(int i);
+
+    /**
+     * Returns the name at a position in the sorted index, which may be
+     * cheaper than {@code get(i).name()}.
+     * @param i the position
+     * @return the name
+     */
+    public abstract String name(int i);
+
+    /**
+     * Returns the last {@link ZipSequence} number taken by the archive.
+     * @return the sequence number, or {@code 0} if none has been taken
+     */
+    public abstract long sequence();
+
+    /**
+     * Returns the sequence number of the record at a position in the
+     * index sorted by sequence number (and then by name).
+     * @param rank the position by sequence number
+     * @return the sequence number, or {@code 0} if the record is not stamped
+     */
+    public abstract long sequence(int rank);
+
+    /**
+     * Returns the position in the sorted index of the record at a position
+     * in the index sorted by sequence number (and then by name).
+     * @param rank the position by sequence number
+     * @return the position by name
+     */
+    public abstract int bySequence(int rank);
+
+    /**
+     * Returns the records stamped with a {@link ZipSequence} number greater
+     * than {@code sequence}, in order of sequence number and then name.
+     * @param sequence the last sequence number already seen
+     * @return an unmodifiable list of records
+     */
+    public List<Record> since(long sequence) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sequence(mid) <= sequence) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int from = lo;
+        return new AbstractList<Record>() {
+            @Override
+            public Record get(int i) {
+                return ZipIndex.this.get(bySequence(from + i));
+            }
+            @Override
+            public int size() {
+                return ZipIndex.this.size() - from;
+            }
+        };
+    }
+
+    /**
+     * Returns all records, sorted by name.
+     * @return an unmodifiable list of records
+     */
+    public List<Record> records() {
+        return range(0, size());
+    }
+
+    /**
+     * Returns a view of the records from {@code from} (inclusive) to {@code to} (exclusive).
+     * @param from the first position
+     * @param to the position following the last
+     * @return an unmodifiable list of records
+     */
+    private List<Record> range(int from, int to) {
+        return new AbstractList<Record>() {
+            @Override
+            public Record get(int i) {
+                return ZipIndex.this.get(from + i);
+            }
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    /**
+     * Returns the position of the first name not less than {@code key}.
+     * @param key the name to search for
+     * @return the position, which may be {@link #size()}
+     */
+    public int lowerBound(String key) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (name(mid).compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the position following the last name starting with
+     * {@code prefix}, searching from {@code from}, which must be the
+     * {@link #lowerBound(String)} of {@code prefix} (or later).  Names
+     * sharing a prefix are contiguous in sorted order, so this is also
+     * a binary search.
+     * @param from the position to search from
+     * @param prefix the prefix
+     * @return the end of the range
+     */
+    public int upperBound(int from, String prefix) {
+        int lo = from;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (name(mid).startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Looks up a record by exact name.
+     * @param name the entry name
+     * @return the record, or {@code Optional.empty()}
+     */
+    public Optional<Record> record(String name) {
+        int i = lowerBound(name);
+        if (i < size() && name(i).equals(name)) {
+            return Optional.of(get(i));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Looks up a record by name, trying {@code name} as is and then
+     * as a directory, as for {@link ZipCentralDirectory#find(String)}.
+     * @param name the entry name
+     * @return the record, or {@code Optional.empty()}
+     */
+    public Optional<Record> find(String name) {
+        Optional<Record> record = record(name);
+        if (!record.isPresent()) {
+            record = record(ZipEditor.normalizeDirectoryName(name));
+        }
+        return record;
+    }
+
+    /**
+     * Returns the records whose names start with {@code prefix}, sorted by name.
+     * @param prefix the prefix
+     * @return the (possibly empty) list of records
+     */
+    public List<Record> range(String prefix) {
+        int from = lowerBound(prefix);
+        return range(from, upperBound(from, prefix));
+    }
+
+    /**
+     * Returns the records whose names match the glob {@code pattern},
+     * sorted by name.  Only the range of names sharing the literal prefix
+     * of the pattern is examined.
+     * @param pattern the glob pattern
+     * @return the (possibly empty) list of records
+     * @see #compile(String)
+     */
+    public List<Record> glob(String pattern) {
+        Pattern regex = compile(pattern);
+        String prefix = literalPrefix(pattern);
+        int from = lowerBound(prefix);
+        int to = upperBound(from, prefix);
+        List<Record> result = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            if (regex.matcher(name(i)).matches()) {
+                result.add(get(i));
+            }
+        }
+        return result;
+    }
+
+    private static final String GLOB_META = "*?[\\";
+
+    /**
+     * Returns {@code true} if {@code path} is a glob pattern: if it contains
+     * an unquoted {@code *} or {@code ?}, or a well-formed {@code [...]}
+     * class.  Any other path, such as a directory whose name merely contains
+     * a {@code [}, is listed as is.
+     * @param path the path
+     * @return {@code true} if {@code path} is a pattern
+     */
+    public static boolean isGlob(String path) {
+        if (path == null) {
+            return false;
+        }
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || c == '[' && classEnd(path, i) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the {@code ]} closing the class opened by the
+     * {@code [} at {@code open}, or {@code -1} if it is not closed.  A
+     * {@code ]} first in the class (after any {@code !} or {@code ^}) is a
+     * member of the class rather than its end.
+     * @param pattern the glob pattern
+     * @param open the index of the {@code [}
+     * @return the index of the {@code ]}, or {@code -1}
+     */
+    private static int classEnd(String pattern, int open) {
+        int first = open + 1;
+        if (first < pattern.length() && (pattern.charAt(first) == '!' || pattern.charAt(first) == '^')) {
+            first++;
+        }
+        return first < pattern.length() ? pattern.indexOf(']', first + 1) : -1;
+    }
+
+    /**
+     * Returns the portion of a glob {@code pattern} preceding its first
+     * metacharacter, which every matching name must start with.
+     * @param pattern the glob pattern
+     * @return the literal prefix
+     */
+    public static String literalPrefix(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if (GLOB_META.indexOf(pattern.charAt(i)) >= 0) {
+                return pattern.substring(0, i);
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Compiles a glob pattern into a {@link Pattern} over entry names.
+     * <ul><li>{@code *} matches any characters within a path element</li>
+     * <li>{@code **} matches any characters, including {@code /}</li>
+     * <li>{@code ?} matches any one character other than {@code /}</li>
+     * <li>{@code [...]} matches a character class, negated with a leading {@code !} or {@code ^}</li>
+     * <li>{@code \} quotes the following character</li></ul>
+     * @param pattern the glob pattern
+     * @return the compiled {@link Pattern}
+     */
+    public static Pattern compile(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i++);
+            switch (c) {
+            case '*':
+                if (i < pattern.length() && pattern.charAt(i) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                break;
+            case '?':
+                regex.append("[^/]");
+                break;
+            case '[':
+                int close = classEnd(pattern, i - 1);
+                if (close < 0) {
+                    regex.append(Pattern.quote("["));
+                    break;
+                }
+                regex.append('[');
+                if (pattern.charAt(i) == '!' || pattern.charAt(i) == '^') {
+                    regex.append('^');
+                    i++;
+                }
+                for (; i < close; i++) {
+                    char k = pattern.charAt(i);
+                    if (k == '\\' || k == '[' || k == ']' || k == '&' || k == '^') {
+                        regex.append('\\');
+                    }
+                    regex.append(k);
+                }
+                regex.append(']');
+                i = close + 1;
+                break;
+            case '\\':
+                // quotes the next character, or itself at the end
+                regex.append(Pattern.quote(String.valueOf(i < pattern.length() ? pattern.charAt(i++) : c)));
+                break;
+            default:
+                regex.append(Pattern.quote(String.valueOf(c)));
+                break;
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,246 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.zip.CRC32;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+
+/**
+ * A {@link ZipIndex} stored in a sidecar file beside the archive (named
+ * {@code <archive>.idx}) and memory-mapped on open, so that the first
+ * command against a very large archive does not have to parse its
+ * whole central directory.  Entries are decoded on demand, so opening
+ * the index costs the same regardless of the number of entries.
+ * <p/>
+ * The sidecar records the archive's size, modification time and a CRC-32
+ * of its last {@link #TAIL} bytes (which include the end of central
+ * directory record), and is used only while all three still match.
+ * <p/>
+ * The format is a {@link #HEADER} byte header, followed by a table of
+ * {@link #ENTRY} byte entries sorted by name, a table of {@link #RANK} byte
+ * references to the entries sorted by {@link ZipSequence} number, and a heap
+ * of the names, extra fields and comments:<pre>
+ * header: magic(4) version(4) length(8) modified(8) tail(8) count(4) reserved(4) heap(8) sequence(8)
+ * entry:  heap offset(8) name length(2) extra length(2) comment length(2) flags(2) method(2)
+ *         reserved(2) dos time(4) crc(4) compressed size(8) size(8) local header offset(8)
+ * rank:   sequence(8) entry(4)
+ * </pre>
+ */
+public class ZipIndexFile extends ZipIndex {
+
+    static final int MAGIC = 0x5a424958; // ZBIX
+    static final int VERSION = 2;
+    static final int HEADER = 56;
+    static final int ENTRY = 52;
+    static final int RANK = 12;
+    static final int TAIL = 4096;
+
+    /**
+     * Returns the sidecar file for {@code archive}.
+     * @param archive the archive
+     * @return the sidecar {@link File}
+     */
+    public static File sidecar(File archive) {
+        return new File(archive.getPath() + ".idx");
+    }
+
+    /**
+     * Computes the CRC-32 of the last {@link #TAIL} bytes of {@code archive}.
+     * @param archive the archive
+     * @param length the length of the archive
+     * @return the CRC-32
+     * @throws IOException
+     */
+    static long tail(File archive, long length) throws IOException {
+        int n = (int) Math.min(length, TAIL);
+        byte[] tail = new byte[n];
+        try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+            raf.seek(length - n);
+            raf.readFully(tail);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(tail);
+        return crc.getValue();
+    }
+
+    /**
+     * Maps the sidecar for {@code archive}, if it exists and matches the archive.
+     * @param archive the archive
+     * @return the index, or {@code Optional.empty()}
+     * @throws IOException
+     */
+    public static Optional<ZipIndexFile> open(File archive) throws IOException {
+        File sidecar = sidecar(archive);
+        if (!sidecar.isFile() || sidecar.length() < HEADER || sidecar.length() > Integer.MAX_VALUE) {
+            return Optional.empty();
+        }
+        long modified = archive.lastModified();
+        long length = archive.length();
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != length || buffer.getLong(16) != modified) {
+            return Optional.empty();
+        }
+        int count = buffer.getInt(32);
+        long heap = buffer.getLong(40);
+        if (heap != HEADER + (long) count * (ENTRY + RANK) || heap > buffer.capacity()
+                || buffer.getLong(24) != tail(archive, length)) {
+            return Optional.empty();
+        }
+        return Optional.of(new ZipIndexFile(buffer, modified, length, count, (int) heap));
+    }
+
+    /**
+     * Writes (or replaces) the sidecar for {@code archive}, holding the
+     * entries of {@code index}.  The sidecar is written to a temporary file
+     * and renamed into place, so readers never see it incomplete.  Nothing
+     * is written if the sidecar would be too large to map.
+     * @param archive the archive
+     * @param index the index of the archive
+     * @throws IOException
+     */
+    public static void write(File archive, ZipIndex index) throws IOException {
+        File sidecar = sidecar(archive);
+        File temp = new File(sidecar.getPath() + ".tmp");
+        int count = index.size();
+        long heap = HEADER + (long) count * (ENTRY + RANK);
+        boolean fits;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(index.length());
+            out.writeLong(index.modified());
+            out.writeLong(tail(archive, index.length()));
+            out.writeInt(count);
+            out.writeInt(0);
+            out.writeLong(heap);
+            out.writeLong(index.sequence());
+            long offset = 0;
+            for (int i = 0; i < count; i++) {
+                Record record = index.get(i);
+                int nameLength = record.name().getBytes(StandardCharsets.UTF_8).length;
+                int extraLength = record.extra().length;
+                int commentLength = record.comment() == null ? 0 : record.comment().getBytes(StandardCharsets.UTF_8).length;
+                out.writeLong(offset);
+                out.writeShort(nameLength);
+                out.writeShort(extraLength);
+                out.writeShort(commentLength);
+                out.writeShort(record.flags());
+                out.writeShort(record.method());
+                out.writeShort(0);
+                out.writeInt((int) record.dosTime());
+                out.writeInt((int) record.crc());
+                out.writeLong(record.compressedSize());
+                out.writeLong(record.size());
+                out.writeLong(record.offset());
+                offset += nameLength + extraLength + commentLength;
+            }
+            for (int rank = 0; rank < count; rank++) {
+                out.writeLong(index.sequence(rank));
+                out.writeInt(index.bySequence(rank));
+            }
+            fits = heap + offset <= Integer.MAX_VALUE;
+            for (int i = 0; fits && i < count; i++) {
+                Record record = index.get(i);
+                out.write(record.name().getBytes(StandardCharsets.UTF_8));
+                out.write(record.extra());
+                if (record.comment() != null) {
+                    out.write(record.comment().getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        if (!fits) {
+            Files.delete(temp.toPath());
+            return;
+        }
+        Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int heap;
+
+    private ZipIndexFile(ByteBuffer buffer, long modified, long length, int count, int heap) {
+        super(modified, length);
+        this.buffer = buffer;
+        this.count = count;
+        this.heap = heap;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public long sequence() {
+        return buffer.getLong(48);
+    }
+
+    @Override
+    public long sequence(int rank) {
+        return buffer.getLong(HEADER + count * ENTRY + rank * RANK);
+    }
+
+    @Override
+    public int bySequence(int rank) {
+        return buffer.getInt(HEADER + count * ENTRY + rank * RANK + 8);
+    }
+
+    /**
+     * Reads {@code length} bytes of the heap at {@code offset}.
+     */
+    private byte[] heap(long offset, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(heap + (int) offset);
+        view.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String name(int i) {
+        int entry = HEADER + i * ENTRY;
+        return new String(heap(buffer.getLong(entry), buffer.getShort(entry + 8) & 0xffff), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Record get(int i) {
+        int entry = HEADER + i * ENTRY;
+        long offset = buffer.getLong(entry);
+        int nameLength = buffer.getShort(entry + 8) & 0xffff;
+        int extraLength = buffer.getShort(entry + 10) & 0xffff;
+        int commentLength = buffer.getShort(entry + 12) & 0xffff;
+        byte[] bytes = heap(offset, nameLength + extraLength + commentLength);
+        String name = new String(bytes, 0, nameLength, StandardCharsets.UTF_8);
+        byte[] extra = new byte[extraLength];
+        System.arraycopy(bytes, nameLength, extra, 0, extraLength);
+        String comment = commentLength == 0 ? null
+                : new String(bytes, nameLength + extraLength, commentLength, StandardCharsets.UTF_8);
+        return new Record(name,
+                buffer.getShort(entry + 14) & 0xffff,
+                buffer.getShort(entry + 16) & 0xffff,
+                buffer.getInt(entry + 20) & 0xffffffffL,
+                buffer.getInt(entry + 24) & 0xffffffffL,
+                buffer.getLong(entry + 28),
+                buffer.getLong(entry + 36),
+                buffer.getLong(entry + 44),
+                extra, comment);
+    }
+}
@@ -0,0 +1,628 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.ChannelInputStream;
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.PooledInflaterInputStream;
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+/**
+ * A random access index for a {@code DEFLATED} entry, in the style of
+ * zlib's {@code zran.c}.  The index records a {@link Checkpoint} at a
+ * deflate block boundary roughly every {@code span} bytes of uncompressed
+ * output, together with the 32K window of output preceding it, so that
+ * reading from an arbitrary offset only needs to inflate from the nearest
+ * checkpoint rather than from the start of the entry.
+ * <p/>
+ * {@link Inflater} can not locate block boundaries or start at a bit
+ * offset, so the index is built by a compact pure Java block walker, and
+ * reads resume with a native {@code Inflater} fed a bit-shifted view of
+ * the compressed data and primed with the window as its dictionary.
+ * <p/>
+ * Indexes are built lazily, only as far as the furthest offset requested
+ * so far, and are cached per entry (by archive, local header offset, CRC
+ * and compressed size) with a bound on the total memory retained.
+ */
+public class ZipInflateIndex {
+
+    /**
+     * The default distance between checkpoints: 16MB of uncompressed output.
+     */
+    public static final long DEFAULT_SPAN = 16L * 1024 * 1024;
+    /**
+     * The maximum memory retained by cached indexes.
+     */
+    public static final long CACHE_WEIGHT = 64L * 1024 * 1024;
+
+    private static final int WINDOW = 32768;
+
+    private static final Cache<String,ZipInflateIndex> CACHE = CacheBuilder.newBuilder()
+            .maximumWeight(CACHE_WEIGHT)
+            .weigher(new Weigher<String,ZipInflateIndex>() {
+                @Override
+                public int weigh(String key, ZipInflateIndex index) {
+                    return index.weight();
+                }
+            })
+            .build();
+
+    /**
+     * Returns the (possibly cached) index for a {@code DEFLATED} entry.
+     * @param file the archive
+     * @param record the entry's {@link Record}
+     * @param span the distance between checkpoints, in uncompressed bytes
+     * @return the index, which may not yet have any checkpoints
+     * @throws IOException
+     */
+    public static ZipInflateIndex of(File file, Record record, long span) throws IOException {
+        String key = file.getCanonicalPath() + ":" + record.offset() + ":" + record.crc()
+                + ":" + record.compressedSize() + ":" + span;
+        try {
+            return CACHE.get(key, () -> new ZipInflateIndex(key, span));
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Discards the cached indexes for entries of {@code file}.
+     * @param file the archive
+     */
+    public static void invalidate(File file) {
+        String prefix;
+        try {
+            prefix = file.getCanonicalPath() + ":";
+        } catch (IOException e) {
+            CACHE.invalidateAll();
+            return;
+        }
+        CACHE.asMap().keySet().removeIf((key) -> key.startsWith(prefix));
+    }
+
+    /**
+     * Discards all cached indexes.
+     */
+    public static void invalidateAll() {
+        CACHE.invalidateAll();
+    }
+
+    /**
+     * A point at a deflate block boundary where inflation can restart.
+     */
+    static class Checkpoint {
+        /**
+         * The offset of the byte containing the block boundary in the compressed data.
+         */
+        final long in;
+        /**
+         * The number of bits of byte {@code in} that precede the boundary (0-7).
+         */
+        final int bits;
+        /**
+         * The offset in the uncompressed data.
+         */
+        final long out;
+        /**
+         * The (deflated) 32K of uncompressed data preceding {@code out}.
+         */
+        final byte[] window;
+
+        Checkpoint(long in, int bits, long out, byte[] window) {
+            this.in = in;
+            this.bits = bits;
+            this.out = out;
+            this.window = window;
+        }
+    }
+
+    private final String key;
+    private final long span;
+    private final List<Checkpoint> checkpoints;
+    private boolean complete;
+
+    private ZipInflateIndex(String key, long span) {
+        this.key = key;
+        this.span = span;
+        this.checkpoints = new ArrayList<>();
+        this.checkpoints.add(new Checkpoint(0, 0, 0, new byte[0]));
+        this.complete = false;
+    }
+
+    private synchronized int weight() {
+        int weight = 64;
+        for (Checkpoint checkpoint : checkpoints) {
+            weight += 32 + checkpoint.window.length;
+        }
+        return weight;
+    }
+
+    /**
+     * Returns the number of checkpoints built so far, including the one
+     * at the start of the entry.
+     * @return the checkpoint count
+     */
+    public synchronized int checkpoints() {
+        return checkpoints.size();
+    }
+
+    /**
+     * Returns a stream of the uncompressed content starting at {@code offset},
+     * inflating from the nearest preceding checkpoint.  The index is extended
+     * first if it does not yet reach {@code offset}.
+     * @param channel the archive channel
+     * @param dataOffset the offset of the entry's compressed data in the archive
+     * @param record the entry's {@link Record}
+     * @param offset the uncompressed offset to start at
+     * @param pool the {@link ZipCodecPool} to borrow an {@link Inflater} from
+     * @return the stream, positioned at {@code offset}
+     * @throws IOException
+     */
+    public InputStream open(FileChannel channel, long dataOffset, Record record, long offset, ZipCodecPool pool)
+            throws IOException {
+        Checkpoint checkpoint = seek(channel, dataOffset, record, offset, pool);
+        InputStream raw = new ChannelInputStream(channel, dataOffset + checkpoint.in,
+                record.compressedSize() - checkpoint.in);
+        if (checkpoint.bits != 0) {
+            raw = new ShiftedInputStream(raw, checkpoint.bits);
+        }
+        Inflater inflater = pool.borrowInflater();
+        byte[] window = expand(checkpoint.window, pool);
+        if (window.length > 0) {
+            inflater.setDictionary(window);
+        }
+        InputStream in = new PooledInflaterInputStream(raw, pool, inflater, record.size() - checkpoint.out);
+        long skip = offset - checkpoint.out;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                in.close();
+                throw new EOFException("offset beyond end of entry " + record.name());
+            }
+            skip -= skipped;
+        }
+        return in;
+    }
+
+    /**
+     * Returns the last checkpoint at or before {@code offset}, extending
+     * the index as needed.
+     */
+    private synchronized Checkpoint seek(FileChannel channel, long dataOffset, Record record, long offset,
+            ZipCodecPool pool) throws IOException {
+        Checkpoint last = checkpoints.get(checkpoints.size() - 1);
+        if (!complete && offset >= last.out + span) {
+            extend(channel, dataOffset, record, last, offset, pool);
+            CACHE.put(key, this); // re-weigh now that it has grown
+        }
+        Checkpoint result = checkpoints.get(0);
+        for (Checkpoint checkpoint : checkpoints) {
+            if (checkpoint.out > offset) {
+                break;
+            }
+            result = checkpoint;
+        }
+        return result;
+    }
+
+    /**
+     * Walks the deflate blocks from checkpoint {@code from} until passing
+     * {@code target} (or the end of the entry), adding checkpoints.
+     */
+    private void extend(FileChannel channel, long dataOffset, Record record, Checkpoint from, long target,
+            ZipCodecPool pool) throws IOException {
+        Walker walker = new Walker(new ChannelInputStream(channel, dataOffset + from.in,
+                record.compressedSize() - from.in), from, expand(from.window, pool));
+        Checkpoint last = from;
+        while (true) {
+            if (walker.out >= last.out + span && !walker.last) {
+                long bit = walker.bitPosition();
+                last = new Checkpoint(bit >>> 3, (int) (bit & 7), walker.out, shrink(walker.window(), pool));
+                checkpoints.add(last);
+            }
+            if (walker.out > target) {
+                break;
+            }
+            if (!walker.block()) {
+                complete = true;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Deflates a window for compact storage.
+     */
+    private static byte[] shrink(byte[] window, ZipCodecPool pool) {
+        Deflater deflater = pool.borrowDeflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(window);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(window.length / 4);
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buf, 0, deflater.deflate(buf));
+            }
+            return out.toByteArray();
+        } finally {
+            pool.release(deflater, Deflater.BEST_SPEED);
+        }
+    }
+
+    /**
+     * Inflates a window stored by {@link #shrink(byte[], ZipCodecPool)}.
+     */
+    private static byte[] expand(byte[] stored, ZipCodecPool pool) throws IOException {
+        if (stored.length == 0) {
+            return stored;
+        }
+        Inflater inflater = pool.borrowInflater();
+        try {
+            inflater.setInput(stored);
+            byte[] window = new byte[WINDOW];
+            int n = 0;
+            while (!inflater.finished() && n < window.length) {
+                int got = inflater.inflate(window, n, window.length - n);
+                if (got == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += got;
+            }
+            if (n == window.length) {
+                return window;
+            }
+            byte[] result = new byte[n];
+            System.arraycopy(window, 0, result, 0, n);
+            return result;
+        } catch (DataFormatException e) {
+            throw new ZipException("invalid checkpoint window: " + e.getMessage());
+        } finally {
+            pool.release(inflater);
+        }
+    }
+
+    /**
+     * Presents a stream whose bits are shifted down by {@code shift} bits,
+     * so that a deflate block starting mid-byte starts on a byte boundary.
+     */
+    static class ShiftedInputStream extends InputStream {
+        private final InputStream in;
+        private final int shift;
+        private int current;
+
+        ShiftedInputStream(InputStream in, int shift) throws IOException {
+            this.in = in;
+            this.shift = shift;
+            this.current = in.read();
+        }
+        @Override
+        public int read() throws IOException {
+            if (current < 0) {
+                return -1;
+            }
+            int next = in.read();
+            int result = (current >>> shift) | ((next < 0 ? 0 : next) << (8 - shift)) & 0xFF;
+            current = next;
+            return result;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (current < 0) {
+                return -1;
+            }
+            // read the raw bytes one position ahead, then shift in place
+            b[off] = (byte) current;
+            int n = in.read(b, off + 1, len - 1);
+            int count = n < 0 ? 1 : n + 1;
+            int next = in.read();
+            for (int i = 0; i < count; i++) {
+                int lo = b[off + i] & 0xFF;
+                int hi = i + 1 < count ? b[off + i + 1] & 0xFF : (next < 0 ? 0 : next);
+                b[off + i] = (byte) ((lo >>> shift) | (hi << (8 - shift)));
+            }
+            current = next;
+            return count;
+        }
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static final short[] LENGTH_BASE = {3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31,
+            35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258};
+    static final byte[] LENGTH_EXTRA = {0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2,
+            3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0};
+    static final int[] DIST_BASE = {1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193,
+            257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577};
+    static final byte[] DIST_EXTRA = {0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6,
+            7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13};
+    static final byte[] CLEN_ORDER = {16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15};
+
+    /**
+     * A minimal deflate decoder that walks one block at a time, tracking
+     * the compressed bit position, the uncompressed offset and the 32K
+     * window, but otherwise discarding the output.
+     */
+    static class Walker {
+        private final InputStream in;
+        private final byte[] buf = new byte[65536];
+        private int bufPos = 0;
+        private int bufLen = 0;
+        private long consumed;
+        private long bitbuf = 0;
+        private int bitcnt = 0;
+        private int padding = 0;
+        private final byte[] window = new byte[WINDOW];
+        long out;
+        private boolean last = false;
+
+        Walker(InputStream in, Checkpoint from, byte[] window) throws IOException {
+            this.in = in;
+            this.consumed = from.in;
+            this.out = from.out;
+            // seed the window so that it ends at out
+            for (int i = 0; i < window.length; i++) {
+                this.window[(int) ((out - window.length + i) & (WINDOW - 1))] = window[i];
+            }
+            if (from.bits > 0) {
+                bits(from.bits);
+            }
+        }
+
+        /**
+         * Returns the bit position of the next unread bit in the compressed data.
+         */
+        long bitPosition() {
+            return consumed * 8 - bitcnt;
+        }
+
+        /**
+         * Returns a copy of the (up to) 32K of output preceding {@code out}.
+         */
+        byte[] window() {
+            int n = (int) Math.min(WINDOW, out);
+            byte[] result = new byte[n];
+            for (int i = 0; i < n; i++) {
+                result[i] = window[(int) ((out - n + i) & (WINDOW - 1))];
+            }
+            return result;
+        }
+
+        private int nextByte() throws IOException {
+            if (bufPos == bufLen) {
+                bufLen = in.read(buf, 0, buf.length);
+                bufPos = 0;
+                if (bufLen <= 0) {
+                    bufLen = 0;
+                    // allow a few bytes of zero padding for lookahead at the very end
+                    if (++padding > 8) {
+                        throw new EOFException("unexpected end of deflate stream");
+                    }
+                    consumed++;
+                    return 0;
+                }
+            }
+            consumed++;
+            return buf[bufPos++] & 0xFF;
+        }
+
+        private void need(int n) throws IOException {
+            while (bitcnt < n) {
+                bitbuf |= (long) nextByte() << bitcnt;
+                bitcnt += 8;
+            }
+        }
+
+        private int bits(int n) throws IOException {
+            if (n == 0) {
+                return 0;
+            }
+            need(n);
+            int value = (int) (bitbuf & ((1L << n) - 1));
+            bitbuf >>>= n;
+            bitcnt -= n;
+            return value;
+        }
+
+        private int decode(int[] table, int maxLength) throws IOException {
+            need(maxLength);
+            int entry = table[(int) (bitbuf & ((1 << maxLength) - 1))];
+            int length = entry & 0xF;
+            if (length == 0) {
+                throw new ZipException("invalid deflate code");
+            }
+            bitbuf >>>= length;
+            bitcnt -= length;
+            return entry >>> 4;
+        }
+
+        private void emit(int b) {
+            window[(int) (out & (WINDOW - 1))] = (byte) b;
+            out++;
+        }
+
+        /**
+         * Decodes one block.
+         * @return {@code false} if there are no more blocks
+         */
+        boolean block() throws IOException {
+            if (last) {
+                return false;
+            }
+            last = bits(1) == 1;
+            switch (bits(2)) {
+            case 0:
+                stored();
+                break;
+            case 1:
+                codes(FIXED_LITERALS, 9, FIXED_DISTANCES, 5);
+                break;
+            case 2:
+                dynamic();
+                break;
+            default:
+                throw new ZipException("invalid deflate block type");
+            }
+            return true;
+        }
+
+        private void stored() throws IOException {
+            bits(bitcnt & 7);
+            int length = bits(16);
+            if ((~bits(16) & 0xFFFF) != length) {
+                throw new ZipException("invalid stored block length");
+            }
+            for (int i = 0; i < length; i++) {
+                emit(bits(8));
+            }
+        }
+
+        private void dynamic() throws IOException {
+            int nlen = bits(5) + 257;
+            int ndist = bits(5) + 1;
+            int ncode = bits(4) + 4;
+            byte[] lengths = new byte[19];
+            for (int i = 0; i < ncode; i++) {
+                lengths[CLEN_ORDER[i]] = (byte) bits(3);
+            }
+            int[] clen = table(lengths, 0, 19);
+            int clenMax = maxLength(lengths, 0, 19);
+            lengths = new byte[nlen + ndist];
+            int i = 0;
+            while (i < nlen + ndist) {
+                int symbol = decode(clen, clenMax);
+                if (symbol < 16) {
+                    lengths[i++] = (byte) symbol;
+                } else {
+                    int repeat;
+                    byte value = 0;
+                    if (symbol == 16) {
+                        if (i == 0) {
+                            throw new ZipException("invalid deflate length repeat");
+                        }
+                        value = lengths[i - 1];
+                        repeat = 3 + bits(2);
+                    } else if (symbol == 17) {
+                        repeat = 3 + bits(3);
+                    } else {
+                        repeat = 11 + bits(7);
+                    }
+                    if (i + repeat > nlen + ndist) {
+                        throw new ZipException("invalid deflate length repeat");
+                    }
+                    while (repeat-- > 0) {
+                        lengths[i++] = value;
+                    }
+                }
+            }
+            codes(table(lengths, 0, nlen), maxLength(lengths, 0, nlen),
+                  table(lengths, nlen, ndist), maxLength(lengths, nlen, ndist));
+        }
+
+        private void codes(int[] literals, int literalMax, int[] distances, int distanceMax) throws IOException {
+            while (true) {
+                int symbol = decode(literals, literalMax);
+                if (symbol < 256) {
+                    emit(symbol);
+                } else if (symbol == 256) {
+                    return;
+                } else {
+                    symbol -= 257;
+                    if (symbol >= 29) {
+                        throw new ZipException("invalid deflate length code");
+                    }
+                    int length = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+                    int dsymbol = decode(distances, distanceMax);
+                    if (dsymbol >= 30) {
+                        throw new ZipException("invalid deflate distance code");
+                    }
+                    int distance = DIST_BASE[dsymbol] + bits(DIST_EXTRA[dsymbol]);
+                    if (distance > out) {
+                        throw new ZipException("invalid deflate distance too far back");
+                    }
+                    for (int k = 0; k < length; k++) {
+                        emit(window[(int) ((out - distance) & (WINDOW - 1))]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int maxLength(byte[] lengths, int off, int n) {
+        int max = 1;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, lengths[off + i]);
+        }
+        return max;
+    }
+
+    /**
+     * Builds a lookup table indexed by the next {@code maxLength} bits
+     * (LSB first), yielding {@code symbol << 4 | length}.
+     */
+    private static int[] table(byte[] lengths, int off, int n) throws ZipException {
+        int max = maxLength(lengths, off, n);
+        int[] count = new int[16];
+        for (int i = 0; i < n; i++) {
+            count[lengths[off + i]]++;
+        }
+        count[0] = 0;
+        int[] next = new int[16];
+        int code = 0;
+        for (int len = 1; len <= 15; len++) {
+            code = (code + count[len - 1]) << 1;
+            next[len] = code;
+        }
+        int[] table = new int[1 << max];
+        for (int symbol = 0; symbol < n; symbol++) {
+            int len = lengths[off + symbol];
+            if (len == 0) {
+                continue;
+            }
+            int c = next[len]++;
+            if (c >= (1 << len)) {
+                throw new ZipException("invalid deflate code lengths");
+            }
+            int reversed = Integer.reverse(c) >>> (32 - len);
+            for (int fill = reversed; fill < table.length; fill += 1 << len) {
+                table[fill] = symbol << 4 | len;
+            }
+        }
+        return table;
+    }
+
+    private static final int[] FIXED_LITERALS;
+    private static final int[] FIXED_DISTANCES;
+    static {
+        byte[] lengths = new byte[288];
+        for (int i = 0; i < 288; i++) {
+            lengths[i] = (byte) (i < 144 ? 8 : i < 256 ? 9 : i < 280 ? 7 : 8);
+        }
+        byte[] distances = new byte[30];
+        java.util.Arrays.fill(distances, (byte) 5);
+        try {
+            FIXED_LITERALS = table(lengths, 0, 288);
+            FIXED_DISTANCES = table(distances, 0, 30);
+        } catch (ZipException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
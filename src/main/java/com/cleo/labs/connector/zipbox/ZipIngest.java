@@ -0,0 +1,261 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipRepackResult;
+
+/**
+ * Two-tier compression of uploads.  A {@code PUT} deflates a new entry at a
+ * fast ingest level, keeping its latency low, and marks the entry with an
+ * empty {@link #MARKER} extra field.  Once the archive has been idle for a
+ * while, a background thread recompresses the marked entries at the
+ * archive's compression level with {@link ZipEditor#settle(int, java.util.function.BooleanSupplier)},
+ * keeping the archive small.
+ * <p/>
+ * The recompression never competes with the commands using the archive: it
+ * runs through the {@link ZipRewriteScheduler} behind every other rewrite,
+ * subject to its rate limit, on a single thread, and gives up (leaving the
+ * archive as it was) as soon as a command {@link #touch()}es the archive or
+ * another rewrite is waiting for a turn.  It tries again once the archive
+ * has been idle for another period.
+ */
+public class ZipIngest {
+
+    /**
+     * The extra field header id marking an entry written at the ingest level.
+     */
+    public static final int MARKER = 0x495a; // "ZI"
+    /**
+     * The default time an archive must be idle before it is recompressed.
+     */
+    public static final long DEFAULT_IDLE_MILLIS = 30_000L;
+
+    private static final long POLL_MILLIS = 1000L;
+
+    private static final Map<String,ZipIngest> ARCHIVES = new HashMap<>();
+    private static Thread thread = null;
+
+    /**
+     * Returns the {@code ZipIngest} for {@code archive}, registering the
+     * archive for background recompression if it is not yet.
+     * @param archive the archive
+     * @return the {@code ZipIngest}
+     * @throws IOException
+     */
+    public static ZipIngest of(File archive) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (ARCHIVES) {
+            ZipIngest ingest = ARCHIVES.get(key);
+            if (ingest == null) {
+                ingest = new ZipIngest(new File(key));
+                ARCHIVES.put(key, ingest);
+            }
+            if (thread == null) {
+                thread = new Thread(ZipIngest::run, "zipbox-ingest");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            return ingest;
+        }
+    }
+
+    /**
+     * Returns the {@code ZipIngest} for {@code archive}, if it is registered.
+     * @param archive the archive
+     * @return the {@code ZipIngest}, or {@code Optional.empty()}
+     * @throws IOException
+     */
+    public static Optional<ZipIngest> existing(File archive) throws IOException {
+        String key = archive.getCanonicalPath();
+        synchronized (ARCHIVES) {
+            return Optional.ofNullable(ARCHIVES.get(key));
+        }
+    }
+
+    /**
+     * Returns a new extra field holding just the {@link #MARKER}.
+     * @return the extra field
+     */
+    public static byte[] mark() {
+        return new byte[] {(byte) MARKER, (byte) (MARKER >> 8), 0, 0};
+    }
+
+    /**
+     * Returns {@code true} if {@code record} carries the {@link #MARKER}.
+     * @param record the entry
+     * @return {@code true} if the entry is to be recompressed
+     */
+    public static boolean marked(Record record) {
+        return find(record.extra()) >= 0;
+    }
+
+    /**
+     * Returns a copy of an extra field without the {@link #MARKER}.
+     * @param extra the extra field
+     * @return the extra field without the marker (possibly empty)
+     */
+    public static byte[] unmark(byte[] extra) {
+        int i = find(extra);
+        if (i < 0) {
+            return extra;
+        }
+        int length = 4 + (extra[i+2] & 0xFF | (extra[i+3] & 0xFF) << 8);
+        byte[] result = new byte[extra.length - length];
+        System.arraycopy(extra, 0, result, 0, i);
+        System.arraycopy(extra, i + length, result, i, extra.length - i - length);
+        return result;
+    }
+
+    private static int find(byte[] extra) {
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int id = extra[i] & 0xFF | (extra[i+1] & 0xFF) << 8;
+            int size = extra[i+2] & 0xFF | (extra[i+3] & 0xFF) << 8;
+            if (id == MARKER && i + 4 + size <= extra.length) {
+                return i;
+            }
+            i += 4 + size;
+        }
+        return -1;
+    }
+
+    private final File archive;
+    private final AtomicLong touches = new AtomicLong();
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private volatile long idleMillis = DEFAULT_IDLE_MILLIS;
+    private volatile long touched = System.currentTimeMillis();
+    private boolean dirty = true;
+    private long settled = 0L;
+    private long yielded = 0L;
+    private IOException failure = null;
+
+    private ZipIngest(File archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Sets the compression level marked entries are recompressed at, and
+     * the time the archive must be idle first.
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1)
+     * @param idleMillis the idle time
+     * @return {@code this}, to allow fluent style use
+     */
+    public ZipIngest configure(int level, long idleMillis) {
+        this.level = level;
+        this.idleMillis = Math.max(0L, idleMillis);
+        return this;
+    }
+
+    /**
+     * Records a use of the archive, putting off its recompression and
+     * making any recompression in progress yield.
+     * @return {@code this}, to allow fluent style use
+     */
+    public ZipIngest touch() {
+        touches.incrementAndGet();
+        touched = System.currentTimeMillis();
+        return this;
+    }
+
+    /**
+     * Records that a marked entry was written to the archive.
+     */
+    public synchronized void written() {
+        dirty = true;
+        touch();
+    }
+
+    /**
+     * Recompresses the marked entries now, unless a command or another
+     * rewrite comes along first.
+     * @return the result, or {@code Optional.empty()} if the recompression yielded
+     * @throws IOException
+     */
+    public Optional<ZipRepackResult> settle() throws IOException {
+        long mark = touches.get();
+        ZipRewriteScheduler scheduler = ZipRewriteScheduler.getDefault();
+        ZipEditor zip = new ZipEditor(archive).compressionLevel(level);
+        Optional<ZipCommitter> committer = ZipCommitter.existing(archive);
+        if (!scheduler.idle() || committer.isPresent() && committer.get().depth() > 0) {
+            // don't hold the archive's lock waiting for a turn, and let
+            // uploads still to be committed land first
+            synchronized (this) {
+                yielded++;
+            }
+            return Optional.empty();
+        }
+        try {
+            // the highest cost, so that every other rewrite goes first
+            ZipRepackResult result = scheduler.run(archive, Long.MAX_VALUE,
+                    () -> zip.settle(1, () -> touches.get() != mark || scheduler.depth() > 0));
+            synchronized (this) {
+                dirty = dirty && touches.get() != mark;
+                settled++;
+                failure = null;
+            }
+            return Optional.of(result);
+        } catch (InterruptedIOException e) {
+            synchronized (this) {
+                yielded++;
+            }
+            return Optional.empty();
+        }
+    }
+
+    private synchronized boolean due(long now) {
+        return dirty && now - touched >= idleMillis;
+    }
+
+    private static void run() {
+        while (true) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<ZipIngest> ingests;
+            synchronized (ARCHIVES) {
+                ingests = new ArrayList<>(ARCHIVES.values());
+            }
+            for (ZipIngest ingest : ingests) {
+                if (ingest.due(System.currentTimeMillis())) {
+                    try {
+                        ingest.settle();
+                    } catch (IOException|RuntimeException e) {
+                        // wait for another idle period before trying again, and
+                        // keep the thread alive for the other archives
+                        synchronized (ingest) {
+                            ingest.failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                        }
+                        ingest.touch();
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized long settled() {
+        return settled;
+    }
+
+    public synchronized long yielded() {
+        return yielded;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("ingest %s: %s, level %d after %d ms idle, settled=%d yielded=%d%s%n", archive,
+                dirty ? "pending" : "settled", level, idleMillis, settled, yielded,
+                failure == null ? "" : " failed: " + failure.getMessage());
+    }
+}
@@ -0,0 +1,530 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.PooledInflaterInputStream;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+/**
+ * A partial upload, spooled to a side file with checkpoints so that a
+ * {@code PUT} cut short can be resumed instead of sent again from the
+ * start.  The content is deflated as it is received into a data file in the
+ * {@code <archive>.partial} directory, named for a hash of the destination
+ * path.  After every {@code interval} bytes of content the deflater is
+ * flushed with {@link Deflater#FULL_FLUSH}, which ends the compressed data
+ * so far on a byte boundary and forgets the dictionary, so that a new
+ * deflater can carry on from that point.  The data file is then forced to
+ * disk and a checkpoint records the compressed length and CRC-32 of each
+ * block of content.  A checkpoint is written to a temporary file and moved
+ * into place, so one that exists is always complete.
+ * <p/>
+ * A {@code PUT} to the same destination resumes from the last checkpoint,
+ * dropping whatever was written after it.  A sender that starts over has
+ * its content checked block by block against the checkpointed CRCs, and
+ * written only from the first block that differs.  A sender that resumes
+ * from an offset (up to the checkpoint) is taken at its word, as for a
+ * restarted FTP transfer.  The CRC-32 of the whole content is found by
+ * combining the CRCs of the blocks (see {@link #combine(long, long, long)}),
+ * and the completed data file is lent to a {@link ZipSpool}, to be
+ * committed like any other upload.  The upload stays open, and its
+ * checkpoint in place, until it is {@link #discard() discarded} once the
+ * commit succeeds, so a commit that fails can be resumed too.
+ */
+public class ZipPartial implements Closeable {
+
+    public static final String SUFFIX = ".partial";
+    /**
+     * The default amount of content between checkpoints.
+     */
+    public static final int DEFAULT_INTERVAL = 8 * 1024 * 1024;
+
+    private static final int MAGIC = 0x74726170; // "part"
+    private static final String DATA = ".data";
+    private static final String CHECKPOINT = ".ckpt";
+    private static final int BUFFER = 64 * 1024;
+
+    private static final Set<String> ACTIVE = new HashSet<>();
+
+    /**
+     * A checkpointed block of content: where its compressed data ends in
+     * the data file, and its CRC-32.
+     */
+    private static class Block {
+        private final long end;
+        private final long crc;
+        private Block(long end, long crc) {
+            this.end = end;
+            this.crc = crc;
+        }
+    }
+
+    private final String path;
+    private final File data;
+    private final File checkpoint;
+    private final int interval;
+    private final List<Block> blocks = new ArrayList<>();
+    private boolean active = false;
+
+    private ZipPartial(File directory, String path, int interval) {
+        String key = Hashing.sha256().hashString(path, StandardCharsets.UTF_8).toString();
+        this.path = path;
+        this.data = new File(directory, key + DATA);
+        this.checkpoint = new File(directory, key + CHECKPOINT);
+        this.interval = interval;
+    }
+
+    /**
+     * Returns the directory of partial uploads to {@code archive}.
+     * @param archive the archive
+     * @return the directory
+     */
+    public static File directory(File archive) {
+        File absolute = archive.getAbsoluteFile();
+        return new File(absolute.getParentFile(), absolute.getName() + SUFFIX);
+    }
+
+    /**
+     * Opens the partial upload to {@code path} in {@code archive}, picking
+     * up from its last checkpoint if there is one, with a checkpoint every
+     * {@link #DEFAULT_INTERVAL} bytes.
+     * @param archive the archive
+     * @param path the destination path
+     * @return the partial upload, which must be closed
+     * @throws IOException if another upload to {@code path} is in progress
+     */
+    public static ZipPartial open(File archive, String path) throws IOException {
+        return open(archive, path, DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Opens the partial upload to {@code path} in {@code archive}, picking
+     * up from its last checkpoint if there is one.  The {@code interval} of
+     * a checkpoint left by an earlier upload is kept.
+     * @param archive the archive
+     * @param path the destination path
+     * @param interval the amount of content between checkpoints
+     * @return the partial upload, which must be closed
+     * @throws IOException if another upload to {@code path} is in progress
+     */
+    public static ZipPartial open(File archive, String path, int interval) throws IOException {
+        File directory = directory(archive);
+        Files.createDirectories(directory.toPath());
+        ZipPartial partial = new ZipPartial(directory, path, Math.max(1, interval));
+        String key = partial.data.getCanonicalPath();
+        synchronized (ACTIVE) {
+            if (!ACTIVE.add(key)) {
+                throw new IOException(String.format("an upload to '%s' is in progress", path));
+            }
+        }
+        partial.active = true;
+        try {
+            ZipPartial saved = null;
+            try {
+                saved = partial.checkpoint.exists() ? read(partial.checkpoint) : null;
+            } catch (ZipException e) {
+                // start over
+            }
+            if (saved != null && saved.path.equals(path) && partial.data.length() >= saved.compressedSize()) {
+                saved.active = true;
+                return saved;
+            }
+            // no checkpoint, or one that does not match its data
+            partial.discard();
+            return partial;
+        } catch (IOException|RuntimeException e) {
+            partial.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a checkpoint.
+     * @param checkpoint the checkpoint file
+     * @return the partial upload, as of the checkpoint
+     * @throws ZipException if the checkpoint is invalid
+     * @throws IOException
+     */
+    private static ZipPartial read(File checkpoint) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new ZipException("invalid checkpoint " + checkpoint);
+            }
+            int interval = buffer.getInt();
+            if (interval <= 0) {
+                throw new ZipException("invalid checkpoint " + checkpoint);
+            }
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            ZipPartial partial = new ZipPartial(checkpoint.getParentFile(), new String(name, StandardCharsets.UTF_8),
+                    interval);
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                partial.blocks.add(new Block(buffer.getLong(), buffer.getInt() & 0xFFFFFFFFL));
+            }
+            return partial;
+        } catch (RuntimeException e) {
+            throw new ZipException("invalid checkpoint " + checkpoint);
+        }
+    }
+
+    /**
+     * Records the blocks written so far, after making them durable.
+     */
+    private void save() throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(16 + name.length + 12 * blocks.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(interval).putInt(name.length).put(name).putInt(blocks.size());
+        for (Block block : blocks) {
+            buffer.putLong(block.end).putInt((int) block.crc);
+        }
+        buffer.flip();
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the destination path of the upload.
+     * @return the path
+     */
+    public String path() {
+        return path;
+    }
+
+    /**
+     * Returns the amount of content safely checkpointed, from which the
+     * upload can be resumed.
+     * @return the size in bytes
+     */
+    public long size() {
+        return (long) blocks.size() * interval;
+    }
+
+    private long compressedSize() {
+        return blocks.isEmpty() ? 0L : blocks.get(blocks.size() - 1).end;
+    }
+
+    /**
+     * Drains and closes {@code in}, whose first byte is byte {@code offset}
+     * of the content, into the upload, deflating it at {@code level}.  With
+     * an {@code offset} of {@code 0}, content matching the checkpointed
+     * blocks is skipped over.  Otherwise the content up to the checkpoint is
+     * skipped.  The completed upload is returned as a deflated spool, which
+     * borrows the data file: closing the spool leaves it in place, so the
+     * upload can be resumed if the spool is not committed.  If {@code in}
+     * fails, the upload can be resumed from its last checkpoint.
+     * <p/>
+     * If {@code algorithm} is given, the spool's digest covers the whole
+     * content, including the checkpointed content read back from the data
+     * file, as for any other spool.
+     * @param in the content, from {@code offset}
+     * @param offset the offset of the first byte of {@code in}, at most {@link #size()}
+     * @param pool the {@link ZipCodecPool} to borrow a {@link Deflater} from
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1)
+     * @param algorithm a {@link MessageDigest} algorithm name, or {@code null} to compute only the CRC
+     * @return the {@link ZipSpool}
+     * @throws IllegalArgumentException if {@code offset} is beyond {@link #size()}
+     * @throws IOException
+     */
+    public ZipSpool spool(InputStream in, long offset, ZipCodecPool pool, int level, String algorithm)
+            throws IOException {
+        if (offset < 0 || offset > size()) {
+            throw new IllegalArgumentException(String.format("'%s' can only be resumed from %d", path, size()));
+        }
+        MessageDigest md = null;
+        if (algorithm != null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+        try (InputStream source = in) {
+            byte[] buffer = new byte[BUFFER];
+            byte[] held = null;
+            int holding = 0;
+            if (offset == 0 && !blocks.isEmpty()) {
+                // the sender started over: skip the blocks it sends unchanged,
+                // holding on to the first that differs to write it
+                held = new byte[interval];
+                int matched = 0;
+                CRC32 crc = new CRC32();
+                while (matched < blocks.size()) {
+                    holding = ByteStreams.read(source, held, 0, interval);
+                    crc.reset();
+                    crc.update(held, 0, holding);
+                    if (holding < interval || crc.getValue() != blocks.get(matched).crc) {
+                        break;
+                    }
+                    if (md != null) {
+                        md.update(held, 0, interval);
+                    }
+                    matched++;
+                    holding = 0;
+                }
+                blocks.subList(matched, blocks.size()).clear();
+            } else {
+                ByteStreams.skipFully(source, size() - offset);
+                if (md != null) {
+                    digest(md, pool);
+                }
+            }
+            Deflater deflater = pool.borrowDeflater(level);
+            try (FileChannel channel = FileChannel.open(data.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE)) {
+                // drop whatever was written after the checkpoint
+                channel.truncate(compressedSize());
+                channel.position(compressedSize());
+                Writer writer = new Writer(channel, deflater, md);
+                writer.write(held, 0, holding);
+                int n;
+                while ((n = source.read(buffer)) >= 0) {
+                    writer.write(buffer, 0, n);
+                }
+                return writer.finish(pool, algorithm);
+            } finally {
+                pool.release(deflater, level);
+            }
+        }
+    }
+
+    /**
+     * Feeds the checkpointed content to {@code md}, inflating it from the
+     * data file.  Each block ends on a byte boundary, so the compressed data
+     * up to the checkpoint inflates to exactly {@link #size()} bytes.
+     * @param md the digest
+     * @param pool the {@link ZipCodecPool} to borrow an {@link java.util.zip.Inflater} from
+     * @throws ZipException if the data file does not hold the checkpointed content
+     * @throws IOException
+     */
+    private void digest(MessageDigest md, ZipCodecPool pool) throws IOException {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        try (InputStream in = new PooledInflaterInputStream(
+                ByteStreams.limit(new FileInputStream(data), compressedSize()), pool, size())) {
+            if (ByteStreams.copy(ByteStreams.limit(in, size()),
+                    new DigestOutputStream(ByteStreams.nullOutputStream(), md)) != size()) {
+                throw new ZipException(String.format("'%s' is missing checkpointed content", path));
+            }
+        }
+    }
+
+    /**
+     * Deflates content into the data file, checkpointing after every
+     * {@code interval} bytes.
+     */
+    private class Writer {
+        private final FileChannel channel;
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final MessageDigest md;
+        private final byte[] output = new byte[BUFFER];
+        private final CRC32 crc = new CRC32();
+        private long block = 0L;
+        private long written;
+
+        private Writer(FileChannel channel, Deflater deflater, MessageDigest md) {
+            this.channel = channel;
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER);
+            this.deflater = deflater;
+            this.md = md;
+            this.written = compressedSize();
+        }
+
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (md != null && len > 0) {
+                md.update(b, off, len);
+            }
+            while (len > 0) {
+                int n = (int) Math.min(len, interval - block);
+                crc.update(b, off, n);
+                deflater.setInput(b, off, n);
+                while (!deflater.needsInput()) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                block += n;
+                off += n;
+                len -= n;
+                if (block == interval) {
+                    checkpoint();
+                }
+            }
+        }
+
+        private int drain(int flush) throws IOException {
+            int n = deflater.deflate(output, 0, output.length, flush);
+            out.write(output, 0, n);
+            written += n;
+            return n;
+        }
+
+        private void checkpoint() throws IOException {
+            // end the compressed data on a byte boundary, with a fresh dictionary
+            while (drain(Deflater.FULL_FLUSH) == output.length);
+            out.flush();
+            channel.force(false);
+            blocks.add(new Block(written, crc.getValue()));
+            save();
+            crc.reset();
+            block = 0L;
+        }
+
+        private ZipSpool finish(ZipCodecPool pool, String algorithm) throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                drain(Deflater.NO_FLUSH);
+            }
+            out.flush();
+            long total = 0L;
+            for (Block each : blocks) {
+                total = combine(total, each.crc, interval);
+            }
+            total = combine(total, crc.getValue(), block);
+            // the data file is only lent to the spool: the checkpoint stays until the commit succeeds
+            return new ZipSpool(data, true, total, size() + block, pool)
+                    .borrowed(md == null ? null : algorithm, md == null ? null : md.digest());
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of two sequences of bytes, one after the other,
+     * from the CRC-32 of each, as zlib's {@code crc32_combine}: the CRC of
+     * the first is carried through {@code length2} zero bytes with a matrix
+     * raised to that power (by repeated squaring), then combined with the
+     * CRC of the second.
+     * @param crc1 the CRC-32 of the first sequence
+     * @param crc2 the CRC-32 of the second sequence
+     * @param length2 the length of the second sequence
+     * @return the CRC-32 of both
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // the operator for one zero bit
+        odd[0] = 0xEDB88320L;
+        long row = 1L;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // two zero bits
+        square(odd, even); // four zero bits
+        // apply len2 zero bytes to crc1, starting with one zero byte
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+        return (crc1 ^ crc2) & 0xFFFFFFFFL;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0L;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+
+    /**
+     * Abandons the upload, or ends one whose spool has been committed,
+     * deleting its data (unless the commit took it over) and checkpoint.
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        blocks.clear();
+        Files.deleteIfExists(checkpoint.toPath());
+        Files.deleteIfExists(data.toPath());
+    }
+
+    /**
+     * Releases the upload for another {@code PUT} to the same destination.
+     * The data and checkpoint are kept, unless {@link #discard() discarded}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (active) {
+            active = false;
+            synchronized (ACTIVE) {
+                ACTIVE.remove(data.getCanonicalPath());
+            }
+        }
+    }
+
+    /**
+     * Reports the partial uploads to {@code archive} that can be resumed,
+     * with the offset each can be resumed from.
+     * @param archive the archive
+     * @return the report
+     */
+    public static String report(File archive) {
+        StringBuilder report = new StringBuilder();
+        File[] files = directory(archive).listFiles((dir, name) -> name.endsWith(CHECKPOINT));
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    ZipPartial partial = read(file);
+                    report.append(String.format("partial '%s': %d bytes%n", partial.path, partial.size()));
+                } catch (IOException e) {
+                    // being replaced, or not one of ours
+                }
+            }
+        }
+        return report.length() == 0 ? String.format("partial %s: none%n", archive) : report.toString();
+    }
+}
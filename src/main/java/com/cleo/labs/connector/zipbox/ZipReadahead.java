@@ -0,0 +1,296 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Reads an archive sequentially ahead of its consumer, for retrieving many
+ * entries at once.  A background thread reads the archive in large chunks,
+ * up to {@code depth} chunks ahead of the consumer, which inflates each
+ * entry from the chunks as they stream past, so the disk sees a few long
+ * sequential reads instead of a seek for every entry.
+ * <p/>
+ * Entries should be opened in the order of their offsets.  Moving forward
+ * within the chunks read ahead costs nothing, and short gaps are read
+ * through, while any other move discards the chunks and restarts reading
+ * at the new position.  The channel is
+ * read with positional reads, so it may be shared with other readers, and
+ * is not closed with the {@code ZipReadahead}.
+ */
+public class ZipReadahead implements Closeable {
+
+    /**
+     * The default size of each read.
+     */
+    public static final int DEFAULT_CHUNK = 1024 * 1024;
+    /**
+     * The default number of chunks read ahead.
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * A chunk read ahead, starting at {@code position} in the archive.
+     */
+    private static class Chunk {
+        private final long position;
+        private final ByteBuffer buffer;
+        private Chunk(long position, ByteBuffer buffer) {
+            this.position = position;
+            this.buffer = buffer;
+        }
+    }
+
+    private final FileChannel channel;
+    private final int chunk;
+    private final int depth;
+    private final ArrayDeque<Chunk> ready = new ArrayDeque<>();
+    private long position = 0L;
+    private long fetch = -1L;
+    private int epoch = 0;
+    private boolean end = false;
+    private boolean closed = false;
+    private IOException failure = null;
+    private Thread fetcher = null;
+    private long restarts = 0L;
+
+    /**
+     * Reads {@code channel} ahead in chunks of {@link #DEFAULT_CHUNK} bytes,
+     * up to {@link #DEFAULT_DEPTH} chunks ahead.
+     * @param channel the archive
+     */
+    public ZipReadahead(FileChannel channel) {
+        this(channel, DEFAULT_CHUNK, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Reads {@code channel} ahead in chunks of {@code chunk} bytes, up to
+     * {@code depth} chunks ahead.
+     * @param channel the archive
+     * @param chunk the size of each read
+     * @param depth the number of chunks read ahead
+     */
+    public ZipReadahead(FileChannel channel, int chunk, int depth) {
+        this.channel = channel;
+        this.chunk = Math.max(ZipCentralDirectory.LOCHDR, chunk);
+        this.depth = Math.max(1, depth);
+    }
+
+    /**
+     * Returns a stream of the raw (still compressed) bytes of {@code record},
+     * read from the chunks read ahead.
+     * @param record the {@link Record}
+     * @return an {@link InputStream}, which does not close the {@code ZipReadahead}
+     * @throws IOException
+     */
+    public InputStream openRaw(Record record) throws IOException {
+        seek(record.offset());
+        byte[] header = new byte[ZipCentralDirectory.LOCHDR];
+        ByteStreams.readFully(new Window(header.length), header);
+        ByteBuffer loc = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+        if (loc.getInt(0) != ZipCentralDirectory.LOCSIG) {
+            throw new ZipException("invalid LOC header (bad signature) for " + record.name());
+        }
+        seek(record.offset() + header.length + (loc.getShort(26) & 0xFFFF) + (loc.getShort(28) & 0xFFFF));
+        return new Window(record.compressedSize());
+    }
+
+    /**
+     * Returns a stream of the uncompressed bytes of {@code record}, as for
+     * {@link ZipCentralDirectory.Reader#open(Record, ZipCodecPool)}.
+     * @param record the {@link Record}
+     * @param pool the {@link ZipCodecPool} to borrow from
+     * @return an {@link InputStream}, which does not close the {@code ZipReadahead}
+     * @throws IOException
+     */
+    public InputStream open(Record record, ZipCodecPool pool) throws IOException {
+        switch (record.method()) {
+        case ZipEntry.STORED:
+            return openRaw(record);
+        case ZipEntry.DEFLATED:
+            return new ZipCentralDirectory.PooledInflaterInputStream(openRaw(record), pool, record.size());
+        default:
+            throw new ZipException("unsupported compression method " + record.method() + " for " + record.name());
+        }
+    }
+
+    /**
+     * Returns the number of times reading had to restart elsewhere than
+     * where the chunks read ahead left off.
+     * @return the number of restarts
+     */
+    public synchronized long restarts() {
+        return restarts;
+    }
+
+    /**
+     * Moves the consumer to {@code position}.  A position from the first
+     * chunk read ahead to the end of the chunk after the last one is reached
+     * by reading on, since reading through a short gap costs less than a
+     * seek.  Any other position restarts reading there.
+     */
+    private synchronized void seek(long position) {
+        if (fetch < 0) {
+            // the first position is where reading starts, not a restart
+            fetch = position;
+        }
+        start();
+        long first = ready.isEmpty() ? fetch : ready.peek().position;
+        if (position < first || position >= fetch + chunk) {
+            ready.clear();
+            epoch++;
+            fetch = position;
+            end = false;
+            failure = null;
+            restarts++;
+            notifyAll();
+        }
+        this.position = position;
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (fetch < 0) {
+            fetch = 0L;
+        }
+        start();
+        while (true) {
+            Chunk head = ready.peek();
+            if (head == null) {
+                if (failure != null) {
+                    throw failure;
+                } else if (end) {
+                    return -1;
+                } else if (closed) {
+                    throw new IOException("readahead closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for readahead");
+                }
+            } else if (head.position + head.buffer.limit() <= position) {
+                ready.remove();
+                notifyAll();
+            } else {
+                head.buffer.position((int) (position - head.position));
+                int n = Math.min(len, head.buffer.remaining());
+                head.buffer.get(b, off, n);
+                position += n;
+                return n;
+            }
+        }
+    }
+
+    private void start() {
+        if (fetcher == null && !closed) {
+            fetcher = new Thread(this::fetch, "zipbox-readahead");
+            fetcher.setDaemon(true);
+            fetcher.start();
+        }
+    }
+
+    /**
+     * The background thread, reading chunks until there are {@code depth}
+     * waiting.  A read begun before the consumer moved elsewhere is dropped.
+     * The thread is never interrupted, since that would close the channel.
+     */
+    private void fetch() {
+        while (true) {
+            long position;
+            int started;
+            synchronized (this) {
+                while (!closed && (end || failure != null || ready.size() >= depth)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                position = fetch;
+                started = epoch;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(chunk);
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) >= 0);
+            } catch (IOException e) {
+                error = e;
+            }
+            buffer.flip();
+            synchronized (this) {
+                if (started == epoch) {
+                    if (error != null) {
+                        failure = error;
+                    } else if (!buffer.hasRemaining()) {
+                        end = true;
+                    } else {
+                        ready.add(new Chunk(position, buffer));
+                        fetch = position + buffer.limit();
+                    }
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops reading ahead.  The channel is left open.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        ready.clear();
+        notifyAll();
+    }
+
+    /**
+     * A window on the next {@code length} bytes read ahead.  Closing it
+     * leaves the {@code ZipReadahead} open for the next entry.
+     */
+    private class Window extends InputStream {
+        private long remaining;
+
+        private Window(long length) {
+            this.remaining = length;
+        }
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = ZipReadahead.this.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) {
+                throw new EOFException("unexpected end of zip file");
+            }
+            remaining -= n;
+            return n;
+        }
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, remaining);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Schedules the rewrites of archives on this node, so that many large
+ * rewrites of different archives at once do not saturate the disk.  At
+ * most {@code concurrency} rewrites run at a time, and the bytes written
+ * by all rewrites together may be limited to a budget per second.
+ * <p/>
+ * Rewrites waiting for a turn are started in order of their cost (the
+ * number of bytes they are expected to write), so small interactive
+ * edits go ahead of big ones.  A rewrite that has waited longer than
+ * {@link #STARVATION_MILLIS} goes ahead of everything else, so a big
+ * rewrite is not postponed forever.
+ * <p/>
+ * Each rewrite holds its archive's {@link ZipCommitter#lock(File)},
+ * which is taken before waiting for a turn, so rewrites of the same
+ * archive are also serialized.
+ */
+public class ZipRewriteScheduler {
+
+    /**
+     * The longest a rewrite waits before it is given priority over cheaper ones.
+     */
+    public static final long STARVATION_MILLIS = 30_000L;
+
+    private static final ZipRewriteScheduler DEFAULT = new ZipRewriteScheduler(0, 0L);
+
+    /**
+     * Returns the JVM-wide scheduler.  It starts out unlimited until configured.
+     * @return the shared scheduler
+     */
+    public static ZipRewriteScheduler getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * A rewrite of an archive.
+     * @param <T> the type of the result
+     */
+    public interface Rewrite<T> {
+        public T run() throws IOException;
+    }
+
+    /**
+     * A rewrite waiting for its turn.
+     */
+    private static class Waiter {
+        private final long cost;
+        private final long sequence;
+        private final long since;
+        private Waiter(long cost, long sequence, long since) {
+            this.cost = cost;
+            this.sequence = sequence;
+            this.since = since;
+        }
+    }
+
+    private final List<Waiter> waiting = new ArrayList<>();
+    private int concurrency;
+    private long bytesPerSecond;
+    private volatile RateLimiter limiter;
+    private int running = 0;
+    private long sequence = 0L;
+    private long completed = 0L;
+    private long waitMillis = 0L;
+    private long maxWaitMillis = 0L;
+    private long maxDepth = 0L;
+
+    /**
+     * Creates a new scheduler.  Most uses should share the scheduler
+     * from {@link #getDefault()}.
+     * @param concurrency the maximum number of concurrent rewrites, or {@code 0} for no limit
+     * @param bytesPerSecond the maximum bytes written per second by all rewrites, or {@code 0} for no limit
+     */
+    public ZipRewriteScheduler(int concurrency, long bytesPerSecond) {
+        configure(concurrency, bytesPerSecond);
+    }
+
+    /**
+     * Changes the limits.  Rewrites already running are not affected by
+     * a lower concurrency, but are throttled by a new rate right away.
+     * @param concurrency the maximum number of concurrent rewrites, or {@code 0} for no limit
+     * @param bytesPerSecond the maximum bytes written per second by all rewrites, or {@code 0} for no limit
+     * @return {@code this}, to allow fluent style use
+     */
+    public synchronized ZipRewriteScheduler configure(int concurrency, long bytesPerSecond) {
+        this.concurrency = Math.max(0, concurrency);
+        if (bytesPerSecond != this.bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            if (bytesPerSecond <= 0) {
+                limiter = null;
+            } else if (limiter == null) {
+                limiter = RateLimiter.create(bytesPerSecond);
+            } else {
+                limiter.setRate(bytesPerSecond);
+            }
+        }
+        notifyAll();
+        return this;
+    }
+
+    /**
+     * Runs {@code rewrite} of {@code archive} once it holds the archive's
+     * lock and its turn comes up.
+     * @param archive the archive being rewritten
+     * @param cost the number of bytes the rewrite is expected to write
+     * @param rewrite the rewrite
+     * @return the result of the rewrite
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException
+     */
+    public <T> T run(File archive, long cost, Rewrite<T> rewrite) throws IOException {
+        ReentrantLock lock = ZipCommitter.lock(archive);
+        lock.lock();
+        try {
+            acquire(cost);
+            try {
+                return rewrite.run();
+            } finally {
+                release();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a turn to run a rewrite costing {@code cost}.
+     */
+    private synchronized void acquire(long cost) throws InterruptedIOException {
+        long start = System.currentTimeMillis();
+        Waiter waiter = new Waiter(cost, sequence++, start);
+        waiting.add(waiter);
+        maxDepth = Math.max(maxDepth, waiting.size());
+        try {
+            while ((concurrency > 0 && running >= concurrency) || next() != waiter) {
+                wait(STARVATION_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting to rewrite");
+        } finally {
+            waiting.remove(waiter);
+            notifyAll();
+        }
+        running++;
+        long waited = System.currentTimeMillis() - start;
+        waitMillis += waited;
+        maxWaitMillis = Math.max(maxWaitMillis, waited);
+    }
+
+    /**
+     * Ends a turn.
+     */
+    private synchronized void release() {
+        running--;
+        completed++;
+        notifyAll();
+    }
+
+    /**
+     * Returns the waiter whose turn is next: the longest waiting if it
+     * has waited too long, otherwise the cheapest (first come among equals).
+     */
+    private Waiter next() {
+        long now = System.currentTimeMillis();
+        Waiter oldest = null;
+        Waiter cheapest = null;
+        for (Waiter waiter : waiting) {
+            if (oldest == null || waiter.sequence < oldest.sequence) {
+                oldest = waiter;
+            }
+            if (cheapest == null || waiter.cost < cheapest.cost
+                    || waiter.cost == cheapest.cost && waiter.sequence < cheapest.sequence) {
+                cheapest = waiter;
+            }
+        }
+        return oldest != null && now - oldest.since >= STARVATION_MILLIS ? oldest : cheapest;
+    }
+
+    /**
+     * Wraps the output of a rewrite so that it is throttled to the
+     * configured rate, shared by all rewrites.
+     * @param out the output of the rewrite
+     * @return the throttled stream
+     */
+    public OutputStream throttle(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                RateLimiter rate = limiter;
+                if (rate != null) {
+                    rate.acquire(1);
+                }
+                out.write(b);
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                RateLimiter rate = limiter;
+                if (rate != null && len > 0) {
+                    rate.acquire(len);
+                }
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    public synchronized int concurrency() {
+        return concurrency;
+    }
+
+    public synchronized long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Returns {@code true} if a rewrite would get a turn at once, with no
+     * rewrite waiting and a turn free.
+     * @return {@code true} if idle
+     */
+    public synchronized boolean idle() {
+        return waiting.isEmpty() && (concurrency <= 0 || running < concurrency);
+    }
+
+    /**
+     * Returns the number of rewrites waiting for a turn.
+     * @return the queue depth
+     */
+    public synchronized int depth() {
+        return waiting.size();
+    }
+
+    /**
+     * Returns the greatest number of rewrites that have waited at once.
+     * @return the maximum queue depth
+     */
+    public synchronized long maxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the number of rewrites running.
+     * @return the running count
+     */
+    public synchronized int running() {
+        return running;
+    }
+
+    public synchronized long completed() {
+        return completed;
+    }
+
+    /**
+     * Returns the average time rewrites have waited for a turn.
+     * @return the average wait in milliseconds
+     */
+    public synchronized double averageWaitMillis() {
+        long started = completed + running;
+        return started == 0 ? 0.0 : (double) waitMillis / started;
+    }
+
+    /**
+     * Returns the longest time a rewrite has waited for a turn.
+     * @return the maximum wait in milliseconds
+     */
+    public synchronized long maxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("rewrites: %d running, %d waiting (max %d), %d completed%n"+
+                "wait: %.1f ms average, %d ms max%n"+
+                "limits: %s concurrent, %s bytes/s%n",
+                running, waiting.size(), maxDepth, completed, averageWaitMillis(), maxWaitMillis,
+                concurrency == 0 ? "unlimited" : String.valueOf(concurrency),
+                bytesPerSecond <= 0 ? "unlimited" : String.valueOf(bytesPerSecond));
+    }
+}
@@ -0,0 +1,135 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+
+/**
+ * Commit sequence numbers, so that pollers can ask for just the entries
+ * added or changed since they last looked.  Each {@link ZipEditor#process()}
+ * that changes the archive takes the next number of the archive's commit
+ * sequence, and stamps it on every entry it adds, replaces or renames, in a
+ * {@link #FIELD} extra field of the entry's central directory record.  The
+ * last number taken is kept in the archive comment (as {@code zipbox-sequence=N}),
+ * so that it keeps increasing even if the entries stamped with it are deleted.
+ * <p/>
+ * Entries written by other tools (or by the {@link ZipFsEngine}) carry no
+ * stamp, and are stamped with the number of the next commit that copies
+ * them, so they are reported once rather than never.
+ */
+public class ZipSequence {
+
+    /**
+     * The extra field header id of the sequence number, followed by the
+     * number as 8 bytes, little-endian.
+     */
+    public static final int FIELD = 0x5153; // "SQ"
+
+    private static final int SIZE = 8;
+    private static final String COMMENT = "zipbox-sequence=";
+
+    private ZipSequence() {
+    }
+
+    /**
+     * Returns the sequence number stamped on {@code record}.
+     * @param record the entry
+     * @return the sequence number, or {@code 0} if the entry is not stamped
+     */
+    public static long of(Record record) {
+        byte[] extra = record.extra();
+        int i = find(extra);
+        return i < 0 ? 0L : ByteBuffer.wrap(extra, i + 4, SIZE).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+
+    /**
+     * Returns a copy of an extra field stamped with {@code sequence},
+     * replacing any earlier stamp.
+     * @param extra the extra field
+     * @param sequence the sequence number
+     * @return the stamped extra field
+     */
+    public static byte[] stamp(byte[] extra, long sequence) {
+        int i = find(extra);
+        if (i < 0) {
+            i = extra.length;
+            byte[] grown = new byte[extra.length + 4 + SIZE];
+            System.arraycopy(extra, 0, grown, 0, extra.length);
+            extra = grown;
+        } else {
+            extra = extra.clone();
+        }
+        ByteBuffer.wrap(extra, i, 4 + SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) FIELD).putShort((short) SIZE).putLong(sequence);
+        return extra;
+    }
+
+    /**
+     * Returns a copy of {@code record} stamped with {@code sequence}.
+     * @param record the entry
+     * @param sequence the sequence number
+     * @return the stamped record
+     */
+    public static Record stamp(Record record, long sequence) {
+        return new Record(record.name(), record.flags(), record.method(), record.dosTime(), record.crc(),
+                record.compressedSize(), record.size(), record.offset(), stamp(record.extra(), sequence),
+                record.comment());
+    }
+
+    /**
+     * Returns the archive comment recording {@code sequence} as the last
+     * number taken.
+     * @param sequence the sequence number
+     * @return the comment
+     */
+    public static String comment(long sequence) {
+        return COMMENT + sequence;
+    }
+
+    /**
+     * Returns the last number taken by the archive with comment
+     * {@code comment} and entries {@code records}: the larger of the number
+     * in the comment (if any) and the largest number stamped on an entry.
+     * @param comment the archive comment (may be {@code null})
+     * @param records the entries
+     * @return the sequence number, or {@code 0} if none has been taken
+     */
+    public static long last(String comment, List<Record> records) {
+        long last = parse(comment);
+        for (Record record : records) {
+            last = Math.max(last, of(record));
+        }
+        return last;
+    }
+
+    /**
+     * Returns the number recorded in an archive comment.
+     * @param comment the archive comment (may be {@code null})
+     * @return the sequence number, or {@code 0} if there is none
+     */
+    public static long parse(String comment) {
+        if (comment == null || !comment.startsWith(COMMENT)) {
+            return 0L;
+        }
+        try {
+            return Math.max(0L, Long.parseLong(comment.substring(COMMENT.length()).trim()));
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
+
+    private static int find(byte[] extra) {
+        int i = 0;
+        while (i + 4 <= extra.length) {
+            int id = extra[i] & 0xFF | (extra[i+1] & 0xFF) << 8;
+            int size = extra[i+2] & 0xFF | (extra[i+3] & 0xFF) << 8;
+            if (id == FIELD && size == SIZE && i + 4 + size <= extra.length) {
+                return i;
+            }
+            i += 4 + size;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,297 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.PooledInflaterInputStream;
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipWriter;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * A {@code ZipSpool} receives content into a temporary file before it is
+ * added to an archive, computing its CRC-32, size and (optionally) a
+ * stronger digest along the way.  This allows the content to be compared
+ * with an existing entry before committing to a rewrite of the archive.
+ * <p/>
+ * If {@link #deflate(ZipCodecPool, int)} is requested, the content is
+ * deflated as it is received, so the temporary file holds exactly the
+ * compressed data of a {@code DEFLATED} entry.  The rewrite of the archive
+ * then splices it in as a raw entry, like any retained entry, so that the
+ * time the archive spends being rewritten depends only on local disk speed
+ * and not on the sender or on compression.
+ * <p/>
+ * The temporary file is deleted when the spool is closed, unless it is
+ * {@link #borrowed(String, byte[]) borrowed}.
+ */
+public class ZipSpool implements Closeable {
+    private final File file;
+    private String algorithm;
+    private ZipCodecPool pool;
+    private int level;
+    private boolean deflated;
+    private long crc;
+    private long size;
+    private long compressedSize;
+    private byte[] digest;
+    private boolean ingested = false;
+    private boolean borrowed = false;
+
+    /**
+     * Creates a new empty spool in {@code directory}.
+     * @param directory where to create the temporary file ({@code null} for the default temporary directory)
+     * @param algorithm a {@link MessageDigest} algorithm name, or {@code null} to compute only the CRC
+     * @throws IOException
+     */
+    public ZipSpool(File directory, String algorithm) throws IOException {
+        this.file = File.createTempFile("zipbox", ".spool", directory);
+        this.algorithm = algorithm;
+        this.pool = ZipCodecPool.getDefault();
+        this.level = Deflater.DEFAULT_COMPRESSION;
+        this.deflated = false;
+        this.crc = 0L;
+        this.size = 0L;
+        this.compressedSize = 0L;
+        this.digest = null;
+    }
+
+    /**
+     * Adopts an existing spooled file, for example one recovered after
+     * a restart, whose content was summarized by an earlier spool.
+     * @param file the spooled file
+     * @param deflated {@code true} if the file holds deflated data
+     * @param crc the CRC-32 of the content
+     * @param size the size of the (uncompressed) content
+     * @param pool the {@link ZipCodecPool} for inflating the content
+     */
+    ZipSpool(File file, boolean deflated, long crc, long size, ZipCodecPool pool) {
+        this.file = file;
+        this.algorithm = null;
+        this.pool = pool;
+        this.level = Deflater.DEFAULT_COMPRESSION;
+        this.deflated = deflated;
+        this.crc = crc;
+        this.size = size;
+        this.compressedSize = file.length();
+        this.digest = null;
+    }
+
+    /**
+     * Marks the adopted file as borrowed, with the digest of its content
+     * computed by its owner, so that closing the spool leaves the file in
+     * place.  This is for content that belongs to someone else until it is
+     * committed, such as the data file of a {@link ZipPartial}.
+     * @param algorithm the digest algorithm, or {@code null} if no digest was computed
+     * @param digest the digest of the content, or {@code null}
+     * @return {@code this}, to allow fluent style use
+     */
+    ZipSpool borrowed(String algorithm, byte[] digest) {
+        this.algorithm = algorithm;
+        this.digest = digest;
+        this.borrowed = true;
+        return this;
+    }
+
+    /**
+     * Requests that content be deflated as it is spooled, at {@code level}
+     * with a {@link Deflater} borrowed from {@code pool}, ready to be
+     * spliced into an archive.
+     * @param pool the {@link ZipCodecPool}
+     * @param level the compression level 0-9 or DEFAULT_COMPRESSION (-1)
+     * @return {@code this}, to allow fluent style use
+     */
+    public ZipSpool deflate(ZipCodecPool pool, int level) {
+        this.pool = pool;
+        this.level = level;
+        this.deflated = true;
+        return this;
+    }
+
+    /**
+     * Marks the entry spliced from this spool as deflated at a fast ingest
+     * level, to be recompressed later by {@link ZipIngest}.
+     * @param ingested {@code true} to mark the entry
+     * @return {@code this}, to allow fluent style use
+     */
+    public ZipSpool ingested(boolean ingested) {
+        this.ingested = ingested;
+        return this;
+    }
+
+    /**
+     * Returns {@code true} if the entry spliced from this spool is marked
+     * for recompression.
+     * @return {@code true} if marked
+     */
+    public boolean ingested() {
+        return ingested;
+    }
+
+    /**
+     * Drains and closes {@code in} into the spool, replacing any
+     * previously spooled content.
+     * @param in the {@link InputStream} to drain and close
+     * @return {@code this}, to allow fluent style use
+     * @throws IOException
+     */
+    public ZipSpool spool(InputStream in) throws IOException {
+        CRC32 checksum = new CRC32();
+        MessageDigest md = null;
+        if (algorithm != null) {
+            try {
+                md = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+        Deflater deflater = deflated ? pool.borrowDeflater(level) : null;
+        try (InputStream source = in;
+             CountingOutputStream file = new CountingOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(this.file), 64 * 1024))) {
+            OutputStream out = file;
+            DeflaterOutputStream deflate = null;
+            if (deflater != null) {
+                out = deflate = new DeflaterOutputStream(out, deflater, 8192);
+            }
+            out = new CheckedOutputStream(out, checksum);
+            if (md != null) {
+                out = new DigestOutputStream(out, md);
+            }
+            size = ByteStreams.copy(source, out);
+            if (deflate != null) {
+                deflate.finish();
+            }
+            out.flush();
+            compressedSize = file.getCount();
+        } finally {
+            if (deflater != null) {
+                pool.release(deflater, level);
+            }
+        }
+        crc = checksum.getValue();
+        digest = md == null ? null : md.digest();
+        return this;
+    }
+
+    /**
+     * Returns the CRC-32 of the spooled content.
+     * @return the CRC-32
+     */
+    public long crc() {
+        return crc;
+    }
+
+    /**
+     * Returns the size of the spooled content.
+     * @return the size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns {@code true} if the spooled file holds deflated data.
+     * @return {@code true} if deflated
+     */
+    public boolean deflated() {
+        return deflated;
+    }
+
+    /**
+     * Returns the size of the spooled file, which is the compressed size
+     * of the content if it is {@link #deflated()}.
+     * @return the size in bytes
+     */
+    public long compressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Returns the digest algorithm, or {@code null} if none was requested.
+     * @return the algorithm name
+     */
+    public String algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns the digest of the spooled content, or {@code null} if
+     * no digest algorithm was requested.
+     * @return the digest
+     */
+    public byte[] digest() {
+        return digest;
+    }
+
+    /**
+     * Returns the temporary file holding the spooled content.
+     * @return the {@link File}
+     */
+    public File file() {
+        return file;
+    }
+
+    /**
+     * Opens the spooled content, inflating it if it is {@link #deflated()}.
+     * @return an {@link InputStream}
+     * @throws IOException
+     */
+    public InputStream open() throws IOException {
+        InputStream in = new FileInputStream(file);
+        return deflated ? new PooledInflaterInputStream(in, pool, size) : in;
+    }
+
+    /**
+     * Returns a {@link ZipWriter} that copies the spooled content.
+     * @return a {@link ZipWriter}
+     */
+    public ZipWriter writer() {
+        return (os) -> {
+            try (InputStream in = open()) {
+                ByteStreams.copy(in, os);
+            }
+        };
+    }
+
+    /**
+     * Returns a {@link Record} describing the spooled file as the raw data
+     * of a {@code DEFLATED} entry, so it can be spliced into an archive with
+     * {@link ZipArchiveWriter#copy(Record, String, InputStream)}.  If the
+     * spool is {@link #ingested()}, the record carries the
+     * {@link ZipIngest#MARKER} extra field.
+     * @param name the entry name
+     * @param time the modification time in Java milliseconds
+     * @return the {@link Record}
+     * @throws IllegalStateException if the spool is not {@link #deflated()}
+     */
+    public Record record(String name, long time) {
+        if (!deflated) {
+            throw new IllegalStateException("spool is not deflated");
+        }
+        return new Record(name, ZipArchiveWriter.FLAG_UTF8, ZipEntry.DEFLATED, ZipArchiveWriter.javaToDosTime(time),
+                crc, compressedSize, size, -1L, ingested ? ZipIngest.mark() : new byte[0], null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!borrowed) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
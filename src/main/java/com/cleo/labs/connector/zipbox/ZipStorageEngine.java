@@ -0,0 +1,139 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipProcessResult;
+
+/**
+ * The storage engine behind the basic commands of a connection: listing,
+ * reading and editing the entries of the archive.  Each engine is created
+ * for one archive and one command, and reports the edits it makes as a
+ * {@link ZipProcessResult}, counting a replaced or renamed entry as a
+ * delete and an add, and an existing directory as a delete.
+ * <p/>
+ * Whatever the engine, an edit must hold the archive's lock for its rewrite
+ * (see {@link ZipCommitter#exclusive(java.io.File, ZipRewriteScheduler.Rewrite)})
+ * and publish the new archive with {@link ZipGeneration#commit(java.io.File, ZipRewriteScheduler.Rewrite)},
+ * so that engines may be mixed on one archive, and with the features that
+ * always use the {@link ZipEditor} (such as {@code ImportZip} and the
+ * administrative commands).
+ */
+public interface ZipStorageEngine {
+
+    /**
+     * Returns the name the engine is selected by.
+     * @return the engine name
+     */
+    String name();
+
+    /**
+     * Returns {@code true} if the engine copies the deflated data of a
+     * {@link ZipSpool} into the archive as is, in which case uploads should
+     * be deflated as they are spooled.
+     * @return {@code true} if spooled uploads are spliced in
+     */
+    boolean splices();
+
+    /**
+     * Returns {@code true} if {@code source} is to be listed as a glob
+     * pattern (see {@link ZipIndex#isGlob(String)}) rather than as a
+     * directory: a pattern that names an existing directory as is, such as
+     * {@code logs[2024]/}, lists the directory.
+     * @param source the directory or pattern
+     * @return {@code true} to list the entries matching the pattern
+     * @throws IOException
+     */
+    default boolean glob(String source) throws IOException {
+        if (!ZipIndex.isGlob(source)) {
+            return false;
+        }
+        Optional<ZipEntry> directory = stat(ZipEditor.normalizeDirectoryName(source));
+        return !directory.isPresent() || !directory.get().isDirectory();
+    }
+
+    /**
+     * Lists the entries in directory {@code source}, or matching the glob
+     * {@code source} (see {@link #glob(String)}).
+     * @param source the directory or pattern
+     * @return the entries, possibly empty but never {@code null}
+     * @throws IOException
+     */
+    List<ZipEntry> list(String source) throws IOException;
+
+    /**
+     * Lists the entries under directory {@code source}, at any depth, or
+     * matching the glob {@code source}, that were added or changed by a
+     * commit after {@link ZipSequence} number {@code sequence}.  An engine
+     * that cannot tell may list more, but never fewer.
+     * @param source the directory or pattern
+     * @param sequence the last sequence number already seen
+     * @return the entries, possibly empty but never {@code null}
+     * @throws IOException
+     */
+    List<ZipEntry> since(String source, long sequence) throws IOException;
+
+    /**
+     * Finds entry (or directory) {@code path}.
+     * @param path the entry name
+     * @return the entry, or {@code Optional.empty()}
+     * @throws IOException
+     */
+    Optional<ZipEntry> stat(String path) throws IOException;
+
+    /**
+     * Opens a byte range of the content of entry {@code path}.  The stream
+     * must be closed to release the archive.
+     * @param path the entry name
+     * @param offset the offset of the first byte to read
+     * @param length the maximum number of bytes to read, or {@code -1} to read to the end
+     * @return the content, or {@code Optional.empty()} if there is no such entry
+     * @throws IOException
+     */
+    Optional<InputStream> read(String path, long offset, long length) throws IOException;
+
+    /**
+     * Stores {@code spool} as entry {@code path}, replacing any existing entry.
+     * @param path the entry name
+     * @param spool the content
+     * @return the result
+     * @throws IOException
+     */
+    ZipProcessResult write(String path, ZipSpool spool) throws IOException;
+
+    /**
+     * Deletes entry {@code path}.
+     * @param path the entry name
+     * @return the result, with no deletes if there was no such entry
+     * @throws IOException
+     */
+    ZipProcessResult delete(String path) throws IOException;
+
+    /**
+     * Renames entry (or directory) {@code from} to {@code to}.
+     * @param from the current path
+     * @param to the new path
+     * @return the result, with no deletes if there was no such entry
+     * @throws IOException
+     */
+    ZipProcessResult rename(String from, String to) throws IOException;
+
+    /**
+     * Creates directory {@code path}.
+     * @param path the directory
+     * @return the result, with a delete if the directory already existed
+     * @throws IOException
+     */
+    ZipProcessResult mkdir(String path) throws IOException;
+
+    /**
+     * Removes directory {@code path} and its contents.
+     * @param path the directory
+     * @return the result, with no deletes if there was no such directory
+     * @throws IOException
+     */
+    ZipProcessResult rmdir(String path) throws IOException;
+}
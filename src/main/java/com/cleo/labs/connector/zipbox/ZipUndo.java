@@ -0,0 +1,298 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.ZipException;
+
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
+
+/**
+ * An undo record for rewriting the tail of an archive in place.  Before the
+ * archive is touched, the bytes from the cut to the end of the file are
+ * copied into {@code <archive>.undo}, behind a header recording the cut and
+ * the original length, and made durable.  The archive is then truncated at
+ * the cut and the new tail written, and the undo record is discarded once
+ * the new tail is durable.
+ * <p/>
+ * If the rewrite fails, or the process stops before it completes, the undo
+ * record puts the original tail back: {@link #recover(File)} restores any
+ * undo record left beside an archive before it is read or rewritten.  An
+ * undo record is written to a temporary file and moved into place, so one
+ * that exists is always complete.
+ * <p/>
+ * A rewrite in place and the recovery both hold the archive's
+ * {@link #lock(File)}, which also locks {@code <archive>.undo.lock} with a
+ * {@link FileLock}, so that another process sharing the archive waits for
+ * a rewrite in progress rather than undoing it.
+ * <p/>
+ * Entries of the original tail remain readable from the undo record, with
+ * {@link #openRaw(Record)}, while the archive itself is being rewritten.
+ */
+public class ZipUndo implements Closeable {
+
+    public static final String SUFFIX = ".undo";
+
+    private static final String LOCK = ".lock";
+    private static final int MAGIC = 0x6f646e75; // "undo"
+    private static final int HEADER = 20;
+
+    private final File archive;
+    private final File file;
+    private final long cut;
+    private final long length;
+    private ZipCentralDirectory.Reader reader = null;
+
+    private ZipUndo(File archive, long cut, long length) {
+        this.archive = archive;
+        this.file = file(archive);
+        this.cut = cut;
+        this.length = length;
+    }
+
+    /**
+     * Returns the undo record file for {@code archive}.
+     * @param archive the archive
+     * @return the undo record file
+     */
+    public static File file(File archive) {
+        return new File(archive.getPath() + SUFFIX);
+    }
+
+    /**
+     * Returns the lock file for {@code archive}.
+     * @param archive the archive
+     * @return the lock file
+     */
+    public static File lockFile(File archive) {
+        return new File(file(archive).getPath() + LOCK);
+    }
+
+    /**
+     * Locks {@code archive} against rewrites in place and recovery, by
+     * other threads (with its {@link ZipCommitter#lock(File)}) and by other
+     * processes (with a {@link FileLock} on {@code <archive>.undo.lock},
+     * which is left in place).  Closing the returned lock releases both.
+     * @param archive the archive
+     * @return the lock, to be closed
+     * @throws IOException
+     */
+    public static Closeable lock(File archive) throws IOException {
+        ReentrantLock lock = ZipCommitter.lock(archive);
+        lock.lock();
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile(archive).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            FileLock held = channel.lock();
+            return () -> {
+                try {
+                    held.channel().close();
+                } finally {
+                    lock.unlock();
+                }
+            };
+        } catch (IOException|RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            lock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Records the tail of {@code archive} from {@code cut} to its end, so
+     * that the tail may be rewritten.
+     * @param archive the archive
+     * @param cut the offset of the first byte to be rewritten
+     * @return the undo record
+     * @throws IOException
+     */
+    public static ZipUndo record(File archive, long cut) throws IOException {
+        File temp = new File(archive.getPath() + SUFFIX + ".tmp");
+        long length;
+        try (FileChannel in = FileChannel.open(archive.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            length = in.size();
+            if (cut < 0 || cut > length) {
+                throw new IOException("invalid cut " + cut + " for " + archive);
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putLong(cut).putLong(length);
+            header.flip();
+            while (header.hasRemaining()) {
+                out.write(header);
+            }
+            transfer(in, cut, length - cut, out, HEADER);
+            out.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        ZipUndo undo = new ZipUndo(archive, cut, length);
+        Files.move(temp.toPath(), undo.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return undo;
+    }
+
+    /**
+     * Restores the original tail of {@code archive} if an undo record was
+     * left beside it by a rewrite that did not complete.  The archive's
+     * {@link #lock(File)} is held while restoring, so a rewrite in progress
+     * in this or another process is waited for rather than undone.
+     * @param archive the archive
+     * @return {@code true} if the archive was restored
+     * @throws IOException
+     */
+    public static boolean recover(File archive) throws IOException {
+        File file = file(archive);
+        if (!file.exists()) {
+            return false;
+        }
+        Closeable lock = lock(archive);
+        try {
+            // an incomplete record means the archive was never touched
+            Files.deleteIfExists(new File(file.getPath() + ".tmp").toPath());
+            if (!file.exists()) {
+                return false;
+            }
+            ZipUndo undo;
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && in.read(header) >= 0);
+                header.flip();
+                if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+                    throw new ZipException("invalid undo record " + file);
+                }
+                undo = new ZipUndo(archive, header.getLong(), header.getLong());
+                if (in.size() != HEADER + undo.length - undo.cut) {
+                    throw new ZipException("invalid undo record " + file);
+                }
+            }
+            return ZipGeneration.commit(archive, () -> {
+                undo.restore();
+                ZipContentCache.invalidateAll(archive);
+                ZipInflateIndex.invalidate(archive);
+                ZipIndex.invalidate(archive);
+                return true;
+            });
+        } finally {
+            lock.close();
+        }
+    }
+
+    public long cut() {
+        return cut;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns a stream of the raw compressed bytes of {@code record}, an
+     * entry of the original tail, read from the undo record.
+     * @param record the entry, at or after the cut
+     * @return an {@link InputStream}
+     * @throws IOException
+     */
+    public InputStream openRaw(Record record) throws IOException {
+        if (reader == null) {
+            reader = new ZipCentralDirectory.Reader(file);
+        }
+        return reader.openRaw(new Record(record.name(), record.flags(), record.method(), record.dosTime(),
+                record.crc(), record.compressedSize(), record.size(), record.offset() - cut + HEADER,
+                record.extra(), record.comment()));
+    }
+
+    /**
+     * Truncates the archive at the cut and returns a stream positioned to
+     * write the new tail.  Closing the stream makes the new tail durable.
+     * @return an {@link OutputStream}
+     * @throws IOException
+     */
+    @SuppressWarnings("resource")
+    public OutputStream rewrite() throws IOException {
+        FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.WRITE);
+        try {
+            channel.truncate(cut);
+            channel.position(cut);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new FilterOutputStream(Channels.newOutputStream(channel)) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.force(true);
+                } finally {
+                    super.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Puts the original tail back, and discards the undo record.
+     * @throws IOException
+     */
+    public void restore() throws IOException {
+        close();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(archive.toPath(), StandardOpenOption.WRITE)) {
+            transfer(in, HEADER, length - cut, out, cut);
+            out.truncate(length);
+            out.force(true);
+        }
+        Files.delete(file.toPath());
+    }
+
+    /**
+     * Discards the undo record once the new tail is durable.
+     * @throws IOException
+     */
+    public void discard() throws IOException {
+        close();
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    private static void transfer(FileChannel in, long position, long count, FileChannel out, long target)
+            throws IOException {
+        out.position(target);
+        long done = 0;
+        while (done < count) {
+            long n = in.transferTo(position + done, count - done, out);
+            if (n <= 0) {
+                throw new IOException("unexpected end of file");
+            }
+            done += n;
+        }
+    }
+}
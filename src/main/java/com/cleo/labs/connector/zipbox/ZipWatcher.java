@@ -0,0 +1,270 @@
+package com.cleo.labs.connector.zipbox;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the state cached for an archive, such as its {@link ZipIndex}
+ * and {@link ZipInflateIndex}es, consistent with changes made to the file
+ * by other processes, without a {@code stat} of the file on every command.
+ * <p/>
+ * An archive registered with {@code watch} enabled has its directory
+ * watched with a {@link WatchService}, and any create, modify, delete or
+ * rename in that directory affecting the archive evicts its cached state,
+ * except for the events caused by a commit in this process, which has
+ * already {@link #published(String, long, long, Object)} the new state.
+ * While the watch is in place, the cached state is trusted without checking
+ * the file at all.
+ * <p/>
+ * Where the directory can not be watched, or watching is not enabled, the
+ * cached state is revalidated against the file's size and modification
+ * time at most once per {@code interval}.  An interval of {@code 0}
+ * revalidates on every use, which is also the behavior for archives that
+ * are not registered.  Note that native watches may not see changes made
+ * through other hosts on network filesystems, for which watching should
+ * not be enabled.
+ */
+public class ZipWatcher {
+
+    private static final ZipWatcher DEFAULT = new ZipWatcher();
+
+    /**
+     * Returns the JVM-wide watcher consulted by the archive caches.
+     * @return the shared watcher
+     */
+    public static ZipWatcher getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * The modification time, size and file key of an archive, as written
+     * by a commit in this process.
+     */
+    private static class Published {
+        private final long modified;
+        private final long length;
+        private final Object fileKey;
+        private Published(long modified, long length, Object fileKey) {
+            this.modified = modified;
+            this.length = length;
+            this.fileKey = fileKey;
+        }
+        private boolean matches(File file) {
+            try {
+                return file.lastModified() == modified && file.length() == length
+                        && Objects.equals(Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey(), fileKey);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * The registration of a single archive.
+     */
+    private static class Registration {
+        private final File file;
+        private volatile Published published = null;
+        private volatile boolean watched = false;
+        private volatile long interval;
+        private volatile long checked = 0L;
+        private Registration(File file, long interval) {
+            this.file = file;
+            this.interval = interval;
+        }
+    }
+
+    private final Map<String,Registration> registrations = new ConcurrentHashMap<>();
+    private final Map<Path,WatchKey> directories = new ConcurrentHashMap<>();
+    private final List<Consumer<File>> listeners = new CopyOnWriteArrayList<>();
+    private WatchService service = null;
+    private Thread thread = null;
+
+    /**
+     * Registers an archive.  Registration is idempotent, except that the
+     * most recent {@code interval} applies and that once watching has been
+     * enabled for an archive it stays enabled.
+     * @param archive the archive
+     * @param watch {@code true} to watch the archive's directory for changes
+     * @param interval the minimum milliseconds between revalidations when not watched
+     * @throws IOException
+     */
+    public void register(File archive, boolean watch, long interval) throws IOException {
+        File file = archive.getCanonicalFile();
+        Registration registration = registrations.computeIfAbsent(file.getPath(), (k) -> new Registration(file, interval));
+        registration.interval = interval;
+        if (watch && !registration.watched) {
+            registration.watched = watch(file.getParentFile().toPath());
+        }
+    }
+
+    /**
+     * Adds a listener notified with the (canonical) archive file whenever
+     * a change to a registered archive is observed.
+     * @param listener the listener
+     */
+    public void addListener(Consumer<File> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Returns {@code true} if state cached for {@code archive} should be
+     * revalidated against the file now.  This is always {@code true} for
+     * archives that are not registered.
+     * @param canonicalPath the canonical path of the archive
+     * @return {@code true} to revalidate
+     */
+    public boolean revalidate(String canonicalPath) {
+        Registration registration = registrations.get(canonicalPath);
+        if (registration == null) {
+            return true;
+        } else if (registration.watched) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - registration.checked >= registration.interval) {
+            registration.checked = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that state for {@code archive} has just been loaded from (or
+     * checked against) the file, restarting its revalidation interval.
+     * @param canonicalPath the canonical path of the archive
+     */
+    public void validated(String canonicalPath) {
+        Registration registration = registrations.get(canonicalPath);
+        if (registration != null) {
+            registration.checked = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records that a commit in this process has just written the archive
+     * and cached its new state, so that the events the commit causes in the
+     * watched directory do not evict that state again.  Events for the
+     * archive are ignored while it still has this modification time, size
+     * and file key.
+     * @param canonicalPath the canonical path of the archive
+     * @param modified the modification time of the archive as written
+     * @param length the size of the archive as written
+     * @param fileKey the file key of the archive as written, or {@code null}
+     */
+    public void published(String canonicalPath, long modified, long length, Object fileKey) {
+        Registration registration = registrations.get(canonicalPath);
+        if (registration != null) {
+            registration.published = new Published(modified, length, fileKey);
+        }
+    }
+
+    /**
+     * Returns {@code true} if {@code archive} is registered and its
+     * directory is being watched.
+     * @param archive the archive
+     * @return {@code true} if watched
+     * @throws IOException
+     */
+    public boolean watched(File archive) throws IOException {
+        Registration registration = registrations.get(archive.getCanonicalPath());
+        return registration != null && registration.watched;
+    }
+
+    /**
+     * Evicts all state cached for {@code file} and notifies the listeners.
+     * @param file the (canonical) archive
+     */
+    public void changed(File file) {
+        ZipIndex.invalidate(file);
+        ZipInflateIndex.invalidate(file);
+        for (Consumer<File> listener : listeners) {
+            listener.accept(file);
+        }
+    }
+
+    /**
+     * Starts watching {@code directory}, starting the watch thread if needed.
+     * @param directory the directory
+     * @return {@code true} if the directory is (now) watched
+     */
+    private synchronized boolean watch(Path directory) {
+        if (directories.containsKey(directory)) {
+            return true;
+        }
+        try {
+            if (service == null) {
+                service = FileSystems.getDefault().newWatchService();
+                thread = new Thread(this::run, "zipbox-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            directories.put(directory, directory.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE));
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // fall back to revalidating at intervals
+            return false;
+        }
+    }
+
+    /**
+     * The watch thread: dispatches events to the affected archives.
+     */
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    // events were lost: evict everything in the directory
+                    for (Registration registration : registrations.values()) {
+                        if (registration.file.getParentFile().toPath().equals(directory)) {
+                            changed(registration.file);
+                        }
+                    }
+                } else {
+                    Path name = (Path) event.context();
+                    Registration registration = registrations.get(directory.resolve(name).toString());
+                    Published published = registration == null ? null : registration.published;
+                    if (registration != null && (published == null || !published.matches(registration.file))) {
+                        changed(registration.file);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // the directory is gone: go back to revalidating
+                directories.remove(directory);
+                for (Registration registration : registrations.values()) {
+                    if (registration.file.getParentFile().toPath().equals(directory)) {
+                        registration.watched = false;
+                        changed(registration.file);
+                    }
+                }
+            }
+        }
+    }
+}
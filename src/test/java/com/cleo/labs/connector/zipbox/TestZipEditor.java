@@ -2,16 +2,58 @@ package com.cleo.labs.connector.zipbox;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import org.junit.Test;
 
+import com.cleo.labs.connector.zipbox.ZipCentralDirectory.Record;
 import com.cleo.labs.connector.zipbox.ZipEditor.ZipProcessResult;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipBatchResult;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipRepackResult;
 import com.cleo.labs.connector.zipbox.ZipEditor.ZipWriter;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 public class TestZipEditor {
     static private final String HELLO = "hello, world!\n";
@@ -113,4 +155,1063 @@ public class TestZipEditor {
         assertArrayEquals(new String[] {"bat/one/","bat/two/"}, entries);
         Files.delete(zipfn);
     }
+    @Test
+    public final void testCodecPool() throws IOException {
+        ZipCodecPool pool = new ZipCodecPool(2);
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile()).codecPool(pool);
+        zip.add("test1.txt", ZipWriter.of(HELLO)).process();
+        zip.add("test2.txt", ZipWriter.of(HELLO+HELLO)).process();
+        assertEquals(1, pool.deflaterMisses());
+        assertEquals(1, pool.deflaterHits());
+        for (String name : new String[] {"test1.txt", "test2.txt", "test1.txt"}) {
+            try (InputStream in = zip.open(name).get()) {
+                assertEquals(zip.entry(name).get().getSize(), ByteStreams.toByteArray(in).length);
+            }
+        }
+        assertEquals(1, pool.inflaterMisses());
+        assertEquals(2, pool.inflaterHits());
+        assertFalse(zip.open("missing.txt").isPresent());
+        Files.delete(zipfn);
+    }
+    private static byte[] sample(int size) {
+        // compressible but varied content, so deflate produces many dynamic blocks
+        Random random = new Random(size);
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + (int) Math.abs(random.nextGaussian() * 4) % 26);
+        }
+        return data;
+    }
+    @Test
+    public final void testRangeRead() throws IOException {
+        byte[] data = sample(3 * 1024 * 1024 + 17);
+        for (int level : new int[] {Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+            Path zipfn = Files.createTempFile("ziptest", ".zip");
+            ZipEditor zip = new ZipEditor(zipfn.toFile()).compressionLevel(level).checkpointSpan(64 * 1024);
+            zip.add("data.bin", ZipWriter.of(new ByteArrayInputStream(data))).process();
+            for (long offset : new long[] {0, 1, 65535, 100001, 2 * 1024 * 1024 + 3, data.length - 1, data.length}) {
+                try (InputStream in = zip.open("data.bin", offset, 1000).get()) {
+                    byte[] expected = Arrays.copyOfRange(data, (int) offset, (int) Math.min(data.length, offset + 1000));
+                    assertArrayEquals(expected, ByteStreams.toByteArray(in));
+                }
+            }
+            Files.delete(zipfn);
+        }
+    }
+    @Test
+    public final void testRangeReadStored() throws IOException {
+        byte[] data = sample(100000);
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zipfn))) {
+            ZipEntry entry = new ZipEntry("stored.bin");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setCrc(crc.getValue());
+            zos.putNextEntry(entry);
+            zos.write(data);
+            zos.closeEntry();
+        }
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        try (InputStream in = zip.open("stored.bin", 12345, -1).get()) {
+            assertArrayEquals(Arrays.copyOfRange(data, 12345, data.length), ByteStreams.toByteArray(in));
+        }
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testUnchanged() throws IOException {
+        Path zipfn = makeNewZip();
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        for (String algorithm : new String[] {null, "SHA-256"}) {
+            try (ZipSpool same = new ZipSpool(null, algorithm).spool(new ByteArrayInputStream(HELLO.getBytes()));
+                 ZipSpool different = new ZipSpool(null, algorithm).spool(new ByteArrayInputStream((HELLO+HELLO).getBytes()))) {
+                assertEquals(HELLOL, same.size());
+                assertTrue(zip.unchanged("test1.txt", same));
+                assertTrue(zip.unchanged("foo/test2.txt", same));
+                assertFalse(zip.unchanged("test1.txt", different));
+                assertFalse(zip.unchanged("missing.txt", same));
+                assertFalse(zip.unchanged("foo/", same));
+            }
+        }
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testVerify() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        for (int i = 0; i < 20; i++) {
+            zip.add(String.format("file%02d.bin", i), ZipWriter.of(new ByteArrayInputStream(sample(10000 + i))));
+        }
+        zip.process();
+        ZipBatchResult result = zip.verify(4);
+        assertTrue(result.ok());
+        assertEquals(20, result.entries());
+        assertEquals(4, result.threads());
+        // corrupt the middle of the first entry's data
+        try (FileChannel channel = FileChannel.open(zipfn, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}), 2000);
+        }
+        result = zip.verify(4);
+        assertFalse(result.ok());
+        assertEquals(20, result.entries());
+        assertArrayEquals(new String[] {"file00.bin"}, result.failures().keySet().toArray(new String[0]));
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testExtract() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            names.add(String.format("inbox/file%02d.bin", i));
+            zip.add(names.get(i), ZipWriter.of(new ByteArrayInputStream(sample(5000 + i))));
+        }
+        zip.mkdir("inbox").process();
+        names.add("inbox/");
+        names.add("missing.bin");
+        Map<String,ByteArrayOutputStream> received = new ConcurrentHashMap<>();
+        ZipBatchResult result = zip.extract(names, (entry) -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            received.put(entry.getName(), out);
+            return out;
+        }, 8);
+        assertEquals(51, result.entries());
+        assertArrayEquals(new String[] {"missing.bin"}, result.failures().keySet().toArray(new String[0]));
+        assertEquals(50, received.size());
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(sample(5000 + i), received.get(names.get(i)).toByteArray());
+        }
+        // and sequentially, asked for in reverse
+        received.clear();
+        Collections.reverse(names);
+        result = zip.extract(names, (entry) -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            received.put(entry.getName(), out);
+            return out;
+        }, 1);
+        assertEquals(51, result.entries());
+        assertEquals(1, result.threads());
+        assertEquals(50, received.size());
+        assertArrayEquals(sample(5049), received.get("inbox/file49.bin").toByteArray());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testReadahead() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        for (int i = 0; i < 20; i++) {
+            zip.add(String.format("file%02d.bin", i), ZipWriter.of(new ByteArrayInputStream(sample(5000 + i))));
+        }
+        zip.process();
+        try (ZipCentralDirectory directory = new ZipCentralDirectory(zipfn.toFile());
+             ZipReadahead readahead = new ZipReadahead(directory.reader().channel(), 4096, 2)) {
+            List<Record> records = new ArrayList<>(directory.records());
+            records.sort(Comparator.comparingLong(Record::offset));
+            // skip every other entry: small gaps are read through, not sought
+            for (int i = 0; i < records.size(); i += 2) {
+                try (InputStream in = readahead.open(records.get(i), ZipCodecPool.getDefault())) {
+                    assertArrayEquals(sample(5000 + i), ByteStreams.toByteArray(in));
+                }
+            }
+            assertEquals(0, readahead.restarts());
+            // going back starts again
+            try (InputStream in = readahead.openRaw(records.get(1))) {
+                assertEquals(records.get(1).compressedSize(), ByteStreams.toByteArray(in).length);
+            }
+            assertEquals(1, readahead.restarts());
+        }
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testGlob() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        zip.add("inbox/2026-09/a.edi", ZipWriter.of(HELLO))
+           .add("inbox/2026-10/b.edi", ZipWriter.of(HELLO))
+           .add("inbox/2026-10/c.txt", ZipWriter.of(HELLO))
+           .add("inbox/2026-10/sub/d.edi", ZipWriter.of(HELLO))
+           .add("inbox/2026-100.edi", ZipWriter.of(HELLO))
+           .process();
+        assertEquals("inbox/2026-10/", ZipIndex.literalPrefix("inbox/2026-10/*.edi"));
+        assertTrue(ZipIndex.isGlob("inbox/*"));
+        assertFalse(ZipIndex.isGlob("inbox/2026-10/b.edi"));
+        assertArrayEquals(new String[] {"inbox/2026-10/b.edi"},
+                zip.glob("inbox/2026-10/*.edi").stream().map(ZipEntry::getName).toArray(String[]::new));
+        assertArrayEquals(new String[] {"inbox/2026-10/b.edi","inbox/2026-10/sub/d.edi"},
+                zip.glob("inbox/2026-10/**.edi").stream().map(ZipEntry::getName).toArray(String[]::new));
+        assertArrayEquals(new String[] {"inbox/2026-09/a.edi","inbox/2026-10/b.edi"},
+                zip.glob("inbox/2026-?[0-9]/[!c]*").stream().map(ZipEntry::getName).toArray(String[]::new));
+        assertArrayEquals(new String[] {"inbox/2026-09/","inbox/2026-10/","inbox/2026-100.edi"},
+                zip.entries("inbox").stream().map(ZipEntry::getName).toArray(String[]::new));
+        assertEquals("inbox/2026-10/", zip.entry("inbox/2026-10").get().getName());
+        assertFalse(zip.entry("inbox/2026-1").isPresent());
+        // a class opening with ']' (negated or not) is well-formed
+        assertTrue(ZipIndex.compile("[!]]x").matcher("ax").matches());
+        assertFalse(ZipIndex.compile("[!]]x").matcher("]x").matches());
+        assertTrue(ZipIndex.compile("[]]x").matcher("]x").matches());
+        // a '[' that opens no class is not a pattern, and a directory named like one is listed
+        assertFalse(ZipIndex.isGlob("logs[2024/"));
+        assertFalse(ZipIndex.isGlob("logs\\*"));
+        assertTrue(ZipIndex.isGlob("logs[2024]/"));
+        zip.add("logs[2024]/a.txt", ZipWriter.of(HELLO)).add("logs2/b.txt", ZipWriter.of(HELLO)).process();
+        ZipEditorEngine engine = new ZipEditorEngine(zipfn.toFile(), zip);
+        assertEquals(Arrays.asList("logs[2024]/a.txt"), names(engine.list("logs[2024]/")));
+        assertEquals(Arrays.asList("logs2/b.txt"), names(engine.list("logs[2]/*")));
+        // the cached index must follow changes to the archive
+        zip.delete("inbox/2026-10/b.edi").process();
+        assertEquals(0, zip.glob("inbox/2026-10/*.edi").size());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testCommitter() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        Files.delete(zipfn);
+        File spooldir = new File(zipfn.toString() + ".spool");
+        // an upload recorded by a previous committer, and one never recorded
+        spooldir.mkdir();
+        Files.write(new File(spooldir, String.format("%016d.data", 7)).toPath(), HELLO.getBytes());
+        CRC32 crc = new CRC32();
+        crc.update(HELLO.getBytes());
+        Files.write(new File(spooldir, String.format("%016d.path", 7)).toPath(),
+                String.format("recovered.txt%nfalse %d %d%n", crc.getValue(), HELLOL).getBytes());
+        Files.write(new File(spooldir, String.format("%016d.data", 8)).toPath(), HELLO.getBytes());
+        // a record cut short by a crash, and one never renamed into place
+        Files.write(new File(spooldir, String.format("%016d.data", 9)).toPath(), HELLO.getBytes());
+        Files.write(new File(spooldir, String.format("%016d.path", 9)).toPath(), "cut.txt".getBytes());
+        Files.write(new File(spooldir, String.format("%016d.path.tmp", 10)).toPath(), "tmp.txt".getBytes());
+        ZipCommitter committer = ZipCommitter.of(zipfn.toFile(), 4, Deflater.DEFAULT_COMPRESSION);
+        assertEquals(0, spooldir.list().length);
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        assertTrue(zip.entry("recovered.txt").isPresent());
+        assertFalse(zip.entry("cut.txt").isPresent());
+        for (int i = 0; i < 20; i++) {
+            try (ZipSpool spool = new ZipSpool(committer.directory(), null)) {
+                if (i % 2 == 0) {
+                    spool.deflate(ZipCodecPool.getDefault(), Deflater.DEFAULT_COMPRESSION);
+                }
+                spool.spool(new ByteArrayInputStream(sample(1000 + i)));
+                ZipCommitter.Pending pending = committer.commit(String.format("file%02d.bin", i % 10), spool);
+                assertEquals(1000 + i, pending.size());
+            }
+        }
+        committer.flush();
+        assertFalse(committer.pending("file05.bin").isPresent());
+        assertEquals(11, zip.entries().size());
+        for (int i = 0; i < 10; i++) {
+            try (InputStream in = zip.open(String.format("file%02d.bin", i)).get()) {
+                // the later upload of each name wins
+                assertArrayEquals(sample(1010 + i), ByteStreams.toByteArray(in));
+            }
+        }
+        // concurrent uploads of one path: the last one queued wins
+        Map<Long,Integer> uploads = new ConcurrentHashMap<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int id = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10; i++) {
+                    int size = 2000 + id * 10 + i;
+                    try (ZipSpool spool = new ZipSpool(committer.directory(), null)) {
+                        spool.spool(new ByteArrayInputStream(sample(size)));
+                        uploads.put(committer.commit("same.bin", spool).sequence(), size);
+                    } catch (IOException e) {
+                        uploads.put(-1L, 0);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        threads.forEach(Uninterruptibles::joinUninterruptibly);
+        assertFalse(uploads.containsKey(-1L));
+        committer.flush();
+        try (InputStream in = zip.open("same.bin").get()) {
+            assertArrayEquals(sample(uploads.get(Collections.max(uploads.keySet()))), ByteStreams.toByteArray(in));
+        }
+        committer.close();
+        assertFalse(ZipCommitter.existing(zipfn.toFile()).isPresent());
+        assertEquals(0, spooldir.list().length);
+        spooldir.delete();
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testSplice() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        zip.add("test1.txt", ZipWriter.of(HELLO)).process();
+        try (ZipSpool spool = new ZipSpool(null, ZipBoxConnectorSchema.SHA256)) {
+            spool.deflate(ZipCodecPool.getDefault(), Deflater.BEST_SPEED)
+                 .spool(new ByteArrayInputStream(sample(100000)));
+            assertTrue(spool.compressedSize() < spool.size());
+            assertArrayEquals(sample(100000), ByteStreams.toByteArray(spool.open()));
+            ZipProcessResult result = zip.add("big.txt", spool).process();
+            assertEquals(1, result.adds());
+            assertTrue(zip.unchanged("big.txt", spool));
+        }
+        assertTrue(zip.verify(1).ok());
+        try (ZipInputStream zis = new ZipInputStream(new FileInputStream(zipfn.toFile()))) {
+            assertEquals("big.txt", zis.getNextEntry().getName());
+            assertArrayEquals(sample(100000), ByteStreams.toByteArray(zis));
+            assertEquals("test1.txt", zis.getNextEntry().getName());
+        }
+        // a rewrite that fails leaves no copy of the archive behind
+        ZipSpool gone = new ZipSpool(null, null).deflate(ZipCodecPool.getDefault(), Deflater.BEST_SPEED)
+                .spool(new ByteArrayInputStream(sample(100)));
+        gone.close();
+        try {
+            zip.add("gone.txt", gone).process();
+            fail("process should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        String prefix = zipfn.getFileName() + "-";
+        assertEquals(0, zipfn.getParent().toFile().list((dir, name) -> name.startsWith(prefix)).length);
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testWatcher() throws Exception {
+        Path dir = Files.createTempDirectory("ziptest");
+        Path unwatched = Files.createTempDirectory("ziptest");
+        File watched = dir.resolve("watched.zip").toFile();
+        File polled = unwatched.resolve("polled.zip").toFile();
+        ZipWatcher.getDefault().register(watched, true, 0L);
+        ZipWatcher.getDefault().register(polled, false, 60000L);
+        for (File file : new File[] {watched, polled}) {
+            new ZipEditor(file).add("test1.txt", ZipWriter.of(HELLO)).process();
+            assertTrue(new ZipEditor(file).entry("test1.txt").isPresent());
+            // our own commit does not evict the index it just published
+            ZipIndex index = ZipIndex.of(file, false);
+            Thread.sleep(200);
+            assertTrue(index == ZipIndex.of(file, false));
+            // replace the file behind the editor's back
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+                zos.putNextEntry(new ZipEntry("replaced.txt"));
+                zos.write(HELLO.getBytes());
+            }
+        }
+        assertTrue(ZipWatcher.getDefault().watched(watched));
+        for (int i = 0; i < 100 && new ZipEditor(watched).entry("test1.txt").isPresent(); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(new ZipEditor(watched).entry("replaced.txt").isPresent());
+        // within the interval, the cached index is still trusted
+        assertTrue(new ZipEditor(polled).entry("test1.txt").isPresent());
+        ZipWatcher.getDefault().register(polled, false, 0L);
+        assertTrue(new ZipEditor(polled).entry("replaced.txt").isPresent());
+        Files.delete(watched.toPath());
+        Files.delete(polled.toPath());
+        Files.delete(dir);
+        Files.delete(unwatched);
+    }
+    @Test
+    public final void testReplace() throws Exception {
+        Path dir = Files.createTempDirectory("ziptest");
+        File archive = dir.resolve("replace.zip").toFile();
+        File other = dir.resolve("other.zip").toFile();
+        // a file swapped in with the same size and time is told apart by its file key
+        for (File file : new File[] {archive, other}) {
+            try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(file))) {
+                zos.putNextEntry(new ZipEntry(file == archive ? "aaaa.txt" : "bbbb.txt"));
+                zos.write(HELLO.getBytes());
+            }
+        }
+        assertTrue(new ZipEditor(archive).entry("aaaa.txt").isPresent());
+        assertEquals(archive.length(), other.length());
+        assertTrue(other.setLastModified(archive.lastModified()));
+        Files.move(other.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        assertTrue(new ZipEditor(archive).entry("bbbb.txt").isPresent());
+        assertFalse(new ZipEditor(archive).entry("aaaa.txt").isPresent());
+        // readers never find the archive missing while it is rewritten
+        AtomicInteger missing = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (!archive.exists()) {
+                    missing.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 200; i++) {
+                new ZipEditor(archive).add("bbbb.txt", ZipWriter.of(HELLO+i)).process();
+            }
+        } finally {
+            done.set(true);
+            Uninterruptibles.joinUninterruptibly(reader);
+        }
+        assertEquals(0, missing.get());
+        Files.delete(archive.toPath());
+        Files.delete(dir);
+    }
+    @Test
+    public final void testIndexFile() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        File idx = ZipIndexFile.sidecar(zipfn.toFile());
+        ZipEditor zip = new ZipEditor(zipfn.toFile()).indexFile(true);
+        for (int i = 0; i < 100; i++) {
+            zip.add(String.format("dir%d/file%02d.txt", i % 3, i), ZipWriter.of(HELLO+i));
+        }
+        zip.mkdir("empty").process();
+        assertTrue(idx.exists());
+        ZipIndexFile mapped = ZipIndexFile.open(zipfn.toFile()).get();
+        assertEquals(101, mapped.size());
+        assertEquals("dir0/file00.txt", mapped.name(0));
+        assertEquals("empty/", mapped.get(100).name());
+        // a fresh start maps the sidecar
+        ZipIndex.invalidate(zipfn.toFile());
+        assertTrue(ZipIndex.of(zipfn.toFile()) instanceof ZipIndexFile);
+        assertArrayEquals(new String[] {"dir0/","dir1/","dir2/","empty/"},
+                new ZipEditor(zipfn.toFile()).entries("").stream().map(ZipEntry::getName).toArray(String[]::new));
+        assertEquals(16, new ZipEditor(zipfn.toFile()).glob("dir1/file?[02468].txt").size());
+        try (InputStream in = new ZipEditor(zipfn.toFile()).open("dir2/file98.txt").get()) {
+            assertEquals(HELLO+98, new String(ByteStreams.toByteArray(in)));
+        }
+        // an existing sidecar is kept up to date by any editor
+        new ZipEditor(zipfn.toFile()).delete("dir2/file98.txt").process();
+        assertEquals(100, ZipIndexFile.open(zipfn.toFile()).get().size());
+        // replaced behind our back, the sidecar is ignored
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipfn.toFile()))) {
+            zos.putNextEntry(new ZipEntry("other.txt"));
+            zos.write(HELLO.getBytes());
+        }
+        assertFalse(ZipIndexFile.open(zipfn.toFile()).isPresent());
+        assertTrue(new ZipEditor(zipfn.toFile()).entry("other.txt").isPresent());
+        assertEquals(1, ZipIndexFile.open(zipfn.toFile()).get().size());
+        Files.delete(idx.toPath());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testContentCache() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipContentCache cache = new ZipContentCache(100, 250, true);
+        ZipEditor zip = new ZipEditor(zipfn.toFile()).contentCache(cache);
+        zip.add("small1.txt", ZipWriter.of(new ByteArrayInputStream(sample(100))))
+           .add("small2.txt", ZipWriter.of(new ByteArrayInputStream(sample(99))))
+           .add("small3.txt", ZipWriter.of(new ByteArrayInputStream(sample(98))))
+           .add("large.txt", ZipWriter.of(new ByteArrayInputStream(sample(1000))))
+           .process();
+        for (int i = 0; i < 3; i++) {
+            try (InputStream in = zip.open("small1.txt").get()) {
+                assertArrayEquals(sample(100), ByteStreams.toByteArray(in));
+            }
+            try (InputStream in = zip.open("large.txt").get()) {
+                assertArrayEquals(sample(1000), ByteStreams.toByteArray(in));
+            }
+        }
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+        try (InputStream in = zip.open("small1.txt", 10, 5).get()) {
+            assertArrayEquals(Arrays.copyOfRange(sample(100), 10, 15), ByteStreams.toByteArray(in));
+        }
+        // the budget holds two entries: small1 is the least recently used
+        try (InputStream in = zip.open("small2.txt").get()) {
+            assertArrayEquals(sample(99), ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = zip.open("small3.txt").get()) {
+            assertArrayEquals(sample(98), ByteStreams.toByteArray(in));
+        }
+        assertEquals(1, cache.evictions());
+        assertEquals(197, cache.size());
+        // a commit discards the archive's entries
+        zip.add("small2.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(0, cache.size());
+        try (InputStream in = zip.open("small2.txt").get()) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testRmdirMany() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        for (int i = 0; i < 100; i++) {
+            zip.add(String.format("d%02d/f.txt", i), ZipWriter.of(HELLO))
+               .add(String.format("d%02d/sub/f.txt", i), ZipWriter.of(HELLO));
+        }
+        zip.add("d/f.txt", ZipWriter.of(HELLO)).process();
+        for (int i = 0; i < 100; i += 2) {
+            zip.rmdir(String.format("d%02d", i));
+        }
+        // a subdirectory of a removed directory, and of a kept one
+        zip.rmdir("d00/sub").rmdir("d01/sub");
+        ZipProcessResult result = zip.process();
+        assertEquals(101, result.deletes());
+        assertEquals(100, result.keeps());
+        assertEquals(100, zip.entries().size());
+        assertTrue(zip.entry("d/f.txt").isPresent());
+        assertFalse(zip.entry("d02/f.txt").isPresent());
+        assertTrue(zip.entry("d03/sub/f.txt").isPresent());
+        assertFalse(zip.entry("d01/sub/f.txt").isPresent());
+        // removing everything
+        assertEquals(100, zip.rmdir("").process().deletes());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testRepack() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        // an unsorted archive with a duplicate, as some other tools write
+        try (ZipArchiveWriter writer = new ZipArchiveWriter(new FileOutputStream(zipfn.toFile()),
+                ZipCodecPool.getDefault(), Deflater.BEST_SPEED)) {
+            writer.write("dir/c.txt", 0L, ZipWriter.of(new ByteArrayInputStream(sample(5000))));
+            writer.write("a.txt", 0L, ZipWriter.of(HELLO));
+            writer.mkdir("dir/", 0L);
+            writer.write("dir/c.txt", 0L, ZipWriter.of(HELLO));
+        }
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        ZipProcessResult result = zip.add("b.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(4, result.keeps());
+        assertArrayEquals(new String[] {"a.txt","b.txt","dir/","dir/c.txt","dir/c.txt"},
+                zip.entries().stream().map(ZipEntry::getName).toArray(String[]::new));
+        ZipRepackResult repack = zip.repack(false, 1);
+        assertEquals(4, repack.entries());
+        assertEquals(1, repack.duplicates());
+        assertTrue(repack.after() < repack.before());
+        assertArrayEquals(new String[] {"a.txt","b.txt","dir/","dir/c.txt"},
+                zip.entries().stream().map(ZipEntry::getName).toArray(String[]::new));
+        // recompress to stored, then back to deflated
+        zip.compressionLevel(Deflater.NO_COMPRESSION).repack(true, 4);
+        assertEquals(ZipEntry.STORED, zip.entry("dir/c.txt").get().getMethod());
+        assertEquals(5000, zip.entry("dir/c.txt").get().getCompressedSize());
+        repack = zip.compressionLevel(Deflater.BEST_COMPRESSION).repack(true, 4);
+        assertTrue(repack.ok());
+        assertEquals(ZipEntry.DEFLATED, zip.entry("dir/c.txt").get().getMethod());
+        try (InputStream in = zip.open("dir/c.txt").get()) {
+            assertArrayEquals(sample(5000), ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = zip.open("a.txt").get()) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        assertTrue(zip.verify(2).ok());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testImport() throws IOException {
+        Path zipfn = makeNewZip();
+        Path upload = Files.createTempFile("ziptest", ".zip");
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(upload.toFile()))) {
+            zos.putNextEntry(new ZipEntry("sub/"));
+            zos.putNextEntry(new ZipEntry("sub/big.dat"));
+            zos.write(sample(10000));
+            ZipEntry stored = new ZipEntry("test2.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(HELLOL * 2);
+            CRC32 crc = new CRC32();
+            crc.update((HELLO+HELLO).getBytes());
+            stored.setCrc(crc.getValue());
+            zos.putNextEntry(stored);
+            zos.write((HELLO+HELLO).getBytes());
+        }
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        ZipProcessResult result = zip.importArchive("foo", upload.toFile()).process();
+        assertEquals(3, result.adds());
+        assertEquals(1, result.deletes());
+        assertArrayEquals(new String[] {"bar/","foo/","foo/sub/","foo/sub/big.dat","foo/test2.txt","test1.txt"},
+                zip.entries().stream().map(ZipEntry::getName).toArray(String[]::new));
+        try (InputStream in = zip.open("foo/sub/big.dat").get()) {
+            assertArrayEquals(sample(10000), ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = zip.open("foo/test2.txt").get()) {
+            assertEquals(HELLO+HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        assertTrue(zip.verify(1).ok());
+        // entries escaping the directory are refused
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(upload.toFile()))) {
+            zos.putNextEntry(new ZipEntry("ok.txt"));
+            zos.putNextEntry(new ZipEntry("../escape.txt"));
+        }
+        try {
+            zip.importArchive("foo", upload.toFile());
+            fail("imported ../escape.txt");
+        } catch (ZipException e) {
+            assertTrue(e.getMessage().contains("escape.txt"));
+        }
+        assertEquals(0, zip.process().changes());
+        Files.delete(upload);
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testExport() throws IOException {
+        Path zipfn = makeNewZip();
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        zip.add("foo/sub/big.dat", ZipWriter.of(new ByteArrayInputStream(sample(10000)))).process();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipBatchResult result = zip.export("foo", out);
+        assertEquals(2, result.entries());
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                names.add(entry.getName());
+                byte[] content = ByteStreams.toByteArray(zis);
+                if (entry.getName().equals("sub/big.dat")) {
+                    assertArrayEquals(sample(10000), content);
+                }
+            }
+        }
+        assertEquals(Arrays.asList("sub/big.dat", "test2.txt"), names);
+        // and back again
+        Path export = Files.createTempFile("ziptest", ".zip");
+        Files.write(export, out.toByteArray());
+        assertEquals(2, zip.importArchive("copy", export.toFile()).process().adds());
+        assertTrue(zip.entry("copy/sub/big.dat").isPresent());
+        assertTrue(zip.verify(1).ok());
+        out = new ByteArrayOutputStream();
+        assertEquals(7, zip.export("", out).entries());
+        Files.delete(export);
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testTailRewrite() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile()).tailRewrite(true);
+        for (int i = 0; i < 10; i++) {
+            zip.add("a/" + i + ".dat", ZipWriter.of(new ByteArrayInputStream(sample(20000 + i))));
+        }
+        assertEquals(0, zip.process().retained());
+        long length = zipfn.toFile().length();
+        // a late path keeps everything before it in place
+        ZipProcessResult result = zip.add("z.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(10, result.keeps());
+        assertEquals(1, result.adds());
+        assertTrue(result.retained() > length / 2);
+        assertFalse(ZipUndo.file(zipfn.toFile()).exists());
+        // the lock that holds off other processes is released
+        try (FileChannel channel = FileChannel.open(ZipUndo.lockFile(zipfn.toFile()).toPath(),
+                StandardOpenOption.WRITE)) {
+            channel.tryLock().release();
+        }
+        // replace a late entry, and rename the last to sort earlier
+        result = zip.add("a/9.dat", ZipWriter.of(HELLO)).rename("z.txt", "a/8a.txt").process();
+        assertEquals(9, result.keeps());
+        assertTrue(result.retained() > 0);
+        assertArrayEquals(new String[] {"a/0.dat","a/1.dat","a/2.dat","a/3.dat","a/4.dat","a/5.dat",
+                "a/6.dat","a/7.dat","a/8.dat","a/8a.txt","a/9.dat"},
+                zip.entries().stream().map(ZipEntry::getName).toArray(String[]::new));
+        try (InputStream in = zip.open("a/8.dat").get()) {
+            assertArrayEquals(sample(20008), ByteStreams.toByteArray(in));
+        }
+        try (InputStream in = zip.open("a/8a.txt").get()) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        assertTrue(zip.verify(1).ok());
+        // an early edit copies the whole archive
+        assertEquals(0, zip.delete("a/0.dat").process().retained());
+        // a crash part way through a tail rewrite is undone
+        byte[] before = Files.readAllBytes(zipfn);
+        long cut = before.length / 2;
+        try (ZipUndo undo = ZipUndo.record(zipfn.toFile(), cut);
+             OutputStream out = undo.rewrite()) {
+            out.write(sample(100));
+        }
+        assertFalse(Arrays.equals(before, Files.readAllBytes(zipfn)));
+        assertTrue(ZipUndo.recover(zipfn.toFile()));
+        assertArrayEquals(before, Files.readAllBytes(zipfn));
+        assertFalse(ZipUndo.recover(zipfn.toFile()));
+        assertTrue(zip.verify(1).ok());
+        Files.delete(ZipUndo.lockFile(zipfn.toFile()).toPath());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testGenerations() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile()).tailRewrite(true);
+        for (int i = 0; i < 10; i++) {
+            zip.add("a/" + i + ".dat", ZipWriter.of(new ByteArrayInputStream(sample(20000 + i))));
+        }
+        zip.process();
+        long generation = ZipGeneration.current(zipfn.toFile());
+        // a reader keeps its generation while the archive is replaced under it
+        try (InputStream in = zip.open("a/9.dat").get()) {
+            byte[] head = new byte[100];
+            ByteStreams.readFully(in, head);
+            assertEquals(0, zip.add("a/9.dat", ZipWriter.of(HELLO)).delete("a/0.dat").process().retained());
+            // and a reader pinning the current generation keeps it from being rewritten in place
+            try (InputStream pinned = zip.open("a/8.dat").get()) {
+                assertEquals(0, zip.add("z.txt", ZipWriter.of(HELLO)).process().retained());
+                assertArrayEquals(sample(20008), ByteStreams.toByteArray(pinned));
+            }
+            byte[] rest = ByteStreams.toByteArray(in);
+            byte[] all = new byte[head.length + rest.length];
+            System.arraycopy(head, 0, all, 0, head.length);
+            System.arraycopy(rest, 0, all, head.length, rest.length);
+            assertArrayEquals(sample(20009), all);
+        }
+        assertEquals(generation + 2, ZipGeneration.current(zipfn.toFile()));
+        // once unpinned, the tail may be rewritten in place again
+        assertTrue(zip.add("zz.txt", ZipWriter.of(HELLO)).process().retained() > 0);
+        try (InputStream in = zip.open("a/9.dat").get()) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        // an export pins its generation too, so an edit while it streams copies the archive
+        long[] retained = {-1L};
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        zip.export("a", new FilterOutputStream(exported) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (retained[0] < 0) {
+                    retained[0] = new ZipEditor(zipfn.toFile()).tailRewrite(true)
+                            .add("zzz.txt", ZipWriter.of(HELLO)).process().retained();
+                }
+                out.write(b, off, len);
+            }
+        });
+        assertEquals(0L, retained[0]);
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(exported.toByteArray()))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (entry.getName().equals("8.dat")) {
+                    assertArrayEquals(sample(20008), ByteStreams.toByteArray(zis));
+                }
+            }
+        }
+        assertTrue(zip.verify(1).ok());
+        // the idle handle on the archive is closed before a commit replaces it
+        int open = ZipHandlePool.getDefault().size();
+        assertTrue(open > 0);
+        assertEquals(Integer.valueOf(open - 1), ZipGeneration.commit(zipfn.toFile(),
+                () -> ZipHandlePool.getDefault().size()));
+        Files.delete(ZipUndo.lockFile(zipfn.toFile()).toPath());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testRewriteScheduler() throws Exception {
+        ZipRewriteScheduler scheduler = new ZipRewriteScheduler(1, 0L);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread first = new Thread(() -> {
+            try {
+                scheduler.run(new File("first.zip"), 0L, () -> {
+                    started.countDown();
+                    Uninterruptibles.awaitUninterruptibly(release);
+                    return order.add("first");
+                });
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        started.await();
+        // queued big before small, but small is cheaper so goes first
+        List<Thread> waiters = new ArrayList<>();
+        for (String name : new String[] {"big", "small"}) {
+            long cost = name.equals("big") ? 1000000L : 1L;
+            Thread waiter = new Thread(() -> {
+                try {
+                    scheduler.run(new File(name + ".zip"), cost, () -> order.add(name));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            waiter.start();
+            waiters.add(waiter);
+            while (scheduler.depth() < waiters.size()) {
+                Thread.sleep(1);
+            }
+        }
+        assertEquals(1, scheduler.running());
+        release.countDown();
+        first.join();
+        for (Thread waiter : waiters) {
+            waiter.join();
+        }
+        assertEquals(Arrays.asList("first", "small", "big"), order);
+        assertEquals(3, scheduler.completed());
+        assertEquals(0, scheduler.depth());
+        assertEquals(2, scheduler.maxDepth());
+    }
+    @Test
+    public final void testHandlePool() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        ZipEditor zip = new ZipEditor(zipfn.toFile());
+        zip.add("a.txt", ZipWriter.of(HELLO)).process();
+        File archive = zipfn.toFile();
+        ZipIndex index = ZipIndex.of(archive, false);
+        ZipHandlePool pool = new ZipHandlePool(1, 60_000L);
+        // readers of the same generation share one open file
+        try (ZipHandlePool.Handle first = pool.acquire(archive, 1L, index);
+             ZipHandlePool.Handle second = pool.acquire(archive, 1L, index)) {
+            assertTrue(first == second);
+            try (InputStream in = first.reader().open(first.index().find("a.txt").get(), ZipCodecPool.getDefault())) {
+                assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+            }
+        }
+        // and the file stays open for the next one
+        pool.acquire(archive, 1L, index).close();
+        assertEquals(1, pool.opens());
+        assertEquals(2, pool.hits());
+        assertEquals(1, pool.size());
+        // a new generation opens the file again, evicting the idle one
+        pool.acquire(archive, 2L, index).close();
+        assertEquals(2, pool.opens());
+        assertEquals(1, pool.evictions());
+        assertEquals(1, pool.size());
+        // a handle in use survives invalidation until released
+        ZipHandlePool.Handle held = pool.acquire(archive, 2L, index);
+        pool.invalidate(archive);
+        assertEquals(0, pool.size());
+        try (InputStream in = held.reader().open(held.index().find("a.txt").get(), ZipCodecPool.getDefault())) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        held.close();
+        // with no capacity, handles are closed once released
+        pool.configure(0, 60_000L);
+        pool.acquire(archive, 3L, index).close();
+        assertEquals(0, pool.size());
+        // limits set for an archive apply to its handles only
+        Path other = Files.createTempFile("ziptest", ".zip");
+        new ZipEditor(other.toFile()).add("b.txt", ZipWriter.of(HELLO)).process();
+        pool.configure(other.toFile(), 0, 60_000L).configure(archive, 2, 60_000L);
+        pool.acquire(archive, 4L, index).close();
+        pool.acquire(other.toFile(), 1L, ZipIndex.of(other.toFile(), false)).close();
+        assertEquals(1, pool.size());
+        pool.configure(archive, 2, 0L);
+        assertEquals(0, pool.size());
+        Files.delete(other);
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testIngest() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        File archive = zipfn.toFile();
+        ZipEditor zip = new ZipEditor(archive).compressionLevel(9);
+        try (ZipSpool fast = new ZipSpool(null, null)) {
+            fast.deflate(ZipCodecPool.getDefault(), 1).ingested(true).spool(new ByteArrayInputStream(sample(50000)));
+            zip.add("fast.dat", fast).add("plain.txt", ZipWriter.of(HELLO)).process();
+        }
+        long before;
+        try (ZipCentralDirectory directory = new ZipCentralDirectory(archive)) {
+            assertTrue(ZipIngest.marked(directory.record("fast.dat").get()));
+            assertFalse(ZipIngest.marked(directory.record("plain.txt").get()));
+            before = directory.record("fast.dat").get().compressedSize();
+        }
+        // a command coming along makes the recompression give up
+        try {
+            zip.settle(1, () -> true);
+            fail("settle should have yielded");
+        } catch (InterruptedIOException e) {
+            // expected
+        }
+        try (ZipCentralDirectory directory = new ZipCentralDirectory(archive)) {
+            assertTrue(ZipIngest.marked(directory.record("fast.dat").get()));
+        }
+        // otherwise the marked entry is recompressed and unmarked
+        Optional<ZipRepackResult> settled = ZipIngest.of(archive).configure(9, 0L).settle();
+        assertTrue(settled.isPresent());
+        try (ZipCentralDirectory directory = new ZipCentralDirectory(archive)) {
+            assertFalse(ZipIngest.marked(directory.record("fast.dat").get()));
+            assertTrue(directory.record("fast.dat").get().compressedSize() <= before);
+        }
+        try (InputStream in = zip.open("fast.dat").get()) {
+            assertArrayEquals(sample(50000), ByteStreams.toByteArray(in));
+        }
+        assertTrue(zip.verify(1).ok());
+        // and with nothing marked, the archive is left alone
+        long generation = ZipGeneration.current(archive);
+        zip.settle(1, () -> true);
+        assertEquals(generation, ZipGeneration.current(archive));
+        // the marker is removed from among other extra fields
+        byte[] extra = {1, 0, 1, 0, 42, (byte) 0x5a, (byte) 0x49, 0, 0, 2, 0, 0, 0};
+        assertArrayEquals(new byte[] {1, 0, 1, 0, 42, 2, 0, 0, 0}, ZipIngest.unmark(extra));
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testZipFsEngine() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        File archive = zipfn.toFile();
+        ZipStorageEngine engine = new ZipFsEngine(archive);
+        assertTrue(engine.list("").isEmpty());
+        try (ZipSpool spool = new ZipSpool(null, null)) {
+            spool.spool(new ByteArrayInputStream(sample(50000)));
+            assertEquals(1, engine.write("a/b/data.bin", spool).adds());
+        }
+        try (ZipSpool spool = new ZipSpool(null, null)) {
+            spool.spool(new ByteArrayInputStream(HELLO.getBytes()));
+            assertEquals(1, engine.write("hello.txt", spool).adds());
+        }
+        assertEquals(Arrays.asList("a/", "hello.txt"), names(engine.list("")));
+        assertEquals(Arrays.asList("a/b/data.bin"), names(engine.list("a/*/*.bin")));
+        assertTrue(engine.stat("a/b").get().isDirectory());
+        assertEquals(50000L, engine.stat("a/b/data.bin").get().getSize());
+        try (InputStream in = engine.read("a/b/data.bin", 100, 10).get()) {
+            assertArrayEquals(Arrays.copyOfRange(sample(50000), 100, 110), ByteStreams.toByteArray(in));
+        }
+        assertFalse(engine.read("missing", 0, -1).isPresent());
+        assertEquals(1, engine.mkdir("a").deletes());
+        assertEquals(1, engine.mkdir("c").adds());
+        assertTrue(engine.rename("a", "d").adds() > 0);
+        assertEquals(0, engine.delete("a/b/data.bin").deletes());
+        // the archive written through zipfs is read by the editor, and vice versa
+        ZipEditor zip = new ZipEditor(archive);
+        try (InputStream in = zip.open("d/b/data.bin").get()) {
+            assertArrayEquals(sample(50000), ByteStreams.toByteArray(in));
+        }
+        zip.add("e.txt", ZipWriter.of(HELLO)).process();
+        try (InputStream in = engine.read("e.txt", 0, -1).get()) {
+            assertEquals(HELLO, new String(ByteStreams.toByteArray(in)));
+        }
+        assertEquals(1, engine.delete("hello.txt").deletes());
+        assertTrue(engine.rmdir("d").deletes() > 0);
+        assertEquals(Arrays.asList("c/", "e.txt"), names(new ZipEditorEngine(archive, zip).list("")));
+        assertTrue(zip.verify(1).ok());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testPartial() throws IOException {
+        byte[] a = sample(3000);
+        byte[] b = sample(7777);
+        CRC32 crc = new CRC32();
+        crc.update(a);
+        long crcA = crc.getValue();
+        crc.reset();
+        crc.update(b);
+        long crcB = crc.getValue();
+        crc.reset();
+        crc.update(a);
+        crc.update(b);
+        assertEquals(crc.getValue(), ZipPartial.combine(crcA, crcB, b.length));
+        assertEquals(crcA, ZipPartial.combine(crcA, 0L, 0L));
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        File archive = zipfn.toFile();
+        byte[] content = sample(10500);
+        // cut short after 3500 bytes: checkpointed at 3000
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000)) {
+            partial.spool(new SequenceInputStream(new ByteArrayInputStream(content, 0, 3500), new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("connection lost");
+                }
+            }), 0L, ZipCodecPool.getDefault(), 9, null);
+            fail("spool should have failed");
+        } catch (IOException e) {
+            assertEquals("connection lost", e.getMessage());
+        }
+        assertTrue(ZipPartial.report(archive).contains("'big.dat': 3000 bytes"));
+        // resumed from the checkpoint
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000)) {
+            assertEquals(3000L, partial.size());
+            try {
+                ZipPartial.open(archive, "big.dat", 1000);
+                fail("a second upload to the same path should be refused");
+            } catch (IOException e) {
+                // expected
+            }
+            try (ZipSpool spool = partial.spool(new ByteArrayInputStream(content, 2500, content.length - 2500),
+                    2500L, ZipCodecPool.getDefault(), 9, "SHA-256")) {
+                assertEquals(content.length, spool.size());
+                crc.reset();
+                crc.update(content);
+                assertEquals(crc.getValue(), spool.crc());
+                // the digest covers the checkpointed content too
+                assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(content), spool.digest());
+                try (InputStream in = spool.open()) {
+                    assertArrayEquals(content, ByteStreams.toByteArray(in));
+                }
+                new ZipEditor(archive).add("big.dat", spool).process();
+                assertTrue(new ZipEditor(archive).unchanged("big.dat", spool));
+            } catch (NoSuchAlgorithmException e) {
+                fail(e.getMessage());
+            }
+            // the checkpoint is kept until the upload is committed
+            assertTrue(ZipPartial.report(archive).contains("'big.dat': 10000 bytes"));
+            partial.discard();
+        }
+        try (InputStream in = new ZipEditor(archive).open("big.dat").get()) {
+            assertArrayEquals(content, ByteStreams.toByteArray(in));
+        }
+        assertTrue(ZipPartial.report(archive).contains("none"));
+        // cut short again, then sent again from the start with the second block changed
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000)) {
+            partial.spool(new SequenceInputStream(new ByteArrayInputStream(content, 0, 3000), new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("connection lost");
+                }
+            }), 0L, ZipCodecPool.getDefault(), 1, null);
+            fail("spool should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+        byte[] changed = content.clone();
+        changed[1500] ^= 1;
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000);
+             ZipSpool spool = partial.spool(new ByteArrayInputStream(changed), 0L, ZipCodecPool.getDefault(), 1, null);
+             InputStream in = spool.open()) {
+            assertArrayEquals(changed, ByteStreams.toByteArray(in));
+        }
+        // not committed, so it can be sent again
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000)) {
+            assertEquals(10000L, partial.size());
+            try (ZipSpool spool = partial.spool(new ByteArrayInputStream(changed, 10000, changed.length - 10000),
+                    10000L, ZipCodecPool.getDefault(), 1, null);
+                 InputStream in = spool.open()) {
+                assertArrayEquals(changed, ByteStreams.toByteArray(in));
+            }
+            partial.discard();
+        }
+        try (ZipPartial partial = ZipPartial.open(archive, "big.dat", 1000)) {
+            assertEquals(0L, partial.size());
+            try {
+                partial.spool(new ByteArrayInputStream(content), 1L, ZipCodecPool.getDefault(), 1, null);
+                fail("resuming beyond the checkpoint should be refused");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            partial.discard();
+        }
+        Files.delete(ZipPartial.directory(archive).toPath());
+        Files.delete(zipfn);
+    }
+    @Test
+    public final void testSequence() throws IOException {
+        Path zipfn = Files.createTempFile("ziptest", ".zip");
+        File archive = zipfn.toFile();
+        // entries written by another tool are stamped by the first commit
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (String name : new String[] {"in/x.txt", "old.txt"}) {
+                zos.putNextEntry(new ZipEntry(name));
+                zos.write(HELLO.getBytes());
+                zos.closeEntry();
+            }
+        }
+        ZipEditor zip = new ZipEditor(archive).tailRewrite(true);
+        assertEquals(0L, zip.sequence());
+        zip.add("in/a.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(1L, zip.sequence());
+        assertEquals(Arrays.asList("in/a.txt", "in/x.txt"), names(zip.since("in", 0L)));
+        assertEquals(Arrays.asList("in/a.txt", "in/x.txt", "old.txt"), names(zip.since("", 0L)));
+        assertTrue(zip.since("in", 1L).isEmpty());
+        zip.add("in/b.txt", ZipWriter.of(HELLO)).process();
+        zip.add("in/sub/c.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(Arrays.asList("in/b.txt", "in/sub/c.txt"), names(zip.since("in/", 1L)));
+        assertEquals(Arrays.asList("in/sub/c.txt"), names(zip.since("in/**/*.txt", 2L)));
+        zip.rename("in/b.txt", "in/d.txt").process();
+        assertEquals(Arrays.asList("in/d.txt"), names(zip.since("in", 3L)));
+        // a delete takes a number too, so numbers are never reused
+        zip.delete("in/d.txt").process();
+        assertEquals(5L, zip.sequence());
+        assertTrue(zip.since("in", 3L).isEmpty());
+        zip.add("in/e.txt", ZipWriter.of(HELLO)).process();
+        assertEquals(Arrays.asList("in/e.txt"), names(zip.since("in", 5L)));
+        // the numbers survive a repack, and are kept in the sidecar
+        zip.repack(false, 1);
+        assertEquals(6L, zip.sequence());
+        zip.indexFile(true).add("in/f.txt", ZipWriter.of(HELLO)).process();
+        ZipIndex index = ZipIndexFile.open(archive).get();
+        assertEquals(7L, index.sequence());
+        assertEquals(Arrays.asList("in/e.txt", "in/f.txt"), names(Lists.transform(index.since(5L), Record::toZipEntry)));
+        assertTrue(zip.verify(1).ok());
+        Files.delete(ZipIndexFile.sidecar(archive).toPath());
+        Files.deleteIfExists(ZipUndo.lockFile(archive).toPath());
+        Files.delete(zipfn);
+    }
+
+    private static List<String> names(List<ZipEntry> entries) {
+        List<String> names = new ArrayList<>();
+        entries.forEach((e) -> names.add(e.getName()));
+        return names;
+    }
 }
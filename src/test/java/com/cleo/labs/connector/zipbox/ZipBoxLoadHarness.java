@@ -0,0 +1,533 @@
+package com.cleo.labs.connector.zipbox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.io.FileUtils;
+
+import com.cleo.connector.api.ConnectorException;
+import com.cleo.connector.api.command.ConnectorCommandResult;
+import com.cleo.connector.api.interfaces.IConnectorIncoming;
+import com.cleo.connector.api.interfaces.IConnectorOutgoing;
+import com.cleo.labs.connector.zipbox.ZipEditor.ZipBatchResult;
+
+/**
+ * A load test that drives {@link ZipBoxConnectorClient} commands from many
+ * threads against local archives, outside of the connector framework.  Run
+ * it with {@code main} and {@code key=value} arguments (defaults shown):
+ * <pre>
+ * threads=8       worker threads
+ * seconds=30      duration of the run
+ * archives=1      archives shared by the workers (worker i uses archive i % archives)
+ * files=20        distinct paths each worker cycles through
+ * size=4096       content size of each PUT
+ * mix=put:30,get:40,dir:10,attr:10,delete:5,rename:5
+ * engine=editor  StorageEngine (editor or zipfs)
+ * async=false     AsyncCommit
+ * queue=64        CommitQueueSize
+ * level=-1        CompressionLevel
+ * index=false     IndexFile
+ * cache=0         ContentCacheSize (MB), with a 64K threshold
+ * watch=false     WatchZipFile
+ * tail=false      TailRewrite
+ * rewrites=0      MaxConcurrentRewrites
+ * rate=0          RewriteRateLimit (MB/s)
+ * handles=32      HandlePoolSize
+ * ingest=         IngestLevel (default: the same as level)
+ * idle=1          IngestIdleSeconds
+ * resumable=false ResumablePut
+ * dir=            working directory (default: a new temporary directory, removed after the run)
+ * </pre>
+ * Each worker owns the directory {@code w<i>/} in its archive and keeps
+ * track of what it should contain, so that every {@code GET}, {@code DIR}
+ * and {@code ATTR} can be checked against the updates the worker has made.
+ * A command that fails unexpectedly counts as an error, and a command that
+ * sees content other than that of the last acknowledged update (or sees a
+ * deleted file, or misses a stored one) counts as a lost update.  The
+ * report lists throughput, latency percentiles, errors and lost updates
+ * per command, followed by a final check of each archive once all uploads
+ * are committed.
+ */
+public class ZipBoxLoadHarness {
+
+    enum Op { PUT, GET, DIR, ATTR, DELETE, RENAME }
+
+    /**
+     * A {@link ZipBoxConnectorConfig} with fixed values in place of the
+     * connector properties.
+     */
+    private static class HarnessConfig extends ZipBoxConnectorConfig {
+        private final String zipFile;
+        private final Map<String,String> args;
+        private HarnessConfig(String zipFile, Map<String,String> args) {
+            super(null, null);
+            this.zipFile = zipFile;
+            this.args = args;
+        }
+        private int integer(String key, int value) {
+            return args.containsKey(key) ? Integer.parseInt(args.get(key)) : value;
+        }
+        private boolean bool(String key) {
+            return Boolean.parseBoolean(args.get(key));
+        }
+        @Override
+        public String getZipFile() {
+            return zipFile;
+        }
+        @Override
+        public String getStorageEngine() {
+            return args.getOrDefault("engine", ZipEditorEngine.NAME);
+        }
+        @Override
+        public int getCompressionLevel() {
+            return integer("level", Deflater.DEFAULT_COMPRESSION);
+        }
+        @Override
+        public boolean getSkipUnchanged() {
+            return false;
+        }
+        @Override
+        public String getSkipUnchangedDigest() {
+            return null;
+        }
+        @Override
+        public long[] getRange() {
+            return null;
+        }
+        @Override
+        public boolean getAsyncCommit() {
+            return bool("async");
+        }
+        @Override
+        public int getCommitQueueSize() {
+            return integer("queue", ZipCommitter.DEFAULT_CAPACITY);
+        }
+        @Override
+        public boolean getIndexFile() {
+            return bool("index");
+        }
+        @Override
+        public ZipContentCache getContentCache() {
+            int size = integer("cache", 0);
+            return size <= 0 ? null : ZipContentCache.of(64 * 1024, size * 1024L * 1024L, false);
+        }
+        @Override
+        public boolean getWatchZipFile() {
+            return bool("watch");
+        }
+        @Override
+        public long getStatInterval() {
+            return 0L;
+        }
+        @Override
+        public boolean getResumablePut() {
+            return bool("resumable");
+        }
+        @Override
+        public long getPutOffset() {
+            return 0L;
+        }
+        @Override
+        public void usedPutOffset() {
+        }
+        @Override
+        public long getDirSince() {
+            return -1L;
+        }
+        @Override
+        public boolean getExportZip() {
+            return false;
+        }
+        @Override
+        public boolean getImportZip() {
+            return false;
+        }
+        @Override
+        public boolean getTailRewrite() {
+            return bool("tail");
+        }
+        @Override
+        public int getMaxConcurrentRewrites() {
+            return integer("rewrites", 0);
+        }
+        @Override
+        public long getRewriteRateLimit() {
+            return integer("rate", 0) * 1024L * 1024L;
+        }
+        @Override
+        public int getHandlePoolSize() {
+            return integer("handles", ZipHandlePool.DEFAULT_CAPACITY);
+        }
+        @Override
+        public int getIngestLevel() {
+            return integer("ingest", getCompressionLevel());
+        }
+        @Override
+        public long getIngestIdleMillis() {
+            return integer("idle", 1) * 1000L;
+        }
+        @Override
+        public long getHandleIdleMillis() {
+            return ZipHandlePool.DEFAULT_IDLE_MILLIS;
+        }
+    }
+
+    /**
+     * Returns a stub of connector API interface {@code type} answering
+     * {@code getPath} and {@code getStream}.  A dynamic proxy is used so
+     * that methods of the interface not needed by the client need no
+     * implementation.
+     */
+    private static <T> T stub(Class<T> type, String path, Object stream) {
+        InvocationHandler handler = (Object proxy, Method method, Object[] args) -> {
+            switch (method.getName()) {
+            case "getPath":
+                return path;
+            case "getStream":
+                return stream;
+            case "toString":
+                return path;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+    }
+
+    /**
+     * The latencies, errors and lost updates observed for one command.
+     */
+    private static class Stats {
+        private long[] nanos = new long[1024];
+        private int count = 0;
+        private long errors = 0;
+        private long lost = 0;
+        private void record(long elapsed) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsed;
+        }
+        private void merge(Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.nanos[i]);
+            }
+            errors += other.errors;
+            lost += other.lost;
+        }
+        private double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0.0;
+            }
+            int i = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(i, sorted.length - 1))] / 1e6;
+        }
+        private String report(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return String.format("%-8s %9d %9.1f %9.2f %9.2f %9.2f %9.2f %7d %7d", name, count, count / seconds,
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                    percentile(sorted, 1.0), errors, lost);
+        }
+    }
+
+    /**
+     * A worker thread, updating and checking the files in its own directory.
+     */
+    private static class Worker implements Runnable {
+        private final ZipBoxConnectorClient client;
+        private final String directory;
+        private final int files;
+        private final int size;
+        private final Op[] mix;
+        private final long deadline;
+        private final CountDownLatch start;
+        private final CountDownLatch done;
+        private final Random random;
+        private final Map<String,byte[]> expected = new HashMap<>();
+        private final Map<Op,Stats> stats = new EnumMap<>(Op.class);
+        private int version = 0;
+
+        private Worker(ZipBoxConnectorClient client, int id, int files, int size, Op[] mix, long deadline,
+                CountDownLatch start, CountDownLatch done) {
+            this.client = client;
+            this.directory = "w" + id + "/";
+            this.files = files;
+            this.size = size;
+            this.mix = mix;
+            this.deadline = deadline;
+            this.start = start;
+            this.done = done;
+            this.random = new Random(id);
+            for (Op op : Op.values()) {
+                stats.put(op, new Stats());
+            }
+        }
+
+        private String path(int i) {
+            return directory + "f" + i + ".dat";
+        }
+
+        private String randomPath() {
+            return path(random.nextInt(files));
+        }
+
+        /**
+         * Returns a file this worker has stored, if any, else any of its paths.
+         */
+        private String existingPath() {
+            if (expected.isEmpty()) {
+                return randomPath();
+            }
+            List<String> paths = new ArrayList<>(expected.keySet());
+            return paths.get(random.nextInt(paths.size()));
+        }
+
+        @Override
+        public void run() {
+            try {
+                start.await();
+                while (System.currentTimeMillis() < deadline) {
+                    Op op = mix[random.nextInt(mix.length)];
+                    Stats stat = stats.get(op);
+                    long begin = System.nanoTime();
+                    try {
+                        if (!execute(op)) {
+                            stat.lost++;
+                        }
+                    } catch (Exception e) {
+                        stat.errors++;
+                    }
+                    stat.record(System.nanoTime() - begin);
+                }
+            } catch (InterruptedException e) {
+                // done
+            } finally {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Runs one command, returning {@code false} if its outcome is not
+         * consistent with the updates acknowledged so far.
+         */
+        private boolean execute(Op op) throws Exception {
+            switch (op) {
+            case PUT: {
+                String path = randomPath();
+                byte[] content = content(path, ++version);
+                IConnectorOutgoing source = stub(IConnectorOutgoing.class, path, new ByteArrayInputStream(content));
+                ConnectorCommandResult result = client.put(source, path, false);
+                if (result.getStatus() != ConnectorCommandResult.Status.Success) {
+                    throw new IOException("PUT " + path + " failed");
+                }
+                expected.put(path, content);
+                return true;
+            }
+            case GET: {
+                String path = existingPath();
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                IConnectorIncoming destination = stub(IConnectorIncoming.class, path, out);
+                try {
+                    client.get(path, destination);
+                } catch (ConnectorException e) {
+                    return !expected.containsKey(path);
+                }
+                return expected.containsKey(path) && Arrays.equals(out.toByteArray(), expected.get(path));
+            }
+            case DIR:
+                return check(client.list(directory));
+            case ATTR: {
+                String path = existingPath();
+                try {
+                    long found = client.getAttributes(path).readAttributes().size();
+                    return expected.containsKey(path) && found == size;
+                } catch (ConnectorException e) {
+                    return !expected.containsKey(path);
+                }
+            }
+            case DELETE: {
+                String path = existingPath();
+                try {
+                    client.delete(path);
+                } catch (ConnectorException e) {
+                    return !expected.containsKey(path);
+                }
+                return expected.remove(path) != null;
+            }
+            case RENAME: {
+                String from = existingPath();
+                String to = randomPath();
+                if (expected.containsKey(to)) {
+                    // only rename to a free path
+                    return true;
+                }
+                try {
+                    client.rename(from, to);
+                } catch (ConnectorException e) {
+                    return !expected.containsKey(from);
+                }
+                byte[] content = expected.remove(from);
+                if (content == null) {
+                    return false;
+                }
+                expected.put(to, content);
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException(op.name());
+            }
+        }
+
+        /**
+         * Returns distinct content for {@code PUT} version {@code v} of {@code path}.
+         */
+        private byte[] content(String path, int v) {
+            byte[] content = new byte[size];
+            byte[] header = String.format("%s %d\n", path, v).getBytes(StandardCharsets.UTF_8);
+            random.nextBytes(content);
+            System.arraycopy(header, 0, content, 0, Math.min(header.length, size));
+            return content;
+        }
+
+        /**
+         * Checks a listing of the worker's directory against the expected files.
+         */
+        private boolean check(List<ZipEntry> entries) {
+            Set<String> names = new TreeSet<>();
+            for (ZipEntry entry : entries) {
+                if (!entry.isDirectory()) {
+                    names.add(entry.getName());
+                }
+            }
+            return names.equals(new TreeSet<>(expected.keySet()));
+        }
+    }
+
+    private static Op[] mix(String spec) {
+        List<Op> mix = new ArrayList<>();
+        for (String part : spec.split(",")) {
+            String[] kv = part.split(":");
+            Op op = Op.valueOf(kv[0].trim().toUpperCase());
+            for (int i = Integer.parseInt(kv[1].trim()); i > 0; i--) {
+                mix.add(op);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("empty mix: " + spec);
+        }
+        return mix.toArray(new Op[mix.size()]);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String,String> args = new HashMap<>();
+        for (String arg : argv) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("expected key=value: " + arg);
+            }
+            args.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int threads = Integer.parseInt(args.getOrDefault("threads", "8"));
+        int seconds = Integer.parseInt(args.getOrDefault("seconds", "30"));
+        int archives = Integer.parseInt(args.getOrDefault("archives", "1"));
+        int files = Integer.parseInt(args.getOrDefault("files", "20"));
+        int size = Integer.parseInt(args.getOrDefault("size", "4096"));
+        Op[] mix = mix(args.getOrDefault("mix", "put:30,get:40,dir:10,attr:10,delete:5,rename:5"));
+        boolean temporary = !args.containsKey("dir");
+        File dir = temporary ? Files.createTempDirectory("zipbox-load").toFile() : new File(args.get("dir"));
+        dir.mkdirs();
+
+        List<File> zips = new ArrayList<>();
+        for (int i = 0; i < archives; i++) {
+            zips.add(new File(dir, "load" + i + ".zip"));
+        }
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + seconds * 1000L;
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            File zip = zips.get(i % archives);
+            ZipBoxConnectorClient client = new ZipBoxConnectorClient(new HarnessConfig(zip.getPath(), args));
+            Worker worker = new Worker(client, i, files, size, mix, deadline, start, done);
+            workers.add(worker);
+            new Thread(worker, "zipbox-load-" + i).start();
+        }
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+        double elapsed = (System.nanoTime() - began) / 1e9;
+
+        Map<Op,Stats> totals = new EnumMap<>(Op.class);
+        for (Op op : Op.values()) {
+            totals.put(op, new Stats());
+            for (Worker worker : workers) {
+                totals.get(op).merge(worker.stats.get(op));
+            }
+        }
+        System.out.println(String.format("%s engine, %d threads, %d archives, %d files/thread, %d bytes, %.1f s",
+                args.getOrDefault("engine", ZipEditorEngine.NAME), threads, archives, files, size, elapsed));
+        System.out.println(String.format("%-8s %9s %9s %9s %9s %9s %9s %7s %7s", "command", "count", "ops/s",
+                "p50 ms", "p99 ms", "p999 ms", "max ms", "errors", "lost"));
+        Stats all = new Stats();
+        for (Op op : Op.values()) {
+            System.out.println(totals.get(op).report(op.name(), elapsed));
+            all.merge(totals.get(op));
+        }
+        System.out.println(all.report("total", elapsed));
+        System.out.print(ZipRewriteScheduler.getDefault());
+        System.out.println(ZipHandlePool.getDefault());
+
+        // let the background commits finish, then check what actually landed
+        long lost = 0;
+        for (File zip : zips) {
+            Optional<ZipCommitter> committer = ZipCommitter.existing(zip);
+            if (committer.isPresent()) {
+                committer.get().flush();
+                committer.get().close();
+            }
+        }
+        for (int i = 0; i < threads; i++) {
+            File zip = zips.get(i % archives);
+            ZipBoxConnectorClient client = new ZipBoxConnectorClient(new HarnessConfig(zip.getPath(), args));
+            if (!workers.get(i).check(client.list(workers.get(i).directory))) {
+                lost++;
+            }
+        }
+        for (File zip : zips) {
+            if (zip.exists()) {
+                ZipBatchResult verify = new ZipEditor(zip).verify(Runtime.getRuntime().availableProcessors());
+                System.out.println(String.format("%s: %d entries, %d bytes, %d bad", zip.getName(),
+                        verify.entries(), zip.length(), verify.failures().size()));
+            }
+        }
+        System.out.println(String.format("final: %d of %d directories inconsistent", lost, threads));
+        if (temporary) {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}